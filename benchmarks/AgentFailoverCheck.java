@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs a technique x model x iteration matrix through a coordinator and worker agents on 127.0.0.1, kills one of
+// the agents partway through and checks that every job still ends up in the results table exactly once, and that
+// each agent got the dataset by its cache key with the coordinator's content.
+// The agents are separate JVMs running code/program_stub_worker.py, so a job costs only its --delay.
+//
+// From the main folder:
+//
+//     javac -encoding UTF-8 -d benchmarks/classes code/*.java benchmarks/*.java
+//     java -cp benchmarks/classes AgentFailoverCheck
+//
+// Options: --python, --agents (default 2, one more is started to be killed), --iterations (default 4),
+// --delay <seconds per job> (default 0.2). The exit code is 1 when a check failed.
+public class AgentFailoverCheck {
+    static final Path DATASET = Paths.get("csv_examples").resolve("example - Iris.csv");
+    static final String TOKEN = "agent-failover-check";
+    static final long AGENT_WAIT_MILLIS = 60_000;
+
+    private final Properties options;
+    private final Path workDirectory;
+    private final String python;
+    private final List<Process> agents = new ArrayList<>();
+    private final List<String> failures = new ArrayList<>();
+
+    AgentFailoverCheck(Properties options, Path workDirectory) {
+        this.options = options;
+        this.workDirectory = workDirectory;
+        this.python = options.getProperty("python", System.getProperty("mlanalyzer.python", "python"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties options = HeadlessRunner.parseArguments(args);
+        Path workDirectory = Files.createTempDirectory("mlanalyzer-agent-check");
+        List<String> failures;
+        try {
+            failures = new AgentFailoverCheck(options, workDirectory).run();
+        } finally {
+            DatasetCache.deleteRecursively(workDirectory);
+        }
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " checks failed");
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    List<String> run() throws Exception {
+        int agentCount = Integer.parseInt(options.getProperty("agents", "2"));
+        int iterations = Integer.parseInt(options.getProperty("iterations", "4"));
+        String delay = options.getProperty("delay", "0.2");
+
+        // The coordinator serves datasets from the shared cache by key, so the check puts its own dataset there
+        String key = DatasetCache.key(FileHashes.sha256(DATASET), "agent failover check", List.of(), false);
+        DatasetCache cache = new DatasetCache(DatasetCache.ROOT);
+        DatasetCache.Pin pin = cache.pin(key);
+        try {
+            Path dataset = cache.get(key, target -> Files.copy(DATASET, target.resolve("dataset.csv")));
+            runMatrix(key, dataset, agentCount, iterations, delay);
+        } finally {
+            pin.close();
+            DatasetCache.deleteRecursively(cache.directory(key));
+            Files.deleteIfExists(DatasetCache.ROOT.resolve(key + ".lock"));
+        }
+        return failures;
+    }
+
+    private void runMatrix(String key, Path dataset, int agentCount, int iterations, String delay) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        List<AnalysisJob> jobs = matrix(iterations);
+        List<String> parameters = new ArrayList<>(RunConfiguration.PARAMETERS);
+        parameters.add("job");
+        Path resultsFile = workDirectory.resolve("results.csv");
+        AtomicInteger rerun = new AtomicInteger();
+        RunLogs logs = new RunLogs(workDirectory.resolve("logs"), (source, line) -> {
+            if (line.contains("goes to another worker")) {
+                rerun.incrementAndGet();
+            }
+        });
+
+        Coordinator coordinator = Coordinator.shared("127.0.0.1", port, TOKEN);
+        try (RunMetrics metrics = new RunMetrics(workDirectory.resolve("metrics"));
+             WorkerPool pool = new WorkerPool(Arrays.asList(python, Paths.get("code", "program_stub_worker.py").toString()), logs, metrics, 1)) {
+            coordinator.attach(pool, logs.forStep("agents"));
+            try {
+                // The last agent is the one killed. One job per slot, so it is busy when that happens
+                int slots = 1;
+                for (int i = 0; i <= agentCount; i++) {
+                    startAgent("agent " + i, port, 2 + i);
+                    slots += 2 + i;
+                }
+                if (coordinator.awaitAgents(agentCount + 1, AGENT_WAIT_MILLIS, () -> false) < agentCount + 1) {
+                    throw new IOException("The agents did not connect, see their logs in " + workDirectory);
+                }
+                System.out.println((agentCount + 1) + " agents connected on 127.0.0.1:" + port + ", running " + jobs.size() + " jobs");
+
+                Process victim = agents.get(agentCount);
+                try (ResultsSink sink = new ResultsSink(resultsFile, parameters)) {
+                    // The stub keeps no cores busy, so the models that take every core do not run alone here
+                    JobScheduler scheduler = new JobScheduler(slots) {
+                        @Override
+                        int coresFor(String model) {
+                            return 1;
+                        }
+                    };
+                    scheduler.runAll(jobs, (job, cores) -> {
+                        Map<String, String> request = new LinkedHashMap<>();
+                        request.put("dataset", dataset.toAbsolutePath().toString());
+                        request.put("technique", job.technique());
+                        request.put("model", job.model());
+                        request.put("parameters", String.join(",", parameters));
+                        request.put("job", String.valueOf(job.index()));
+                        request.put("delay", delay);
+                        try (JobLog jobLog = logs.forJob(job)) {
+                            return new JobResult(job, pool.execute("run", request, jobLog, 0));
+                        }
+                    }, sink::append, (result, done, total) -> {
+                        if (done == total / 3 && victim.isAlive()) {
+                            System.out.println("Killing agent " + agentCount + " after " + done + " of " + total + " jobs");
+                            kill(victim);
+                        }
+                    });
+                }
+            } finally {
+                coordinator.detach(pool);
+                coordinator.close();
+                agents.forEach(AgentFailoverCheck::kill);
+            }
+        }
+
+        checkResults(resultsFile, jobs.size());
+        check(rerun.get() > 0, "jobs of the killed agent were run again (" + rerun.get() + ")");
+        for (int i = 0; i <= agentCount; i++) {
+            Path copy = workDirectory.resolve("agent " + i).resolve("datasets").resolve(key);
+            check(Files.isDirectory(copy) && FileHashes.sha256(copy.resolve("dataset.csv")).equals(FileHashes.sha256(dataset.resolve("dataset.csv"))),
+                  "agent " + i + " got dataset " + key + " from the coordinator");
+        }
+    }
+
+    private void startAgent(String name, int port, int workers) throws IOException {
+        Path directory = workDirectory.resolve(name);
+        Files.createDirectories(directory);
+        ProcessBuilder builder = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "WorkerAgent",
+                "--coordinator", "127.0.0.1:" + port, "--token", TOKEN, "--name", name, "--workers", String.valueOf(workers),
+                "--python", python, "--worker-script", Paths.get("code", "program_stub_worker.py").toString(),
+                "--directory", directory.toString());
+        builder.redirectErrorStream(true).redirectOutput(directory.resolve("agent.log").toFile());
+        agents.add(builder.start());
+    }
+
+    // The agent and its Python workers, as when the machine goes away
+    private static void kill(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    // The stub worker echoes the job index into the job column, every index has to be there once
+    private void checkResults(Path resultsFile, int jobCount) throws IOException {
+        List<String> lines = Files.readAllLines(resultsFile, StandardCharsets.UTF_8);
+        int column = Arrays.asList(lines.get(0).split(",")).indexOf("job");
+        int[] seen = new int[jobCount];
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            if (column < fields.length && !fields[column].isEmpty()) {
+                int index = (int) Double.parseDouble(fields[column]);
+                if (index >= 0 && index < jobCount) {
+                    seen[index]++;
+                }
+            }
+        }
+        int missing = 0;
+        int repeated = 0;
+        for (int count : seen) {
+            missing += count == 0 ? 1 : 0;
+            repeated += count > 1 ? 1 : 0;
+        }
+        check(lines.size() - 1 == jobCount && missing == 0 && repeated == 0,
+              "results.csv has every job once (" + (lines.size() - 1) + " rows for " + jobCount + " jobs, " + missing + " missing, " + repeated + " repeated)");
+    }
+
+    private void check(boolean passed, String description) {
+        System.out.println((passed ? "  ok      " : "  FAILED  ") + description);
+        if (!passed) {
+            failures.add(description);
+        }
+    }
+
+    private static List<AnalysisJob> matrix(int iterations) {
+        List<AnalysisJob> jobs = new ArrayList<>();
+        for (String technique : RunConfiguration.TECHNIQUES) {
+            for (String model : RunConfiguration.MODELS) {
+                for (int i = 0; i < iterations; i++) {
+                    jobs.add(new AnalysisJob(jobs.size(), technique, model, i));
+                }
+            }
+        }
+        return jobs;
+    }
+}
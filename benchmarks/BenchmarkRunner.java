@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// A small benchmark harness in the spirit of JMH: warm-up rounds first, then timed rounds of a fixed number of
+// operations, reported as microseconds per operation with the spread between rounds
+//
+// Reports are CSV files, so two of them (before and after a change) can be compared with compare()
+class BenchmarkRunner {
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    record Measurement(String benchmark, int operationsPerRound, int rounds, double meanMicros, double stdevMicros,
+                       double minMicros, double maxMicros) {
+
+        double operationsPerSecond() {
+            return meanMicros > 0 ? 1e6 / meanMicros : 0;
+        }
+
+        static String csvHeader() {
+            return "benchmark,operations per round,rounds,mean us/op,stdev us/op,min us/op,max us/op,ops/s";
+        }
+
+        String toCsvRow() {
+            return String.format(Locale.ROOT, "%s,%d,%d,%.3f,%.3f,%.3f,%.3f,%.1f", benchmark, operationsPerRound, rounds,
+                                 meanMicros, stdevMicros, minMicros, maxMicros, operationsPerSecond());
+        }
+    }
+
+    private final int warmupRounds;
+    private final int rounds;
+    private final List<Measurement> measurements = new ArrayList<>();
+
+    BenchmarkRunner(int warmupRounds, int rounds) {
+        this.warmupRounds = warmupRounds;
+        this.rounds = Math.max(1, rounds);
+    }
+
+    Measurement measure(String benchmark, int operationsPerRound, Operation operation) throws Exception {
+        for (int round = 0; round < warmupRounds; round++) {
+            for (int i = 0; i < operationsPerRound; i++) {
+                operation.run();
+            }
+        }
+
+        double[] microsPerOperation = new double[rounds];
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < operationsPerRound; i++) {
+                operation.run();
+            }
+            microsPerOperation[round] = (System.nanoTime() - start) / 1000.0 / operationsPerRound;
+        }
+
+        double mean = Arrays.stream(microsPerOperation).average().orElse(0);
+        double variance = Arrays.stream(microsPerOperation).map(value -> (value - mean) * (value - mean)).sum() / Math.max(1, rounds - 1);
+        Measurement measurement = new Measurement(benchmark, operationsPerRound, rounds, mean, Math.sqrt(variance),
+                                                  Arrays.stream(microsPerOperation).min().orElse(0),
+                                                  Arrays.stream(microsPerOperation).max().orElse(0));
+        measurements.add(measurement);
+        System.out.printf(Locale.ROOT, "  %-52s %12.3f us/op  +- %10.3f  (%.1f ops/s)%n", benchmark, measurement.meanMicros(),
+                          measurement.stdevMicros(), measurement.operationsPerSecond());
+        return measurement;
+    }
+
+    void writeReport(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        List<String> lines = new ArrayList<>();
+        lines.add(Measurement.csvHeader());
+        for (Measurement measurement : measurements) {
+            lines.add(measurement.toCsvRow());
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    // Prints the change against an earlier report, returns the benchmarks that got slower than the threshold allows
+    List<String> compare(Path baselineFile, double thresholdPercent) throws IOException {
+        Map<String, Double> baseline = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(baselineFile, StandardCharsets.UTF_8);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            baseline.put(fields[0], Double.parseDouble(fields[3]));
+        }
+
+        List<String> regressions = new ArrayList<>();
+        System.out.println();
+        System.out.println("Compared with " + baselineFile);
+        for (Measurement measurement : measurements) {
+            Double before = baseline.get(measurement.benchmark());
+            if (before == null || before == 0) {
+                System.out.printf("  %-52s new%n", measurement.benchmark());
+                continue;
+            }
+            double change = 100 * (measurement.meanMicros() - before) / before;
+            // A change inside the spread between rounds is noise, not a regression
+            double noisePercent = 100 * 2 * measurement.stdevMicros() / before;
+            boolean regression = change > thresholdPercent && change > noisePercent;
+            System.out.printf(Locale.ROOT, "  %-52s %12.3f -> %12.3f us/op  %+7.1f%%%s%n", measurement.benchmark(), before,
+                              measurement.meanMicros(), change, regression ? "  REGRESSION" : "");
+            if (regression) {
+                regressions.add(measurement.benchmark());
+            }
+        }
+        return regressions;
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+// Benchmarks of the Java side of an analysis: starting workers, passing requests and results, reading the journal,
+// writing the results table and pushing a whole technique x model x iteration matrix through the scheduler.
+// The workers are code/program_stub_worker.py, which answers with canned metrics, so the models cost nothing.
+//
+// From the main folder:
+//
+//     javac -encoding UTF-8 -d benchmarks/classes code/*.java benchmarks/*.java
+//     java -cp benchmarks/classes OrchestrationBenchmarks
+//     java -cp benchmarks/classes OrchestrationBenchmarks --baseline "benchmarks/reports/2024-05-01 10-00-00.csv"
+//
+// Options: --python, --rounds, --warmup, --only <part of a benchmark name>, --report <file>,
+// --baseline <earlier report> and --threshold <percent> (default 10). The exit code is 1 when a benchmark regressed.
+public class OrchestrationBenchmarks {
+    static final Path REPORTS = Paths.get("benchmarks", "reports");
+    static final Path DATASETS = Paths.get("csv_examples");
+    static final int JOURNAL_ROWS = 10_000;
+    static final int RESULT_ROWS = 10_000;
+
+    private final Properties options;
+    private final BenchmarkRunner runner;
+    private final List<String> stubCommand;
+    private final Path workDirectory;
+    private final String only;
+
+    OrchestrationBenchmarks(Properties options, Path workDirectory) {
+        this.options = options;
+        this.workDirectory = workDirectory;
+        this.runner = new BenchmarkRunner(Integer.parseInt(options.getProperty("warmup", "2")), Integer.parseInt(options.getProperty("rounds", "5")));
+        this.stubCommand = Arrays.asList(options.getProperty("python", System.getProperty("mlanalyzer.python", "python")),
+                                         Paths.get("code", "program_stub_worker.py").toString());
+        this.only = options.getProperty("only", "");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties options = HeadlessRunner.parseArguments(args);
+        Path workDirectory = Files.createTempDirectory("mlanalyzer-benchmarks");
+        List<String> regressions;
+        try {
+            OrchestrationBenchmarks benchmarks = new OrchestrationBenchmarks(options, workDirectory);
+            regressions = benchmarks.runAll();
+        } finally {
+            DatasetCache.deleteRecursively(workDirectory);
+        }
+        System.exit(regressions.isEmpty() ? 0 : 1);
+    }
+
+    List<String> runAll() throws Exception {
+        System.out.println("MLAnalyzer orchestration benchmarks");
+        System.out.println("  java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " cores, "
+                           + System.getProperty("os.name") + ", worker " + String.join(" ", stubCommand));
+        System.out.println();
+
+        List<Path> datasets = datasets();
+        if (selected("worker launch")) {
+            workerLaunch(datasets.get(0));
+        }
+        if (selected("worker round trip")) {
+            for (Path dataset : datasets) {
+                workerRoundTrip(dataset);
+            }
+        }
+        if (selected("journal parse")) {
+            journalParse();
+        }
+        if (selected("results write")) {
+            resultsWrite();
+        }
+        if (selected("matrix")) {
+            for (Path dataset : datasets) {
+                matrixThroughput(dataset);
+            }
+        }
+
+        Path report = Paths.get(options.getProperty("report",
+                REPORTS.resolve(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH-mm-ss")) + ".csv").toString()));
+        runner.writeReport(report);
+        System.out.println();
+        System.out.println("Report written to " + report);
+
+        String baseline = options.getProperty("baseline");
+        if (baseline == null) {
+            return List.of();
+        }
+        return runner.compare(Paths.get(baseline), Double.parseDouble(options.getProperty("threshold", "10")));
+    }
+
+    private boolean selected(String benchmark) {
+        return benchmark.contains(only);
+    }
+
+    private static List<Path> datasets() throws IOException {
+        List<Path> datasets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(DATASETS, "*.csv")) {
+            files.forEach(datasets::add);
+        }
+        datasets.sort(null);
+        if (datasets.isEmpty()) {
+            throw new IOException("No CSV files in " + DATASETS.toAbsolutePath());
+        }
+        return datasets;
+    }
+
+    private static String datasetName(Path dataset) {
+        String name = dataset.getFileName().toString();
+        return name.replace("example - ", "").replace(".csv", "");
+    }
+
+    private Map<String, String> request(Path dataset, String model) {
+        Map<String, String> request = new LinkedHashMap<>();
+        request.put("dataset", dataset.toAbsolutePath().toString());
+        request.put("technique", "PCA");
+        request.put("model", model);
+        request.put("optimization", "None");
+        request.put("cross_validation", "Hold-Out");
+        request.put("parameters", String.join(",", RunConfiguration.PARAMETERS));
+        return request;
+    }
+
+    private JobLog log(String name) {
+        return new JobLog(workDirectory.resolve(name + ".log"), line -> { });
+    }
+
+    // Process start, the READY handshake, one request and a clean shutdown
+    private void workerLaunch(Path dataset) throws Exception {
+        Map<String, String> request = request(dataset, "SVM");
+        int[] nextId = {0};
+        runner.measure("worker launch + round trip", 5, () -> {
+            try (PythonWorker worker = new PythonWorker(nextId[0]++, stubCommand, log("launch"));
+                 JobLog jobLog = log("launch job")) {
+                worker.execute("run", request, jobLog, 0);
+            }
+        });
+    }
+
+    // One request on a worker that is already running, what every job but the first of a worker pays
+    private void workerRoundTrip(Path dataset) throws Exception {
+        Map<String, String> request = request(dataset, "SVM");
+        try (PythonWorker worker = new PythonWorker(0, stubCommand, log("round trip"));
+             JobLog jobLog = log("round trip job")) {
+            runner.measure("worker round trip [" + datasetName(dataset) + "]", 200, () -> worker.execute("run", request, jobLog, 0));
+        }
+    }
+
+    // Reading back a journal of finished jobs and averaging their metrics per model, as a resumed run does
+    private void journalParse() throws Exception {
+        Path file = workDirectory.resolve("journal.txt");
+        List<AnalysisJob> jobs = matrix(RunConfiguration.TECHNIQUES, RunConfiguration.MODELS, JOURNAL_ROWS / (RunConfiguration.TECHNIQUES.size() * RunConfiguration.MODELS.size()));
+        StringBuilder journal = new StringBuilder("CONFIG\tbenchmark\nINPUT\tbenchmark\nSEED\t1\n");
+        for (AnalysisJob job : jobs) {
+            journal.append("DONE\t").append(job.key());
+            for (String parameter : RunConfiguration.PARAMETERS) {
+                journal.append('\t').append(parameter).append("=0.").append(job.index());
+            }
+            journal.append('\n');
+        }
+        Files.writeString(file, journal, StandardCharsets.UTF_8);
+
+        runner.measure("journal parse + aggregate (" + jobs.size() + " rows)", 1, () -> {
+            Map<String, double[]> sums = new LinkedHashMap<>();
+            try (RunJournal runJournal = RunJournal.open(file, "benchmark", "benchmark")) {
+                for (AnalysisJob job : jobs) {
+                    JobResult result = runJournal.finishedResult(job);
+                    double[] sum = sums.computeIfAbsent(job.model(), model -> new double[2]);
+                    sum[0]++;
+                    sum[1] += Double.parseDouble(result.metrics().get("F1-Score"));
+                }
+            }
+            if (sums.size() != RunConfiguration.MODELS.size()) {
+                throw new IllegalStateException("Journal was not read back");
+            }
+        });
+    }
+
+    // The results table written row by row, flushed after each row like a real run
+    private void resultsWrite() throws Exception {
+        List<AnalysisJob> jobs = matrix(RunConfiguration.TECHNIQUES, RunConfiguration.MODELS, RESULT_ROWS / (RunConfiguration.TECHNIQUES.size() * RunConfiguration.MODELS.size()));
+        List<JobResult> results = new ArrayList<>();
+        for (AnalysisJob job : jobs) {
+            Map<String, String> metrics = new LinkedHashMap<>();
+            for (String parameter : RunConfiguration.PARAMETERS) {
+                metrics.put(parameter, String.valueOf(0.5 + job.index() / 1e6));
+            }
+            results.add(new JobResult(job, metrics));
+        }
+
+        Path file = workDirectory.resolve("results.csv");
+        runner.measure("results write (" + results.size() + " rows)", 1, () -> {
+            try (ResultsSink sink = new ResultsSink(file, RunConfiguration.PARAMETERS)) {
+                for (JobResult result : results) {
+                    sink.append(result);
+                }
+            }
+        });
+    }
+
+    // Every technique x model x 5 iterations through the scheduler, the worker pool, the journal and the results table
+    private void matrixThroughput(Path dataset) throws Exception {
+        List<AnalysisJob> jobs = matrix(RunConfiguration.TECHNIQUES, RunConfiguration.MODELS, 5);
+        int parallelism = JobScheduler.defaultParallelism();
+        Path journalFile = workDirectory.resolve("matrix journal.txt");
+        Path resultsFile = workDirectory.resolve("matrix results.csv");
+        RunLogs logs = new RunLogs(workDirectory.resolve("matrix logs"), (source, line) -> { });
+
+        try (RunMetrics metrics = new RunMetrics(workDirectory.resolve("matrix metrics"));
+             WorkerPool pool = new WorkerPool(stubCommand, logs, metrics, parallelism)) {
+            runner.measure("matrix " + jobs.size() + " jobs [" + datasetName(dataset) + "]", 1, () -> {
+                Files.deleteIfExists(journalFile);
+                try (RunJournal journal = RunJournal.open(journalFile, "benchmark", "benchmark");
+                     ResultsSink sink = new ResultsSink(resultsFile, RunConfiguration.PARAMETERS)) {
+                    new JobScheduler(parallelism).runAll(jobs, (job, cores) -> {
+                        Map<String, String> request = request(dataset, job.model());
+                        request.put("technique", job.technique());
+                        try (JobLog jobLog = logs.forJob(job)) {
+                            JobResult result = new JobResult(job, pool.execute("run", request, jobLog, 0));
+                            journal.record(result);
+                            return result;
+                        }
+                    }, sink::append, (result, done, total) -> { });
+                    if (sink.getSuccessfulRows() != jobs.size()) {
+                        throw new IllegalStateException("Only " + sink.getSuccessfulRows() + " of " + jobs.size() + " jobs succeeded");
+                    }
+                }
+            });
+        }
+    }
+
+    private static List<AnalysisJob> matrix(List<String> techniques, List<String> models, int iterations) {
+        List<AnalysisJob> jobs = new ArrayList<>();
+        for (String technique : techniques) {
+            for (String model : models) {
+                for (int i = 0; i < iterations; i++) {
+                    jobs.add(new AnalysisJob(jobs.size(), technique, model, i));
+                }
+            }
+        }
+        return jobs;
+    }
+}
@@ -0,0 +1,168 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Repeats each technique x model pair only until the 95% confidence interval of one metric is narrow enough
+//
+// Every pair first gets its minimum number of iterations. After that, each free core goes to the pair whose interval
+// is expected to stay the widest once its running jobs are in, so the noisy pairs get the iterations the stable ones
+// no longer need. A pair stops when the half width of its interval is at most the tolerance, or at the maximum
+class AdaptiveJobSource implements JobScheduler.JobSource {
+    // Two-sided 95% Student t quantiles for 1 to 30 degrees of freedom
+    private static final double[] T_QUANTILES = {
+        12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+        2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+        2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+    };
+
+    private static class Pair {
+        final String technique;
+        final String model;
+        int started;
+        int running;
+        int failures;
+        // Running mean and sum of squared differences (Welford), so no sample has to be kept
+        int samples;
+        double mean;
+        double squaredDifferences;
+        boolean settled;
+        String outcome = "stopped";
+
+        Pair(String technique, String model) {
+            this.technique = technique;
+            this.model = model;
+        }
+
+        double halfWidth() {
+            if (samples < 2) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double deviation = Math.sqrt(squaredDifferences / (samples - 1));
+            return tQuantile(samples - 1) * deviation / Math.sqrt(samples);
+        }
+    }
+
+    private final Map<String, Pair> pairs = new LinkedHashMap<>();
+    private final int minIterations;
+    private final int maxIterations;
+    private final String metric;
+    private final double tolerance;
+    private int nextIndex;
+    private boolean stopped;
+
+    AdaptiveJobSource(List<String> techniques, List<String> models, int minIterations, int maxIterations, String metric, double tolerance) {
+        for (String technique : techniques) {
+            for (String model : models) {
+                pairs.put(technique + "|" + model, new Pair(technique, model));
+            }
+        }
+        this.minIterations = minIterations;
+        this.maxIterations = maxIterations;
+        this.metric = metric;
+        this.tolerance = tolerance;
+    }
+
+    static double tQuantile(int degreesOfFreedom) {
+        if (degreesOfFreedom <= T_QUANTILES.length) {
+            return T_QUANTILES[degreesOfFreedom - 1];
+        }
+        return 1.96 + 2.4 / degreesOfFreedom;
+    }
+
+    @Override
+    public AnalysisJob next() {
+        if (stopped) {
+            return null;
+        }
+
+        // The minimum iterations first, spread over the pairs
+        Pair chosen = null;
+        for (Pair pair : pairs.values()) {
+            if (!pair.settled && pair.started < minIterations && (chosen == null || pair.started < chosen.started)) {
+                chosen = pair;
+            }
+        }
+
+        if (chosen == null) {
+            double widest = 1;
+            for (Pair pair : pairs.values()) {
+                if (pair.settled || pair.started >= maxIterations || pair.samples < minIterations && pair.running > 0) {
+                    continue;
+                }
+                // Short of the minimum after failures, or the width the interval would shrink to if the running jobs
+                // landed on the same mean and spread, in tolerances
+                double expected = pair.samples < minIterations ? Double.POSITIVE_INFINITY
+                        : pair.halfWidth() * Math.sqrt((double) pair.samples / (pair.samples + pair.running + 1)) / tolerance;
+                if (expected > widest) {
+                    widest = expected;
+                    chosen = pair;
+                }
+            }
+        }
+
+        if (chosen == null) {
+            return null;
+        }
+        chosen.started++;
+        chosen.running++;
+        return new AnalysisJob(nextIndex++, chosen.technique, chosen.model, chosen.started - 1);
+    }
+
+    @Override
+    public void finished(JobResult result) {
+        Pair pair = pairs.get(result.job().technique() + "|" + result.job().model());
+        pair.running--;
+        if (result.status() == JobStatus.CANCELLED) {
+            stopped = true;
+            return;
+        }
+
+        Double value = result.isOk() ? parse(result.metrics().get(metric)) : null;
+        if (value == null) {
+            pair.failures++;
+        } else {
+            pair.samples++;
+            double delta = value - pair.mean;
+            pair.mean += delta / pair.samples;
+            pair.squaredDifferences += delta * (value - pair.mean);
+        }
+
+        // A pair that only fails is given up once it failed as often as the minimum asks for
+        boolean narrowEnough = pair.samples >= minIterations && pair.halfWidth() <= tolerance;
+        boolean hopeless = pair.samples == 0 && pair.failures >= minIterations;
+        if (!pair.settled && (narrowEnough || hopeless || pair.started >= maxIterations && pair.running == 0)) {
+            pair.settled = true;
+            pair.outcome = narrowEnough ? "converged" : hopeless ? "every run failed" : "maximum reached";
+        }
+    }
+
+    private static Double parse(String value) {
+        try {
+            return value == null ? null : Double.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int plannedJobs() {
+        int planned = 0;
+        for (Pair pair : pairs.values()) {
+            planned += pair.settled ? pair.started : Math.max(pair.started, maxIterations);
+        }
+        return planned;
+    }
+
+    // One line per pair: iterations run, the interval reached (jobs running when it converged are included) and why it stopped
+    List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        for (Pair pair : pairs.values()) {
+            double halfWidth = pair.halfWidth();
+            String interval = Double.isInfinite(halfWidth) ? "not enough results" : String.format(Locale.ROOT, "%.4f +- %.4f", pair.mean, halfWidth);
+            lines.add(String.format(Locale.ROOT, "%s / %s: %d iterations, %s %s, %s", pair.technique, pair.model, pair.started, metric, interval, pair.outcome));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One TCP connection between the coordinator and a worker agent
+//
+// A frame is a count of fields followed by each field as a length and its UTF-8 bytes, so field values may hold
+// tabs and line breaks (tracebacks do). A FILE frame (transfer id, name and size) is followed by the raw bytes of the file
+class AgentConnection implements AutoCloseable {
+    static final int MAX_FIELDS = 4096;
+    static final int MAX_FIELD_BYTES = 64 * 1024 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    // Frames are sent from the virtual threads of the requests, a monitor would pin them while the socket blocks
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    AgentConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    String remoteAddress() {
+        return socket.getRemoteSocketAddress().toString();
+    }
+
+    // A receive waiting longer than this fails with a SocketTimeoutException, 0 waits forever
+    void setReadTimeout(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+    }
+
+    void send(String... fields) throws IOException {
+        send(List.of(fields));
+    }
+
+    void send(List<String> fields) throws IOException {
+        sendLock.lock();
+        try {
+            writeFields(fields);
+            output.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // The header and the bytes go out in one piece, no other frame can come in between
+    void sendFile(String transfer, Path file) throws IOException {
+        sendLock.lock();
+        try {
+            long size = Files.size(file);
+            writeFields(List.of("FILE", transfer, file.getFileName().toString(), String.valueOf(size)));
+            try (InputStream stream = Files.newInputStream(file)) {
+                if (stream.transferTo(output) != size) {
+                    throw new IOException(file + " changed while it was sent");
+                }
+            }
+            output.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void writeFields(List<String> fields) throws IOException {
+        output.writeInt(fields.size());
+        for (String field : fields) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    // Only one thread receives, the reader loop of the connection
+    List<String> receive() throws IOException {
+        int count = input.readInt();
+        if (count < 1 || count > MAX_FIELDS) {
+            throw new IOException("Bad frame from " + remoteAddress() + ": " + count + " fields");
+        }
+        List<String> fields = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = input.readInt();
+            if (length < 0 || length > MAX_FIELD_BYTES) {
+                throw new IOException("Bad frame from " + remoteAddress() + ": field of " + length + " bytes");
+            }
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            fields.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return fields;
+    }
+
+    // The bytes that follow a FILE frame, copied to the target file
+    void receiveFile(long size, Path target) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream file = Files.newOutputStream(target)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Connection closed in the middle of " + target.getFileName());
+                }
+                file.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // The connection is gone either way
+        }
+    }
+}
@@ -0,0 +1,26 @@
+import java.util.Locale;
+
+// One (technique, model, iteration) cell of the analysis matrix
+//
+// Racing runs also have cells on a stratified sample of the rows, the stage says which racing round they belong to
+record AnalysisJob(int index, String technique, String model, int iteration, double sampleFraction, String stage) {
+    static final String FULL_STAGE = "full";
+
+    AnalysisJob(int index, String technique, String model, int iteration) {
+        this(index, technique, model, iteration, 1.0, FULL_STAGE);
+    }
+
+    boolean isSample() {
+        return sampleFraction < 1.0;
+    }
+
+    String key() {
+        return isSample() ? technique + "|" + model + "|" + stage + "|" + iteration : technique + "|" + model + "|" + iteration;
+    }
+
+    @Override
+    public String toString() {
+        String job = technique + " / " + model + " / iteration " + (iteration + 1);
+        return isSample() ? job + String.format(Locale.ROOT, " on %.0f%% of the rows", sampleFraction * 100) : job;
+    }
+}
@@ -0,0 +1,459 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+// Data cleaning, the technique x model x iteration matrix and the reports, with no user interface attached
+//
+// A run writes to its workspace. It starts its own worker pool and takes the cores it is configured for, unless it
+// is handed the pool and budget shared by the queued runs going at the same time
+class AnalysisPipeline {
+    static final Path SEARCH_CACHE = Paths.get("resources", "cache", "search", "best_params.json");
+    // Every finished run of every workspace, see program_results_store.py
+    static final Path RESULTS_STORE = Paths.get("resources", "results_store.sqlite");
+
+    private final RunConfiguration configuration;
+    private final PipelineListener listener;
+    private final RunWorkspace workspace;
+    private final WorkerPool sharedPool;
+    private final CpuBudget sharedCores;
+    private RunLogs logs;
+    private RunMetrics metrics;
+    private volatile boolean cancelled;
+    private volatile JobScheduler scheduler;
+    private volatile WorkerPool workerPool;
+    // The cleaning, results store or reports script running now, stopped by cancel like the workers
+    private volatile Process scriptProcess;
+    private DistributedSearch distributedSearch;
+
+    AnalysisPipeline(RunConfiguration configuration, PipelineListener listener) {
+        this(configuration, listener, RunWorkspace.MAIN, null, null);
+    }
+
+    AnalysisPipeline(RunConfiguration configuration, PipelineListener listener, RunWorkspace workspace, WorkerPool sharedPool, CpuBudget sharedCores) {
+        this.configuration = configuration;
+        this.listener = listener;
+        this.workspace = workspace;
+        this.sharedPool = sharedPool;
+        this.sharedCores = sharedCores;
+    }
+
+    PipelineResult run() throws Exception {
+        long startTime = System.nanoTime();
+        workspace.create();
+        logs = new RunLogs(RunLogs.newRunDirectory(workspace), workspace.errorLog(), listener::output);
+        logs.clearErrorLog();
+        metrics = new RunMetrics(logs.getDirectory());
+        try {
+            return runStages(startTime);
+        } finally {
+            metrics.close();
+        }
+    }
+
+    private PipelineResult runStages(long startTime) throws Exception {
+
+        // The same CSV cleaned with the same options is only cleaned once, later runs reuse the cached arrays
+        String inputHash = FileHashes.sha256(configuration.inputFile);
+        String datasetKey = DatasetCache.key(inputHash, FileHashes.sha256(DatasetCache.CLEANING_SCRIPT), configuration.dataCleaning,
+                                             configuration.cleaningMemoryMb > 0);
+        DatasetCache datasetCache = new DatasetCache(DatasetCache.ROOT);
+        // Other runs cleaning other datasets meanwhile must not evict this one
+        DatasetCache.Pin inUse = datasetCache.pin(datasetKey);
+        try {
+            listener.stageStarted(datasetCache.contains(datasetKey) ? "Data cleaning (cached)" : "Data cleaning");
+            Path dataset = datasetCache.get(datasetKey, directory -> runScript("data cleaning", "program_data_cleaning.py",
+                                                                               configuration.inputFile.toAbsolutePath().toString(),
+                                                                               String.join(", ", configuration.dataCleaning),
+                                                                               directory.toAbsolutePath().toString(),
+                                                                               profileColumns(),
+                                                                               String.valueOf(configuration.cleaningMemoryMb)));
+            return runStages(startTime, inputHash, datasetKey, dataset);
+        } finally {
+            inUse.close();
+        }
+    }
+
+    private PipelineResult runStages(long startTime, String inputHash, String datasetKey, Path dataset) throws Exception {
+
+        // Adaptive runs decide how often to repeat each pair while running, racing runs drop the weak pairs on samples
+        // of the data first, otherwise every pair gets the same count
+        AdaptiveJobSource adaptiveSource = null;
+        RacingJobSource racingSource = null;
+        JobScheduler.JobSource jobSource;
+        if (configuration.adaptive) {
+            adaptiveSource = new AdaptiveJobSource(configuration.techniques, configuration.models, configuration.minIterations,
+                                                   configuration.iterations, configuration.adaptiveMetric(), configuration.tolerance);
+            jobSource = adaptiveSource;
+        } else if (configuration.racing) {
+            racingSource = new RacingJobSource(configuration.techniques, configuration.models, configuration.racingRounds, configuration.racingKeep,
+                                               configuration.racingIterations, configuration.iterations, configuration.parameters.get(0));
+            jobSource = racingSource;
+        } else {
+            List<AnalysisJob> jobs = new ArrayList<>();
+            for (String technique : configuration.techniques) {
+                for (String model : configuration.models) {
+                    for (int i = 0; i < configuration.iterations; i++) {
+                        jobs.add(new AnalysisJob(jobs.size(), technique, model, i));
+                    }
+                }
+            }
+            jobSource = JobScheduler.fixed(jobs);
+        }
+
+        listener.stageStarted("Analysis");
+        long analysisStart = System.nanoTime();
+        String parameters = String.join(",", configuration.parameters);
+        List<String> workerCommand = Arrays.asList(configuration.python, Paths.get("code", "program_worker.py").toString());
+        List<AnalysisJob> failedJobs = new ArrayList<>();
+        AtomicInteger totalJobs = new AtomicInteger();
+        int rowsWritten;
+        int successfulRows;
+
+        // A search spread over the workers waits for them on threads of its own, the job threads only wait for the search
+        ExecutorService searchExecutor = null;
+        if (configuration.distributedSearch && !configuration.optimization.equals("None")) {
+            searchExecutor = Executors.newFixedThreadPool(configuration.parallelJobs);
+        }
+
+        // Worker agents on other machines take jobs next to the local workers, results come back through the same pool.
+        // A shared pool gets its agents from whoever shares it
+        Coordinator coordinator = configuration.coordinatorPort > 0 && sharedPool == null
+                ? Coordinator.shared(configuration.coordinatorBind, configuration.coordinatorPort, configuration.agentToken) : null;
+        WorkerPool ownPool = sharedPool == null ? new WorkerPool(workerCommand, logs, metrics, configuration.parallelJobs) : null;
+        WorkerPool pool = sharedPool != null ? sharedPool : ownPool;
+        if (ownPool != null) {
+            ownPool.setMemoryListener(listener::workerMemory);
+        }
+
+        // Jobs finished by an earlier, interrupted run with the same configuration are not run again
+        try (RunJournal journal = RunJournal.open(workspace.runJournal(), configuration.describe(), inputHash);
+             ResultsSink resultsSink = new ResultsSink(workspace.resultsCsv(), configuration.parameters, configuration.racing, configuration.pinCores,
+                                                       usesSearchCache())) {
+            Path splitCache = workspace.splitCache().resolve(String.valueOf(journal.getSeed()));
+            deleteOtherSplitCaches(splitCache);
+            scheduler = new JobScheduler(sharedCores != null ? sharedCores : new CpuBudget(configuration.parallelJobs), configuration.pinCores);
+            // The score requests of a search take cores from the same budget as the jobs
+            if (searchExecutor != null) {
+                distributedSearch = new DistributedSearch(searchExecutor, () -> cancelled, scheduler.getCores(), scheduler::coresFor);
+            }
+            workerPool = pool;
+            if (cancelled) {
+                scheduler.cancel();
+            }
+            if (coordinator != null) {
+                pool.setCapacityListener(scheduler.getCores()::changeCapacity);
+                coordinator.attach(pool, logs.forStep("agents"));
+                if (configuration.waitForAgents > 0) {
+                    listener.stageStarted("Waiting for " + configuration.waitForAgents + " worker agent(s)");
+                    coordinator.awaitAgents(configuration.waitForAgents, RunConfiguration.AGENT_WAIT_SECONDS * 1000L, () -> cancelled);
+                    listener.stageStarted("Analysis");
+                }
+            }
+
+            scheduler.run(jobSource, (job, cores) -> runJob(pool, journal, job, cores, dataset, datasetKey, splitCache, parameters),
+                          result -> {
+                              totalJobs.incrementAndGet();
+                              resultsSink.append(result);
+                              if (!result.isOk() && result.status() != JobStatus.CANCELLED) {
+                                  failedJobs.add(result.job());
+                              }
+                          },
+                          listener::jobFinished);
+            if (racingSource != null && !cancelled) {
+                for (JobResult eliminated : racingSource.eliminatedRows()) {
+                    resultsSink.append(eliminated);
+                }
+            }
+            rowsWritten = resultsSink.getRowsWritten();
+            successfulRows = resultsSink.getSuccessfulRows();
+
+            if (failedJobs.isEmpty() && !cancelled) {
+                journal.delete();
+                DatasetCache.deleteRecursively(splitCache);
+            }
+        } finally {
+            if (coordinator != null) {
+                coordinator.detach(pool);
+            }
+            if (ownPool != null) {
+                ownPool.close();
+            }
+            if (searchExecutor != null) {
+                searchExecutor.shutdownNow();
+            }
+        }
+
+        metrics.record("stage", "analysis", null, secondsSince(analysisStart));
+        if (adaptiveSource != null) {
+            try (JobLog summaryLog = logs.forStep("adaptive iterations")) {
+                for (String line : adaptiveSource.summary()) {
+                    summaryLog.line(line);
+                }
+            }
+        }
+        if (racingSource != null) {
+            try (JobLog summaryLog = logs.forStep("racing")) {
+                for (String line : racingSource.summary()) {
+                    summaryLog.line(line);
+                }
+            }
+        }
+
+        // The rows finished before the cancel stay in the results table and in the journal, for a later restart
+        if (cancelled) {
+            return new PipelineResult(totalJobs.get(), rowsWritten, failedJobs, true, (System.nanoTime() - startTime) / 1_000_000, metrics.getTotals());
+        }
+        if (successfulRows == 0) {
+            throw new PipelineException("Every analysis failed");
+        }
+
+        // The history of the runs keeps every row, the results table only has the last run of the workspace
+        String runId = workspace.runId(configuration);
+        String store = RESULTS_STORE.toAbsolutePath().toString();
+        listener.stageStarted("Results store");
+        runScript("results store", "program_results_store.py", "--store", store, "add", runId, inputHash,
+                  configuration.inputFile.getFileName().toString(), configuration.describe());
+
+        // The charts, tables and PDF are made in parallel, each chart is handed to the listener as soon as it is drawn
+        listener.stageStarted("Reports");
+        runScript("reports", "program_reports.py", line -> {
+            if (line.startsWith("CHART\t")) {
+                listener.chartReady(Paths.get(line.substring("CHART\t".length())));
+            }
+        }, "--jobs", String.valueOf(configuration.parallelJobs));
+
+        return new PipelineResult(totalJobs.get(), rowsWritten, failedJobs, false, (System.nanoTime() - startTime) / 1_000_000, metrics.getTotals());
+    }
+
+    // The column profile the cleaning script reads the types and distinct counts from, empty when profiling failed:
+    // the script then works them out itself
+    private String profileColumns() throws IOException, InterruptedException {
+        long profileStart = System.nanoTime();
+        try {
+            Path profile = CsvProfiler.cached(configuration.inputFile, configuration.parallelJobs);
+            metrics.record("stage", "profile", null, secondsSince(profileStart));
+            return profile.toAbsolutePath().toString();
+        } catch (IOException e) {
+            try (JobLog profileLog = logs.forStep("profile")) {
+                profileLog.line("Could not profile " + configuration.inputFile + ": " + e);
+            }
+            return "";
+        }
+    }
+
+    // Stops the run from any thread: queued jobs are skipped and the running workers and script are killed
+    void cancel() {
+        cancelled = true;
+        Process currentScript = scriptProcess;
+        if (currentScript != null) {
+            currentScript.descendants().forEach(ProcessHandle::destroyForcibly);
+            currentScript.destroyForcibly();
+        }
+        JobScheduler currentScheduler = scheduler;
+        if (currentScheduler != null) {
+            currentScheduler.cancel();
+        }
+        WorkerPool currentPool = workerPool;
+        if (currentPool == sharedPool && currentPool != null) {
+            currentPool.kill(this);
+        } else if (currentPool != null) {
+            currentPool.killAll();
+        }
+    }
+
+    // Only one run goes at a time in a workspace, the split cache of any other seed belongs to a run that can no longer be resumed
+    private void deleteOtherSplitCaches(Path splitCache) throws IOException {
+        if (!Files.isDirectory(workspace.splitCache())) {
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(workspace.splitCache())) {
+            for (Path entry : entries) {
+                if (!entry.getFileName().equals(splitCache.getFileName())) {
+                    DatasetCache.deleteRecursively(entry);
+                }
+            }
+        }
+    }
+
+    private JobResult runJob(WorkerPool workerPool, RunJournal journal, AnalysisJob job, int[] cores, Path dataset, String datasetKey,
+                             Path splitCache, String parameters) throws IOException, InterruptedException {
+        JobResult result = journal.finishedResult(job);
+        if (result != null) {
+            return result;
+        }
+        listener.jobStarted(job);
+
+        Map<String, String> request = new LinkedHashMap<>();
+        request.put("dataset", dataset.toAbsolutePath().toString());
+        request.put("technique", job.technique());
+        request.put("model", job.model());
+        request.put("optimization", configuration.optimization);
+        request.put("cross_validation", configuration.crossValidation);
+        request.put("parameters", parameters);
+        if (job.isSample()) {
+            request.put("sample_fraction", String.valueOf(job.sampleFraction()));
+        }
+        // Every model of an iteration gets the same split, and each technique is fitted once per split
+        request.put("split_cache", splitCache.toAbsolutePath().toString());
+        request.put("split_seed", String.valueOf(journal.getSeed()));
+        request.put("iteration", String.valueOf(job.iteration()));
+        if (usesSearchCache()) {
+            request.put("search_cache", SEARCH_CACHE.toAbsolutePath().toString());
+            request.put("dataset_key", datasetKey);
+        }
+        // The worker moves itself onto the job's cores and limits its math libraries to as many threads
+        if (cores != null) {
+            request.put("cpus", Arrays.stream(cores).mapToObj(String::valueOf).collect(Collectors.joining(",")));
+            request.put("threads", String.valueOf(cores.length));
+        }
+        if (configuration.warmupRuns > 0) {
+            request.put("warmup_runs", String.valueOf(configuration.warmupRuns));
+        }
+
+        // A failing job is retried if asked for, then recorded and skipped, the rest of the run carries on
+        long jobStart = System.nanoTime();
+        try (JobLog jobLog = logs.forJob(job)) {
+            for (int attempt = 0; ; attempt++) {
+                result = attempt(workerPool, job, request, jobLog);
+                if (result.isOk() || result.status() == JobStatus.CANCELLED || attempt >= configuration.retries) {
+                    break;
+                }
+                jobLog.line("Attempt " + (attempt + 1) + " " + result.status().label() + ", retrying");
+            }
+
+            if (!result.isOk() && result.status() != JobStatus.CANCELLED) {
+                jobLog.text(result.message());
+                logs.error("Analysis " + result.status().label() + " for " + job, jobLog, result.message());
+            }
+        }
+        result = result.withElapsedMillis((System.nanoTime() - jobStart) / 1_000_000);
+
+        journal.record(result);
+        return result;
+    }
+
+    private JobResult attempt(WorkerPool workerPool, AnalysisJob job, Map<String, String> request, JobLog jobLog) throws IOException, InterruptedException {
+        long attemptStart = System.nanoTime();
+        long timeoutMillis = configuration.timeoutMillisFor(job.model());
+        Map<String, String> values;
+        double searchSeconds = -1;
+        boolean searchCached = false;
+        try {
+            Map<String, String> runRequest = request;
+            if (distributedSearch != null) {
+                DistributedSearch.Outcome outcome = distributedSearch.search((command, arguments) -> workerPool.execute(command, arguments, jobLog, timeoutMillis, this),
+                                                                             request, DistributedSearch.splits(configuration.crossValidation), jobLog);
+                if (outcome != null) {
+                    jobLog.line(outcome.description());
+                    searchSeconds = secondsSince(attemptStart);
+                    searchCached = outcome.isCached();
+                    runRequest = new LinkedHashMap<>(request);
+                    runRequest.put("best_params", outcome.bestParams());
+                }
+            }
+            values = workerPool.execute("run", runRequest, jobLog, timeoutMillis, this);
+        } catch (PythonWorker.RequestTimedOutException ex) {
+            metrics.record("job", "timed out attempt", job, secondsSince(attemptStart));
+            return cancelled ? JobResult.cancelled(job) : JobResult.timedOut(job, ex.getMessage());
+        } catch (PythonWorker.RequestFailedException | IOException ex) {
+            metrics.record("job", "failed attempt", job, secondsSince(attemptStart));
+            return cancelled ? JobResult.cancelled(job) : JobResult.failed(job, ex.getMessage());
+        }
+
+        // The phase timings go to the run metrics, the rest are the metrics of the results table
+        Map<String, Double> phaseSeconds = new LinkedHashMap<>();
+        values.entrySet().removeIf(value -> {
+            if (value.getKey().startsWith("phase.")) {
+                phaseSeconds.put(value.getKey().substring("phase.".length()), Double.parseDouble(value.getValue()));
+                return true;
+            }
+            return false;
+        });
+        // The search ran outside the final run, its wall time is part of the job's processing time as it was in a single worker
+        if (searchSeconds >= 0) {
+            phaseSeconds.put("distributed search", searchSeconds);
+            String processingTime = values.get("Processing Time");
+            if (processingTime != null) {
+                values.put("Processing Time", String.valueOf(Double.parseDouble(processingTime) + searchSeconds));
+            }
+        }
+        // The final run was handed the parameters, only the plan knows they came from the cache
+        if (searchCached) {
+            values.put("search", "cached");
+        }
+        metrics.recordJob(job, phaseSeconds, secondsSince(attemptStart));
+        return new JobResult(job, values);
+    }
+
+    private boolean usesSearchCache() {
+        return configuration.searchCache && !configuration.optimization.equals("None");
+    }
+
+    private static double secondsSince(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private void runScript(String description, String script, String... arguments) throws IOException, InterruptedException, PipelineException {
+        runScript(description, script, line -> { }, arguments);
+    }
+
+    private void runScript(String description, String script, Consumer<String> lineListener, String... arguments)
+            throws IOException, InterruptedException, PipelineException {
+        List<String> command = new ArrayList<>();
+        // The scripts run inside the workspace, where they find the results table and write the reports
+        Path python = Paths.get(configuration.python);
+        command.add(python.getNameCount() > 1 && Files.exists(python) ? python.toAbsolutePath().toString() : configuration.python);
+        command.add(Paths.get("code", script).toAbsolutePath().toString());
+        command.addAll(Arrays.asList(arguments));
+
+        long scriptStart = System.nanoTime();
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(workspace.getRoot().toAbsolutePath().toFile());
+        pb.redirectErrorStream(true);
+        Process process = pb.start();
+        scriptProcess = process;
+        // A cancel that came before the process was known
+        if (cancelled) {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+
+        AtomicReference<String> lastLine = new AtomicReference<>("");
+        try (JobLog stepLog = logs.forStep(description)) {
+            Thread pump = OutputPump.start(description + "-output", process.getInputStream(), line -> {
+                stepLog.line(line);
+                lastLine.set(line);
+                lineListener.accept(line);
+            }, () -> { });
+            int exitCode;
+            try {
+                exitCode = process.waitFor();
+            } finally {
+                scriptProcess = null;
+            }
+            pump.join();
+            metrics.record("stage", description, null, secondsSince(scriptStart));
+
+            if (cancelled) {
+                throw new PipelineException("The analysis was cancelled during the " + description + " script");
+            }
+            if (exitCode != 0) {
+                logs.error("Error on the " + description + " script", stepLog, lastLine.get());
+                throw new PipelineException("Error on the " + description + " script");
+            }
+        }
+    }
+}
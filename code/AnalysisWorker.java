@@ -0,0 +1,22 @@
+import java.io.IOException;
+import java.util.Map;
+
+// Something the worker pool can send analysis requests to: a local Python worker, or a slot of a remote worker agent
+interface AnalysisWorker extends AutoCloseable {
+    Map<String, String> execute(String command, Map<String, String> arguments, JobLog jobLog, long timeoutMillis) throws IOException, InterruptedException, PythonWorker.RequestFailedException;
+
+    int getJobsServed();
+
+    double getRssMb();
+
+    // Stops the running request right away
+    void kill();
+
+    // Whether the worker can take the next request after its last one ended with an IOException
+    default boolean survivesErrors() {
+        return false;
+    }
+
+    @Override
+    void close();
+}
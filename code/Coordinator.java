@@ -0,0 +1,419 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+// Hands analysis requests to worker agents on other machines (see WorkerAgent) over TCP
+//
+// Each agent brings a number of slots, which join the worker pool of the running analysis next to the local workers,
+// so the scheduler and the results table do not care where a job ran. A request names its cleaned dataset by the
+// dataset cache key, which is a hash of the input CSV and the cleaning options: an agent that does not have it yet
+// asks for it once and keeps it. When an agent stops answering pings or its connection drops, the requests it was
+// running fail with an AgentLostException and the worker pool runs them again on another worker
+class Coordinator implements AutoCloseable {
+    static final int PING_MILLIS = 10_000;
+    // Three pings missed in a row and the agent is considered lost
+    static final int READ_TIMEOUT_MILLIS = 30_000;
+    // Time an agent gets on top of the job time limit to report that it stopped the job itself
+    static final long TIMEOUT_GRACE_MILLIS = 30_000;
+    static final int MAX_SLOTS_PER_AGENT = 256;
+
+    // Raised for the requests of an agent that is gone, the request itself may be fine
+    static class AgentLostException extends IOException {
+        AgentLostException(String message) {
+            super(message);
+        }
+    }
+
+    private static Coordinator shared;
+
+    private final String bind;
+    private final int port;
+    private final String token;
+    private final ServerSocket serverSocket;
+    private final List<Agent> agents = new ArrayList<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private WorkerPool pool;
+    private JobLog log;
+    private volatile boolean closed;
+
+    private Coordinator(String bind, int port, String token) throws IOException {
+        this.bind = bind;
+        this.port = port;
+        this.token = token;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bind));
+        Thread.ofVirtual().name("coordinator-accept").start(this::acceptAgents);
+    }
+
+    // Agents stay connected between runs, so the same listener serves every run of this process
+    static synchronized Coordinator shared(String bind, int port, String token) throws IOException {
+        if (token.isEmpty()) {
+            throw new IllegalArgumentException("Worker agents need a token");
+        }
+        if (shared != null && (!shared.bind.equals(bind) || shared.port != port || !shared.token.equals(token))) {
+            shared.close();
+            shared = null;
+        }
+        if (shared == null) {
+            shared = new Coordinator(bind, port, token);
+        }
+        return shared;
+    }
+
+    // The slots of the connected agents and of the ones joining later go to this pool, until detach
+    synchronized void attach(WorkerPool pool, JobLog log) {
+        this.pool = pool;
+        this.log = log;
+        log.line("Listening for worker agents on " + bind + ":" + port + ", " + agents.size() + " connected");
+        for (Agent agent : agents) {
+            pool.addRemote(agent.workers);
+        }
+    }
+
+    synchronized void detach(WorkerPool pool) {
+        if (this.pool != pool) {
+            return;
+        }
+        for (Agent agent : agents) {
+            pool.removeRemote(agent.workers);
+        }
+        this.pool = null;
+        try {
+            log.close();
+        } catch (IOException e) {
+            // Only the agent events were written to it
+        }
+        log = null;
+    }
+
+    // Returns the number of agents connected, which is lower than asked for when the wait ran out or was cancelled
+    synchronized int awaitAgents(int count, long timeoutMillis, BooleanSupplier cancelled) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (agents.size() < count && !cancelled.getAsBoolean()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            // Cancelling does not notify, so the wait is cut into short pieces
+            wait(Math.min(remaining, 500));
+        }
+        return agents.size();
+    }
+
+    private synchronized void event(String line) {
+        if (log != null) {
+            log.line(line);
+        }
+    }
+
+    private void acceptAgents() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().name("agent-" + socket.getRemoteSocketAddress()).start(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    event("Accepting agents failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Agent agent = null;
+        try (AgentConnection connection = new AgentConnection(socket)) {
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            List<String> hello = connection.receive();
+            if (hello.size() != 4 || !hello.get(0).equals("HELLO")) {
+                connection.send("REJECT", "Expected HELLO <token> <name> <slots>");
+                return;
+            }
+            if (!MessageDigest.isEqual(hello.get(1).getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+                connection.send("REJECT", "Wrong token");
+                event("Agent at " + connection.remoteAddress() + " rejected, wrong token");
+                return;
+            }
+            int slots = Integer.parseInt(hello.get(3));
+            if (slots < 1 || slots > MAX_SLOTS_PER_AGENT) {
+                connection.send("REJECT", "Slots must be 1 to " + MAX_SLOTS_PER_AGENT);
+                return;
+            }
+
+            agent = new Agent(connection, hello.get(2) + " (" + connection.remoteAddress() + ")", slots);
+            connection.send("WELCOME");
+            join(agent);
+            Thread.ofVirtual().name("agent-ping").start(agent::ping);
+            agent.readReplies();
+        } catch (IOException | NumberFormatException e) {
+            if (agent != null) {
+                event("Agent " + agent.name + " lost: " + (e.getMessage() != null ? e.getMessage() : "connection closed"));
+            }
+        } finally {
+            if (agent != null) {
+                leave(agent);
+            }
+        }
+    }
+
+    private synchronized void join(Agent agent) {
+        agents.add(agent);
+        event("Agent " + agent.name + " joined with " + agent.workers.size() + " slots");
+        if (pool != null) {
+            pool.addRemote(agent.workers);
+        }
+        notifyAll();
+    }
+
+    private void leave(Agent agent) {
+        synchronized (this) {
+            agents.remove(agent);
+            if (pool != null) {
+                pool.removeRemote(agent.workers);
+            }
+        }
+        agent.lost();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Not accepting anymore either way
+        }
+        List<Agent> connected;
+        synchronized (this) {
+            connected = new ArrayList<>(agents);
+        }
+        for (Agent agent : connected) {
+            agent.connection.close();
+        }
+    }
+
+    private class Agent {
+        final AgentConnection connection;
+        final String name;
+        final List<RemoteWorker> workers = new ArrayList<>();
+        final Map<Long, CompletableFuture<List<String>>> pending = new ConcurrentHashMap<>();
+        final Map<Long, JobLog> jobLogs = new ConcurrentHashMap<>();
+        volatile boolean connected = true;
+
+        Agent(AgentConnection connection, String name, int slots) {
+            this.connection = connection;
+            this.name = name;
+            for (int slot = 0; slot < slots; slot++) {
+                workers.add(new RemoteWorker(this, slot));
+            }
+        }
+
+        void readReplies() throws IOException {
+            while (true) {
+                List<String> frame = connection.receive();
+                switch (frame.get(0)) {
+                    case "RES" -> {
+                        CompletableFuture<List<String>> reply = pending.remove(Long.parseLong(frame.get(1)));
+                        // Null for a request that was given up on already
+                        if (reply != null) {
+                            reply.complete(frame);
+                        }
+                    }
+                    case "LOG" -> {
+                        JobLog jobLog = jobLogs.get(Long.parseLong(frame.get(1)));
+                        if (jobLog != null) {
+                            jobLog.line(frame.get(2));
+                        }
+                    }
+                    case "NEED" -> Thread.ofVirtual().name("agent-dataset").start(() -> sendDataset(frame.get(1), frame.get(2)));
+                    case "PONG" -> { }
+                    default -> throw new IOException("Unexpected frame " + frame.get(0));
+                }
+            }
+        }
+
+        void ping() {
+            try {
+                while (connected) {
+                    Thread.sleep(PING_MILLIS);
+                    connection.send("PING");
+                }
+            } catch (IOException | InterruptedException e) {
+                connection.close();
+            }
+        }
+
+        // Only cache keys are served, never a path the agent made up
+        private void sendDataset(String fetchId, String key) {
+            Path directory = DatasetCache.ROOT.resolve(key);
+            try {
+                if (!key.matches("[0-9a-f]{32}") || !Files.isDirectory(directory)) {
+                    connection.send("MISSING", fetchId);
+                    return;
+                }
+                long bytes = 0;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                    for (Path file : files) {
+                        if (Files.isRegularFile(file)) {
+                            connection.sendFile(fetchId, file);
+                            bytes += Files.size(file);
+                        }
+                    }
+                }
+                connection.send("READY", fetchId);
+                event(String.format("Dataset %s sent to %s, %.1f MB", key, name, bytes / 1e6));
+            } catch (IOException e) {
+                event("Sending dataset " + key + " to " + name + " failed: " + e.getMessage());
+                connection.close();
+            }
+        }
+
+        void lost() {
+            connected = false;
+            connection.close();
+            for (CompletableFuture<List<String>> reply : pending.values()) {
+                reply.completeExceptionally(new AgentLostException("Agent " + name + " was lost"));
+            }
+            pending.clear();
+        }
+    }
+
+    // One slot of an agent, running one request at a time like a local worker
+    private class RemoteWorker implements AnalysisWorker {
+        private final Agent agent;
+        private final int slot;
+        private volatile long currentRequest = -1;
+
+        RemoteWorker(Agent agent, int slot) {
+            this.agent = agent;
+            this.slot = slot;
+        }
+
+        @Override
+        public Map<String, String> execute(String command, Map<String, String> arguments, JobLog jobLog, long timeoutMillis) throws IOException, InterruptedException, PythonWorker.RequestFailedException {
+            long id = nextRequestId.incrementAndGet();
+            List<String> frame = new ArrayList<>(List.of("REQ", String.valueOf(id), String.valueOf(timeoutMillis), command));
+            for (Map.Entry<String, String> argument : arguments.entrySet()) {
+                String value = argument.getValue();
+                // The agent has its own copy of the dataset, found by the cache key that is the name of the folder
+                if (argument.getKey().equals("dataset")) {
+                    value = Paths.get(value).getFileName().toString();
+                }
+                frame.add(argument.getKey() + "=" + value);
+            }
+
+            CompletableFuture<List<String>> reply = new CompletableFuture<>();
+            agent.pending.put(id, reply);
+            agent.jobLogs.put(id, jobLog);
+            currentRequest = id;
+            try {
+                if (!agent.connected) {
+                    throw new AgentLostException("Agent " + agent.name + " was lost");
+                }
+                try {
+                    agent.connection.send(frame);
+                } catch (IOException e) {
+                    agent.connection.close();
+                    throw new AgentLostException("Agent " + agent.name + " was lost: " + e.getMessage());
+                }
+                return parseReply(timeoutMillis > 0 ? reply.get(timeoutMillis + TIMEOUT_GRACE_MILLIS, TimeUnit.MILLISECONDS) : reply.get());
+            } catch (TimeoutException e) {
+                cancel(id);
+                throw new PythonWorker.RequestTimedOutException("No answer from agent " + agent.name + " after " + timeoutMillis / 1000.0 + " seconds, the job was stopped");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                currentRequest = -1;
+                agent.pending.remove(id);
+                agent.jobLogs.remove(id);
+            }
+        }
+
+        // RES <id> OK <key=value>... or RES <id> ERR|TIMEOUT|FAIL <message>
+        private Map<String, String> parseReply(List<String> frame) throws IOException, PythonWorker.RequestFailedException {
+            String status = frame.get(2);
+            String message = frame.size() > 3 ? frame.get(3) : "No message";
+            switch (status) {
+                case "OK" -> {
+                    Map<String, String> values = new LinkedHashMap<>();
+                    for (String field : frame.subList(3, frame.size())) {
+                        int separator = field.indexOf('=');
+                        if (separator > 0) {
+                            values.put(field.substring(0, separator), field.substring(separator + 1));
+                        }
+                    }
+                    return values;
+                }
+                case "ERR" -> throw new PythonWorker.RequestFailedException(message);
+                case "TIMEOUT" -> throw new PythonWorker.RequestTimedOutException(message + " (on agent " + agent.name + ")");
+                default -> throw new IOException(message + " (on agent " + agent.name + ")");
+            }
+        }
+
+        private void cancel(long id) {
+            try {
+                agent.connection.send("CANCEL", String.valueOf(id));
+            } catch (IOException e) {
+                // A lost agent stops its jobs by itself
+            }
+        }
+
+        // The agent recycles its own workers
+        @Override
+        public int getJobsServed() {
+            return 0;
+        }
+
+        @Override
+        public double getRssMb() {
+            return 0;
+        }
+
+        @Override
+        public void kill() {
+            long id = currentRequest;
+            if (id < 0) {
+                return;
+            }
+            cancel(id);
+            CompletableFuture<List<String>> reply = agent.pending.remove(id);
+            if (reply != null) {
+                reply.completeExceptionally(new IOException("Stopped on agent " + agent.name));
+            }
+        }
+
+        // A slot can take the next request as long as its agent is there, the agent replaces a worker that died
+        @Override
+        public boolean survivesErrors() {
+            return agent.connected;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return agent.name + " slot " + slot;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.BitSet;
+import java.util.concurrent.Semaphore;
+
+// The cores the jobs of one or more runs share, a job takes as many as its model keeps busy
+//
+// Permits go out in the order they were asked for, so a job that needs every core is not starved by the single-core
+// ones behind it, and runs sharing the budget are served first come, first served. The budget grows and shrinks with
+// the slots of remote worker agents
+//
+// Pinned jobs are also told which local cores are theirs, numbered from 0 to localCores - 1, so no two of them share one
+class CpuBudget {
+    // A semaphore that can also lose permits
+    private static class Permits extends Semaphore {
+        Permits(int permits) {
+            super(permits, true);
+        }
+
+        void shrink(int permits) {
+            reducePermits(permits);
+        }
+    }
+
+    private final int localCores;
+    private final Permits permits;
+    private final BitSet pinnedCores = new BitSet();
+
+    CpuBudget(int localCores) {
+        this.localCores = Math.max(1, localCores);
+        this.permits = new Permits(this.localCores);
+    }
+
+    int getLocalCores() {
+        return localCores;
+    }
+
+    void acquire(int cores) throws InterruptedException {
+        permits.acquire(cores);
+    }
+
+    // For a job taking back the cores it lent, it has to hold them when it ends whatever happens
+    void acquireUninterruptibly(int cores) {
+        permits.acquireUninterruptibly(cores);
+    }
+
+    void release(int cores) {
+        permits.release(cores);
+    }
+
+    // After acquire(count): the lowest free cores, a job's cores sit next to each other as long as the others allow it.
+    // Runs sharing the budget without pinning take permits but no cores, so this only waits when agents added permits
+    synchronized int[] pin(int count) throws InterruptedException {
+        while (localCores - pinnedCores.cardinality() < count) {
+            wait();
+        }
+        int[] cores = new int[count];
+        int core = 0;
+        for (int i = 0; i < count; i++) {
+            core = pinnedCores.nextClearBit(core);
+            cores[i] = core;
+            pinnedCores.set(core);
+        }
+        return cores;
+    }
+
+    synchronized void unpin(int[] cores) {
+        for (int core : cores) {
+            pinnedCores.clear(core);
+        }
+        notifyAll();
+    }
+
+    // Agents joining (positive) or leaving (negative), jobs already running on a lost agent finish on their own
+    synchronized void changeCapacity(int change) {
+        if (change > 0) {
+            permits.release(change);
+        } else if (change < 0) {
+            permits.shrink(-change);
+        }
+    }
+}
@@ -0,0 +1,492 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// The columns of a CSV, found without loading it: the file is memory mapped and split at line breaks into chunks
+// that are profiled on several threads, then the chunks are merged
+//
+// For each column: its type as pandas will read it, missing cells, distinct values (exact up to EXACT_DISTINCT, then
+// estimated with a HyperLogLog sketch) and whether it looks like a row id. The data cleaning script uses the profile to skip
+// its cell by cell type guessing and its distinct counts, and only drops the id-like columns with Remove ID Columns. A file the profiler can not follow exactly (line breaks inside
+// quoted fields, stray quotes, rows longer than the header) gets a profile marked unusable and is cleaned as before
+class CsvProfiler {
+    static final Path ROOT = Paths.get("resources", "cache", "profiles");
+    static final int EXACT_DISTINCT = 64;
+    // Below this many rows a column can not be told apart from an id by its values alone
+    static final int MIN_ID_ROWS = 100;
+    private static final long MIN_CHUNK = 1L << 20;
+    private static final long MAX_CHUNK = 256L << 20;
+    // The values pandas reads as missing by default
+    private static final Set<String> MISSING = Set.of("", "#N/A", "#N/A N/A", "#NA", "-1.#IND", "-1.#QNAN", "-NaN", "-nan", "1.#IND",
+                                                      "1.#QNAN", "<NA>", "N/A", "NA", "NULL", "NaN", "None", "n/a", "nan", "null");
+    private static final Map<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+    record Column(String name, String type, long missing, long distinct, boolean distinctExact, boolean id) {
+    }
+
+    // Unusable profiles keep the reason, the cleaning script falls back to reading the types itself
+    record Profile(long rows, List<Column> columns, String unusable) {
+        String toJson() {
+            StringBuilder json = new StringBuilder("{\"usable\":").append(unusable == null)
+                    .append(",\"reason\":").append(RunMetrics.quote(unusable == null ? "" : unusable))
+                    .append(",\"rows\":").append(rows)
+                    .append(",\"columns\":[");
+            for (int i = 0; i < columns.size(); i++) {
+                Column column = columns.get(i);
+                json.append(i == 0 ? "" : ",").append("\n{\"name\":").append(RunMetrics.quote(column.name()))
+                    .append(",\"type\":").append(RunMetrics.quote(column.type()))
+                    .append(",\"missing\":").append(column.missing())
+                    .append(",\"distinct\":").append(column.distinct())
+                    .append(",\"distinct_exact\":").append(column.distinctExact())
+                    .append(",\"id\":").append(column.id()).append('}');
+            }
+            return json.append("]}\n").toString();
+        }
+    }
+
+    private CsvProfiler() {
+    }
+
+    // The profile file of the CSV, made the first time this version of the file is seen. The interface starts it as
+    // soon as a file is chosen, a run asking for the same file meanwhile waits for that one instead of starting over
+    static Path cached(Path csv, int threads) throws IOException, InterruptedException {
+        String version = csv.toAbsolutePath().normalize() + "\n" + Files.size(csv) + "\n" + Files.getLastModifiedTime(csv).toMillis();
+        Path file = ROOT.resolve(FileHashes.sha256(version).substring(0, 32) + ".json");
+        synchronized (LOCKS.computeIfAbsent(file, key -> new Object())) {
+            if (Files.exists(file)) {
+                return file;
+            }
+            Profile profile = profile(csv, threads);
+            Files.createDirectories(ROOT);
+            Path temporary = Files.createTempFile(ROOT, file.getFileName().toString(), ".tmp");
+            try {
+                Files.writeString(temporary, profile.toJson(), StandardCharsets.UTF_8);
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            return file;
+        }
+    }
+
+    static Profile profile(Path csv, int threads) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long headerStart = startsWithByteOrderMark(channel) ? 3 : 0;
+            long dataStart = nextLine(channel, headerStart);
+            List<String> names = header(channel, headerStart, dataStart);
+            if (names == null) {
+                return unusable("the header has quoted line breaks or repeated column names");
+            }
+
+            // Chunks end at line breaks, a few per thread so a slow chunk does not hold the others up
+            long chunkSize = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, (size - dataStart) / (threads * 4L) + 1));
+            List<long[]> chunks = new ArrayList<>();
+            for (long start = dataStart; start < size; ) {
+                long end = start + chunkSize >= size ? size : nextLine(channel, start + chunkSize);
+                chunks.add(new long[] {start, end});
+                start = end;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chunks.size())));
+            try {
+                List<Future<Chunk>> futures = new ArrayList<>();
+                for (long[] chunk : chunks) {
+                    futures.add(executor.submit(() -> Chunk.parse(channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]), names.size())));
+                }
+                Chunk whole = new Chunk(names.size());
+                for (Future<Chunk> future : futures) {
+                    Chunk chunk = future.get();
+                    if (chunk.unusable != null) {
+                        return unusable(chunk.unusable);
+                    }
+                    whole.merge(chunk);
+                }
+                return whole.profile(names);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not profile " + csv.getFileName(), e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static Profile unusable(String reason) {
+        return new Profile(0, List.of(), reason);
+    }
+
+    private static boolean startsWithByteOrderMark(FileChannel channel) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(3);
+        channel.read(start, 0);
+        return start.position() == 3 && (start.get(0) & 0xff) == 0xef && (start.get(1) & 0xff) == 0xbb && (start.get(2) & 0xff) == 0xbf;
+    }
+
+    // The position after the next line break at or after from, or the end of the file
+    private static long nextLine(FileChannel channel, long from) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = from;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    // The column names as pandas makes them, null when they can not be matched up
+    private static List<String> header(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer line = ByteBuffer.allocate((int) (end - start));
+        channel.read(line, start);
+        int length = line.position();
+        while (length > 0 && (line.get(length - 1) == '\n' || line.get(length - 1) == '\r')) {
+            length--;
+        }
+        List<String> names = new ArrayList<>();
+        boolean parsed = Chunk.fields(line, 0, length, (buffer, from, to) -> {
+            byte[] bytes = new byte[to - from];
+            buffer.get(from, bytes);
+            String name = new String(bytes, StandardCharsets.UTF_8).replace("\"\"", "\"");
+            names.add(name.isEmpty() ? "Unnamed: " + names.size() : name);
+            return true;
+        });
+        return parsed && new HashSet<>(names).size() == names.size() ? names : null;
+    }
+
+    interface FieldVisitor {
+        boolean field(ByteBuffer buffer, int from, int to);
+    }
+
+    // The rows of one chunk, or of the whole file once the chunks are merged in order
+    private static class Chunk {
+        final ColumnStats[] columns;
+        long rows;
+        String unusable;
+
+        Chunk(int columnCount) {
+            columns = new ColumnStats[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columns[i] = new ColumnStats();
+            }
+        }
+
+        static Chunk parse(MappedByteBuffer buffer, int columnCount) {
+            Chunk chunk = new Chunk(columnCount);
+            int position = 0;
+            int end = buffer.limit();
+            while (position < end && chunk.unusable == null) {
+                int lineEnd = position;
+                while (lineEnd < end && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                int contentEnd = lineEnd > position && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+                // pandas skips blank lines
+                if (contentEnd > position) {
+                    chunk.row(buffer, position, contentEnd);
+                }
+                position = lineEnd + 1;
+            }
+            return chunk;
+        }
+
+        private void row(ByteBuffer buffer, int from, int to) {
+            int[] column = {0};
+            boolean parsed = fields(buffer, from, to, (bytes, fieldFrom, fieldTo) -> {
+                if (column[0] >= columns.length) {
+                    return false;
+                }
+                columns[column[0]++].add(bytes, fieldFrom, fieldTo);
+                return true;
+            });
+            if (!parsed) {
+                unusable = "a row has more fields than the header, a quoted line break or a stray quote";
+                return;
+            }
+            // Short rows are filled with missing values, as pandas does
+            for (int i = column[0]; i < columns.length; i++) {
+                columns[i].addMissing();
+            }
+            rows++;
+        }
+
+        // Splits a line on commas, a field may be quoted with "" for a quote inside it. False for what pandas would
+        // read differently from a simple split
+        static boolean fields(ByteBuffer buffer, int from, int to, FieldVisitor visitor) {
+            int position = from;
+            while (true) {
+                int fieldFrom;
+                int fieldTo;
+                int next;
+                if (position < to && buffer.get(position) == '"') {
+                    int quote = position + 1;
+                    while (true) {
+                        if (quote >= to) {
+                            return false;
+                        }
+                        if (buffer.get(quote) == '"') {
+                            if (quote + 1 < to && buffer.get(quote + 1) == '"') {
+                                quote += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        quote++;
+                    }
+                    fieldFrom = position + 1;
+                    fieldTo = quote;
+                    next = quote + 1;
+                    if (next < to && buffer.get(next) != ',') {
+                        return false;
+                    }
+                } else {
+                    int comma = position;
+                    while (comma < to && buffer.get(comma) != ',') {
+                        if (buffer.get(comma) == '"') {
+                            return false;
+                        }
+                        comma++;
+                    }
+                    fieldFrom = position;
+                    fieldTo = comma;
+                    next = comma;
+                }
+                if (!visitor.field(buffer, fieldFrom, fieldTo)) {
+                    return false;
+                }
+                if (next >= to) {
+                    return true;
+                }
+                position = next + 1;
+            }
+        }
+
+        void merge(Chunk next) {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].merge(next.columns[i]);
+            }
+            rows += next.rows;
+        }
+
+        Profile profile(List<String> names) {
+            List<Column> profiled = new ArrayList<>();
+            for (int i = 0; i < columns.length; i++) {
+                ColumnStats stats = columns[i];
+                String type = stats.type();
+                long distinct = stats.distinct();
+                boolean complete = stats.missing == 0 && rows >= MIN_ID_ROWS;
+                // The last column is the target. Unique labels can not be used as a feature, and a counter going up by
+                // one every row is a row number, not a measurement
+                boolean id = i < columns.length - 1
+                             && (names.get(i).equals("id")
+                                 || complete && type.equals("text") && distinct >= 0.97 * rows
+                                 || complete && type.equals("integer") && stats.sequential);
+                profiled.add(new Column(names.get(i), type, stats.missing, distinct, stats.exact != null, id));
+            }
+            return new Profile(rows, profiled, null);
+        }
+    }
+
+    private static class ColumnStats {
+        long missing;
+        long present;
+        long numbers;
+        long integers;
+        long withDigits;
+        final HyperLogLog sketch = new HyperLogLog();
+        // Hashes of the values while there are few of them, null after
+        Set<Long> exact = new HashSet<>();
+        // Every value so far one more than the one before, first and last kept to check across chunks
+        boolean sequential = true;
+        Long first;
+        long last;
+
+        void addMissing() {
+            missing++;
+        }
+
+        void add(ByteBuffer buffer, int from, int to) {
+            if (to - from <= 8 && isMissing(buffer, from, to)) {
+                missing++;
+                return;
+            }
+            present++;
+
+            boolean digits = false;
+            for (int i = from; i < to && !digits; i++) {
+                byte b = buffer.get(i);
+                digits = b >= '0' && b <= '9';
+            }
+            if (digits) {
+                withDigits++;
+                int kind = numberKind(buffer, from, to);
+                if (kind > 0) {
+                    numbers++;
+                }
+                if (kind == 2 && to - from <= 18) {
+                    integers++;
+                    long value = parseLong(buffer, from, to);
+                    if (first == null) {
+                        first = value;
+                    } else if (value != last + 1) {
+                        sequential = false;
+                    }
+                    last = value;
+                } else {
+                    sequential = false;
+                }
+            } else {
+                sequential = false;
+            }
+
+            long hash = HyperLogLog.hash(buffer, from, to);
+            sketch.add(hash);
+            if (exact != null && exact.add(hash) && exact.size() > EXACT_DISTINCT) {
+                exact = null;
+            }
+        }
+
+        void merge(ColumnStats next) {
+            if (next.first != null) {
+                sequential = sequential && next.sequential && (first == null || next.first == last + 1);
+                if (first == null) {
+                    first = next.first;
+                }
+                last = next.last;
+            } else if (next.present > 0) {
+                sequential = false;
+            }
+            missing += next.missing;
+            present += next.present;
+            numbers += next.numbers;
+            integers += next.integers;
+            withDigits += next.withDigits;
+            sketch.merge(next.sketch);
+            if (exact != null && next.exact != null) {
+                exact.addAll(next.exact);
+                if (exact.size() > EXACT_DISTINCT) {
+                    exact = null;
+                }
+            } else {
+                exact = null;
+            }
+        }
+
+        // What pandas makes of the column: numbers when every value is one, text when no value has a digit (the cleaning
+        // script leaves those as they are) and mixed when the script has to convert the values with digits
+        String type() {
+            if (present == 0) {
+                return "empty";
+            }
+            if (numbers == present) {
+                return integers == present ? "integer" : "float";
+            }
+            return withDigits == 0 ? "text" : "mixed";
+        }
+
+        long distinct() {
+            return exact != null ? exact.size() : Math.max(EXACT_DISTINCT + 1, sketch.estimate());
+        }
+
+        private static boolean isMissing(ByteBuffer buffer, int from, int to) {
+            if (from == to) {
+                return true;
+            }
+            // None of the missing markers ends with a digit, most numbers are done here
+            byte lastByte = buffer.get(to - 1);
+            if (lastByte >= '0' && lastByte <= '9') {
+                return false;
+            }
+            byte[] bytes = new byte[to - from];
+            buffer.get(from, bytes);
+            return MISSING.contains(new String(bytes, StandardCharsets.US_ASCII));
+        }
+
+        // 0 for no number, 1 for a decimal number, 2 for an integer. Spaces around the number are allowed, as in pandas
+        private static int numberKind(ByteBuffer buffer, int from, int to) {
+            while (from < to && buffer.get(from) == ' ') {
+                from++;
+            }
+            while (to > from && buffer.get(to - 1) == ' ') {
+                to--;
+            }
+            int position = from;
+            if (position < to && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+                position++;
+            }
+            int digits = 0;
+            while (position < to && isDigit(buffer.get(position))) {
+                position++;
+                digits++;
+            }
+            if (position == to) {
+                return digits > 0 ? 2 : 0;
+            }
+            if (buffer.get(position) == '.') {
+                position++;
+                while (position < to && isDigit(buffer.get(position))) {
+                    position++;
+                    digits++;
+                }
+            }
+            if (digits == 0) {
+                return 0;
+            }
+            if (position < to && (buffer.get(position) == 'e' || buffer.get(position) == 'E')) {
+                position++;
+                if (position < to && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+                    position++;
+                }
+                int exponentDigits = 0;
+                while (position < to && isDigit(buffer.get(position))) {
+                    position++;
+                    exponentDigits++;
+                }
+                if (exponentDigits == 0) {
+                    return 0;
+                }
+            }
+            return position == to ? 1 : 0;
+        }
+
+        private static boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+
+        private static long parseLong(ByteBuffer buffer, int from, int to) {
+            long value = 0;
+            boolean negative = false;
+            for (int i = from; i < to; i++) {
+                byte b = buffer.get(i);
+                if (b == '-') {
+                    negative = true;
+                } else if (isDigit(b)) {
+                    value = value * 10 + (b - '0');
+                }
+            }
+            return negative ? -value : value;
+        }
+    }
+}
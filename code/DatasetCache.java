@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+// Cleaned datasets, keyed by the content of the input CSV, the selected data cleaning options and the content of the
+// cleaning script, so a change to the cleaning never reuses data cleaned the old way
+//
+// A run or an agent request pins its dataset while it uses it, and the eviction of the least recently used datasets
+// skips the pinned ones. Within a process the pins are counted, across processes (a queue service next to the
+// interface) each pinned dataset holds a shared lock on its <key>.lock file, which the eviction has to lock exclusively
+class DatasetCache {
+    static final Path ROOT = Paths.get("resources", "cache", "datasets");
+    static final int MAX_DATASETS = Integer.getInteger("mlanalyzer.cache.maxDatasets", 8);
+    static final Path CLEANING_SCRIPT = Paths.get("code", "program_data_cleaning.py");
+
+    interface Cleaner {
+        void clean(Path outputDirectory) throws Exception;
+    }
+
+    // Released once the dataset is no longer used, a dataset stays pinned until all of its pins are
+    interface Pin extends AutoCloseable {
+        @Override
+        void close() throws IOException;
+    }
+
+    // The shared lock of a pinned dataset and how many pins hold it in this process
+    private static class Holder {
+        final FileChannel channel;
+        final FileLock lock;
+        int pins;
+
+        Holder(FileChannel channel, FileLock lock) {
+            this.channel = channel;
+            this.lock = lock;
+        }
+    }
+
+    // Pinning and eviction take turns, so the file locks of this process never overlap. A lock rather than a monitor,
+    // agent requests pin from virtual threads
+    private static final ReentrantLock PINS_LOCK = new ReentrantLock();
+    private static final Map<Path, Holder> PINS = new HashMap<>();
+
+    private final Path root;
+
+    DatasetCache(Path root) {
+        this.root = root;
+    }
+
+    // Chunked cleaning estimates some statistics and keeps the rows in file order, so its datasets are kept apart
+    static String key(String inputHash, String cleaningHash, List<String> dataCleaning, boolean streaming) {
+        return FileHashes.sha256(inputHash + "\n" + cleaningHash + "\n" + String.join(", ", dataCleaning) + (streaming ? "\nstreaming" : "")).substring(0, 32);
+    }
+
+    Path directory(String key) {
+        return root.resolve(key);
+    }
+
+    boolean contains(String key) {
+        return Files.isDirectory(directory(key));
+    }
+
+    private Path lockFile(String key) {
+        return root.resolve(key + ".lock").toAbsolutePath().normalize();
+    }
+
+    // Taken before get, so the dataset can not be evicted between its cleaning and the end of its use
+    Pin pin(String key) throws IOException {
+        Path lockFile = lockFile(key);
+        PINS_LOCK.lock();
+        try {
+            Holder holder = PINS.get(lockFile);
+            if (holder == null) {
+                Files.createDirectories(root);
+                FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                try {
+                    // Waits for an eviction of this dataset by another process to finish, get then cleans it again
+                    holder = new Holder(channel, channel.lock(0, Long.MAX_VALUE, true));
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                PINS.put(lockFile, holder);
+            }
+            holder.pins++;
+        } finally {
+            PINS_LOCK.unlock();
+        }
+
+        boolean[] released = new boolean[1];
+        return () -> {
+            PINS_LOCK.lock();
+            try {
+                if (released[0]) {
+                    return;
+                }
+                released[0] = true;
+                Holder holder = PINS.get(lockFile);
+                if (--holder.pins == 0) {
+                    PINS.remove(lockFile);
+                    holder.lock.release();
+                    holder.channel.close();
+                }
+            } finally {
+                PINS_LOCK.unlock();
+            }
+        };
+    }
+
+    // Returns the cached dataset, cleaning it first when this input and these options were never seen before
+    Path get(String key, Cleaner cleaner) throws Exception {
+        Path directory = directory(key);
+        if (Files.isDirectory(directory)) {
+            Files.setLastModifiedTime(directory, FileTime.fromMillis(System.currentTimeMillis()));
+            return directory;
+        }
+
+        // Cleaned into a private folder and moved in one step, so a half written dataset is never picked up
+        Files.createDirectories(root);
+        Path temporary = Files.createTempDirectory(root, key + ".tmp");
+        try {
+            cleaner.clean(temporary);
+            Files.move(temporary, directory, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+            // Another run cleaned the same dataset in the meantime
+        } finally {
+            deleteRecursively(temporary);
+        }
+
+        evictOldest();
+        return directory;
+    }
+
+    private void evictOldest() throws IOException {
+        List<Path> datasets = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry) && !entry.getFileName().toString().contains(".tmp")) {
+                    datasets.add(entry);
+                }
+            }
+        }
+        if (datasets.size() <= MAX_DATASETS) {
+            return;
+        }
+
+        // The oldest datasets nobody is using go, a pinned one stays even when that leaves more than MAX_DATASETS
+        datasets.sort(Comparator.comparing(DatasetCache::lastModified));
+        int excess = datasets.size() - MAX_DATASETS;
+        PINS_LOCK.lock();
+        try {
+            for (Path dataset : datasets) {
+                if (excess == 0) {
+                    break;
+                }
+                if (evictUnpinned(dataset)) {
+                    excess--;
+                }
+            }
+        } finally {
+            PINS_LOCK.unlock();
+        }
+    }
+
+    private boolean evictUnpinned(Path dataset) throws IOException {
+        Path lockFile = lockFile(dataset.getFileName().toString());
+        if (PINS.containsKey(lockFile)) {
+            return false;
+        }
+        // The lock file is kept, a process about to pin the dataset may have it open already
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            if (lock == null) {
+                return false;
+            }
+            deleteRecursively(dataset);
+            return true;
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path entry : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+}
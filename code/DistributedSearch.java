@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.ToIntFunction;
+
+// The Grid or Random Search of one job spread over the worker pool, instead of running inside a single worker
+//
+// A worker lists the candidates, then every (candidate, fold) of the inner 5-fold cross-validation is a request of its
+// own, so a single big search can keep every worker busy. Each split of the job (the hold-out split, or each K-Fold fold)
+// gets its own search. A candidate runs its folds one after the other and is stopped once its mean score so far is below
+// the median of the other candidates after the same number of folds (median pruning). The best complete candidate of
+// each split is handed to the final run, which then only fits and evaluates it
+//
+// Each score request takes as many cores from the budget as a job of its model would. The job running the search only
+// waits meanwhile, so it lends its own cores to its score requests and takes them back for the final run
+class DistributedSearch {
+    static final int FOLDS = 5;
+    // Candidates that finish a fold before pruning starts for that fold, the median of fewer says little
+    static final int STARTUP_CANDIDATES = 4;
+
+    interface Evaluator {
+        Map<String, String> execute(String command, Map<String, String> request) throws IOException, InterruptedException, PythonWorker.RequestFailedException;
+    }
+
+    record Outcome(String bestParams, int candidates, int evaluations, int pruned, int failed, String description) {
+        // Taken from the search cache, nothing was searched
+        boolean isCached() {
+            return candidates == 0;
+        }
+    }
+
+    // Running means of the candidates of one split, by the number of folds they are based on
+    private static class Pruner {
+        private final List<List<Double>> meansByFolds = new ArrayList<>();
+
+        synchronized boolean shouldStop(int folds, double mean) {
+            while (meansByFolds.size() < folds) {
+                meansByFolds.add(new ArrayList<>());
+            }
+            List<Double> others = new ArrayList<>(meansByFolds.get(folds - 1));
+            meansByFolds.get(folds - 1).add(mean);
+            if (folds == FOLDS || others.size() < STARTUP_CANDIDATES) {
+                return false;
+            }
+            Collections.sort(others);
+            int middle = others.size() / 2;
+            double median = others.size() % 2 == 1 ? others.get(middle) : (others.get(middle - 1) + others.get(middle)) / 2;
+            return mean < median;
+        }
+    }
+
+    private record Score(String split, String candidate, double mean, int folds, boolean pruned, boolean failed) {
+    }
+
+    private final ExecutorService executor;
+    private final BooleanSupplier cancelled;
+    private final CpuBudget cores;
+    private final ToIntFunction<String> coresFor;
+
+    DistributedSearch(ExecutorService executor, BooleanSupplier cancelled, CpuBudget cores, ToIntFunction<String> coresFor) {
+        this.executor = executor;
+        this.cancelled = cancelled;
+        this.cores = cores;
+        this.coresFor = coresFor;
+    }
+
+    static List<String> splits(String crossValidation) {
+        if (crossValidation.equals("K-Fold")) {
+            return List.of("fold 1", "fold 2", "fold 3", "fold 4", "fold 5");
+        }
+        return List.of("hold-out");
+    }
+
+    // Null when the model has nothing to search, the run request then goes through unchanged. Called by a job holding
+    // the cores of its model
+    Outcome search(Evaluator evaluator, Map<String, String> request, List<String> splits, JobLog jobLog) throws IOException, InterruptedException, PythonWorker.RequestFailedException {
+        Map<String, String> plan = evaluator.execute("plan_search", request);
+        // Already a JSON object of the parameters of each split
+        String cached = plan.get("cached");
+        if (cached != null) {
+            return new Outcome(cached, 0, 0, 0, 0, "Search results reused from the search cache: " + cached);
+        }
+
+        List<String> candidates = new ArrayList<>();
+        int count = Integer.parseInt(plan.getOrDefault("candidates", "0"));
+        for (int i = 0; i < count; i++) {
+            candidates.add(plan.get("candidate." + i));
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        int jobCores = coresFor.applyAsInt(request.get("model"));
+        List<Future<Score>> futures = new ArrayList<>();
+        cores.release(jobCores);
+        try {
+            for (String split : splits) {
+                Pruner pruner = new Pruner();
+                for (String candidate : candidates) {
+                    futures.add(executor.submit(() -> evaluate(evaluator, request, split, candidate, pruner, jobLog)));
+                }
+            }
+
+            Map<String, Score> best = new LinkedHashMap<>();
+            int evaluations = 0;
+            int pruned = 0;
+            int failed = 0;
+            for (Future<Score> future : futures) {
+                Score score = future.get();
+                evaluations += score.folds();
+                pruned += score.pruned() ? 1 : 0;
+                failed += score.failed() ? 1 : 0;
+                Score current = best.get(score.split());
+                if (!score.pruned() && !score.failed() && (current == null || score.mean() > current.mean())) {
+                    best.put(score.split(), score);
+                }
+            }
+
+            Map<String, String> bestBySplit = new LinkedHashMap<>();
+            StringBuilder description = new StringBuilder(String.format(Locale.ROOT, "Search: %d candidates x %d folds on %d split(s), %d fits, %d pruned, %d failed",
+                                                                        candidates.size(), FOLDS, splits.size(), evaluations, pruned, failed));
+            for (String split : splits) {
+                Score score = best.get(split);
+                if (score == null) {
+                    throw new PythonWorker.RequestFailedException("Every search candidate failed on the " + split + " split");
+                }
+                bestBySplit.put(split, score.candidate());
+                description.append(String.format(Locale.ROOT, "%n  %s: %s, mean score %.4f", split, score.candidate(), score.mean()));
+            }
+            return new Outcome(toJson(bestBySplit), candidates.size(), evaluations, pruned, failed, description.toString());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof InterruptedException interruptedException) {
+                throw interruptedException;
+            }
+            throw new IOException(cause);
+        } finally {
+            for (Future<Score> future : futures) {
+                future.cancel(true);
+            }
+            cores.acquireUninterruptibly(jobCores);
+        }
+    }
+
+    // The folds of one candidate in order. A fold that fails drops the candidate, like GridSearchCV does,
+    // a fold over the time limit or a lost worker fails the whole search
+    private Score evaluate(Evaluator evaluator, Map<String, String> request, String split, String candidate, Pruner pruner, JobLog jobLog) throws IOException, InterruptedException {
+        double sum = 0;
+        for (int fold = 0; fold < FOLDS; fold++) {
+            if (cancelled.getAsBoolean()) {
+                throw new IOException("Cancelled");
+            }
+            Map<String, String> scoreRequest = new LinkedHashMap<>(request);
+            scoreRequest.put("outer_fold", split);
+            scoreRequest.put("candidate", candidate);
+            scoreRequest.put("fold", String.valueOf(fold));
+            scoreRequest.put("folds", String.valueOf(FOLDS));
+            int requestCores = coresFor.applyAsInt(request.get("model"));
+            cores.acquire(requestCores);
+            try {
+                sum += Double.parseDouble(evaluator.execute("score", scoreRequest).getOrDefault("score", "NaN"));
+            } catch (PythonWorker.RequestFailedException | NumberFormatException e) {
+                jobLog.line("Candidate " + candidate + " failed on " + split + ", fold " + (fold + 1) + ": " + lastLine(e.getMessage()));
+                return new Score(split, candidate, Double.NaN, fold + 1, false, true);
+            } finally {
+                cores.release(requestCores);
+            }
+            if (Double.isNaN(sum)) {
+                jobLog.line("Candidate " + candidate + " has no score on " + split + ", fold " + (fold + 1));
+                return new Score(split, candidate, Double.NaN, fold + 1, false, true);
+            }
+            if (pruner.shouldStop(fold + 1, sum / (fold + 1))) {
+                return new Score(split, candidate, sum / (fold + 1), fold + 1, true, false);
+            }
+        }
+        return new Score(split, candidate, sum / FOLDS, FOLDS, false, false);
+    }
+
+    private static String lastLine(String message) {
+        if (message == null) {
+            return "no message";
+        }
+        String stripped = message.strip();
+        return stripped.substring(stripped.lastIndexOf('\n') + 1);
+    }
+
+    // The candidates are JSON objects already, the split names need no escaping
+    private static String toJson(Map<String, String> bestBySplit) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, String> entry : bestBySplit.entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append('"').append(entry.getKey()).append("\": ").append(entry.getValue());
+        }
+        return json.append('}').toString();
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+// Runs an analysis without the user interface, for servers and scripted benchmarks
+//
+//     java -cp bin HeadlessRunner --csv "csv_examples/example - Iris.csv" --models "Naive Bayes,SVM" --iterations 30
+//     java -cp bin HeadlessRunner --spec run.properties
+//     java -cp bin HeadlessRunner --spec run.properties --submit true
+//
+// With --submit the run is only added to the run queue, see QueueService
+// Options given on the command line override the ones in the spec file, see RunConfiguration.fromProperties for the keys
+public class HeadlessRunner {
+    static final int EXIT_OK = 0;
+    static final int EXIT_JOBS_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+    static final int EXIT_RUN_FAILED = 3;
+    static final int EXIT_ALREADY_RUNNING = 4;
+    static final int EXIT_CANCELLED = 130;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        RunConfiguration configuration;
+        boolean showOutput;
+        boolean submit;
+        try {
+            Properties spec = parseArguments(args);
+            configuration = RunConfiguration.fromProperties(spec);
+            configuration.validate();
+            showOutput = Boolean.parseBoolean(spec.getProperty("show-output", "false").trim());
+            submit = Boolean.parseBoolean(spec.getProperty("submit", "false").trim());
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage();
+            return EXIT_USAGE;
+        }
+
+        // Queued runs have folders of their own, they do not need the main folder to themselves
+        if (submit) {
+            try {
+                RunQueue queue = new RunQueue(RunQueue.ROOT);
+                String id = queue.submit(configuration);
+                System.out.println("Queued as '" + id + "', the results will be in " + RunWorkspace.forQueuedRun(id));
+                if (!queue.isServiceRunning()) {
+                    System.out.println("No queue service is running in this folder, start one with: java -cp bin QueueService");
+                }
+                return EXIT_OK;
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+                return EXIT_RUN_FAILED;
+            }
+        }
+
+        if (!InstanceLock.acquire()) {
+            System.err.println("Error: another MLAnalyzer instance is running in this folder");
+            return EXIT_ALREADY_RUNNING;
+        }
+
+        System.out.println("MLAnalyzer headless run");
+        System.out.println(configuration);
+        System.out.println();
+
+        ConsoleListener listener = new ConsoleListener(showOutput);
+        AnalysisPipeline pipeline = new AnalysisPipeline(configuration, listener);
+
+        // Ctrl+C cancels the run and waits for it to wind down, so the journal and results.csv stay consistent
+        CountDownLatch finished = new CountDownLatch(1);
+        Thread cancelOnInterrupt = new Thread(() -> {
+            if (finished.getCount() > 0) {
+                System.err.println("Cancelling, finished analyses are kept and the next run resumes from them");
+                pipeline.cancel();
+                try {
+                    finished.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(cancelOnInterrupt);
+
+        try {
+            PipelineResult result = pipeline.run();
+            listener.printSummary(result);
+            if (result.cancelled()) {
+                return EXIT_CANCELLED;
+            }
+            return result.failedJobs().isEmpty() ? EXIT_OK : EXIT_JOBS_FAILED;
+        } catch (PipelineException e) {
+            System.err.println("Error: " + e.getMessage() + ", details are in " + RunWorkspace.MAIN.errorLog());
+            return EXIT_RUN_FAILED;
+        } catch (Exception e) {
+            System.err.println("Error: " + e);
+            return EXIT_RUN_FAILED;
+        } finally {
+            InstanceLock.release();
+            finished.countDown();
+        }
+    }
+
+    static Properties parseArguments(String[] args) throws IOException {
+        Properties spec = new Properties();
+        Properties overrides = new Properties();
+
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected '--option value', got '" + args[i] + "'");
+            }
+            String key = args[i].substring(2);
+            String value = args[++i];
+            if (key.equals("spec")) {
+                try (Reader reader = Files.newBufferedReader(Paths.get(value), StandardCharsets.UTF_8)) {
+                    spec.load(reader);
+                }
+            } else {
+                overrides.setProperty(key, value);
+            }
+        }
+
+        spec.putAll(overrides);
+        return spec;
+    }
+
+    private static void printUsage() {
+        System.err.println();
+        System.err.println("Usage: java -cp bin HeadlessRunner [--spec file.properties] [--option value ...]");
+        System.err.println("  --csv <file>                input CSV, the target must be the last column");
+        System.err.println("  --cleaning <a,b>            " + String.join(", ", RunConfiguration.DATA_CLEANING));
+        System.err.println("  --techniques <a,b>          " + String.join(", ", RunConfiguration.TECHNIQUES));
+        System.err.println("  --models <a,b>              " + String.join(", ", RunConfiguration.MODELS));
+        System.err.println("  --optimization <name>       " + String.join(", ", RunConfiguration.OPTIMIZATIONS));
+        System.err.println("  --cross-validation <name>   " + String.join(", ", RunConfiguration.CROSS_VALIDATIONS));
+        System.err.println("  --iterations <n>            1 to 999");
+        System.err.println("  --parameters <a,b>          " + String.join(", ", RunConfiguration.PARAMETERS));
+        System.err.println("  --parallel-jobs <n>         defaults to the number of cores");
+        System.err.println("  --python <executable>       defaults to 'python'");
+        System.err.println("  --pin-cores <true|false>    pin each job to cores of its own and give its math libraries that many threads,");
+        System.err.println("                              for timings as steady as one job at a time; not with agents or distributed search");
+        System.err.println("  --warmup-runs <n>           unmeasured runs of each technique and model per worker before the first measured one");
+        System.err.println("  --cleaning-memory <MB>      clean the CSV in chunks within about this much memory, 0 (the default) reads it whole");
+        System.err.println("  --job-timeout <seconds>     time limit for each analysis, 0 for none");
+        System.err.println("  --model-timeouts <m=s,...>  time limits for single models, e.g. SVM=600,MLP=1200");
+        System.err.println("  --retries <n>               times a failed or timed out analysis is run again, defaults to 0");
+        System.err.println("  --adaptive <true|false>     repeat each pair only until the metric's 95% confidence interval is narrow enough,");
+        System.err.println("                              'iterations' is then the maximum");
+        System.err.println("  --min-iterations <n>        adaptive minimum per pair, defaults to 5");
+        System.err.println("  --tolerance <x>             adaptive half width of the interval, in units of the metric, defaults to 0.01");
+        System.err.println("  --adaptive-metric <name>    metric the interval is computed on, defaults to the first parameter");
+        System.err.println("  --racing <true|false>       run every pair on growing stratified samples first and drop the weakest each round,");
+        System.err.println("                              only the survivors run 'iterations' times on the full data");
+        System.err.println("  --racing-rounds <n>         rounds including the full-data one, defaults to 3");
+        System.err.println("  --racing-keep <x>           share of the pairs kept after each round, also the sample growth, defaults to 0.5");
+        System.err.println("  --racing-iterations <n>     iterations per pair in each sample round, defaults to 3");
+        System.err.println("  --search-cache <true|false> reuse the parameters found by an earlier Grid or Random Search of the same");
+        System.err.println("                              dataset, technique and model, until the search configuration changes");
+        System.err.println("  --distributed-search <true|false>");
+        System.err.println("                              spread each Grid or Random Search over all workers, stopping weak candidates early");
+        System.err.println("  --coordinator-port <n>      let worker agents on other machines (java WorkerAgent) connect on this port and");
+        System.err.println("                              take jobs next to the local workers, 0 (default) for none");
+        System.err.println("  --coordinator-bind <address> address the coordinator listens on, defaults to " + RunConfiguration.DEFAULT_COORDINATOR_BIND + " (this machine only),");
+        System.err.println("                              use the address of the network the agents are on, or 0.0.0.0 for every interface");
+        System.err.println("  --agent-token <text>        shared secret the agents must present, required with --coordinator-port");
+        System.err.println("  --wait-for-agents <n>       wait up to " + RunConfiguration.AGENT_WAIT_SECONDS + " seconds for this many agents before the analysis starts");
+        System.err.println("  --submit <true|false>       only add the run to the run queue, the QueueService runs it in its own folder");
+        System.err.println("  --show-output <true|false>  print what the jobs print as it happens, it is always kept in the logs folder");
+        System.err.println("Exit codes: 0 done, 1 done with failed analyses, 2 bad arguments, 3 run failed, 4 already running, 130 cancelled with Ctrl+C");
+    }
+
+    private static class ConsoleListener implements PipelineListener {
+        private final long startTime = System.nanoTime();
+        private final Map<String, long[]> modelTimes = new TreeMap<>();
+        private final boolean showOutput;
+
+        ConsoleListener(boolean showOutput) {
+            this.showOutput = showOutput;
+        }
+
+        @Override
+        public void output(String source, String line) {
+            if (showOutput) {
+                System.out.println("    " + source + " | " + line);
+            }
+        }
+
+        @Override
+        public void stageStarted(String stage) {
+            System.out.printf("[%8.1fs] %s%n", secondsSinceStart(), stage);
+        }
+
+        @Override
+        public synchronized void jobFinished(JobResult result, int jobsDone, int totalJobs) {
+            String status = result.isOk() ? String.format("%.2fs", result.elapsedMillis() / 1000.0) : result.status().label().toUpperCase();
+            System.out.printf("[%8.1fs] %d/%d %s %s%n", secondsSinceStart(), jobsDone, totalJobs, result.job(), status);
+
+            if (result.isOk() && result.elapsedMillis() > 0) {
+                long[] times = modelTimes.computeIfAbsent(result.job().model(), model -> new long[2]);
+                times[0]++;
+                times[1] += result.elapsedMillis();
+            }
+        }
+
+        synchronized void printSummary(PipelineResult result) {
+            double minutes = result.elapsedMillis() / 60000.0;
+            System.out.println();
+            System.out.println("Summary");
+            System.out.printf("  jobs            %d (%d failed)%s%n", result.totalJobs(), result.failedJobs().size(), result.cancelled() ? ", cancelled" : "");
+            System.out.printf("  rows written    %d to %s%n", result.rowsWritten(), RunWorkspace.MAIN.resultsCsv());
+            System.out.printf("  wall time       %.1fs%n", result.elapsedMillis() / 1000.0);
+            System.out.printf("  throughput      %.1f jobs/min%n", minutes > 0 ? result.totalJobs() / minutes : 0.0);
+            for (Map.Entry<String, long[]> entry : modelTimes.entrySet()) {
+                long[] times = entry.getValue();
+                System.out.printf("  %-15s %d jobs, %.2fs average%n", entry.getKey(), times[0], times[1] / 1000.0 / times[0]);
+            }
+            for (AnalysisJob job : result.failedJobs()) {
+                System.out.println("  failed: " + job);
+            }
+
+            // Also in phase_breakdown.csv in the run's log folder, every single measurement is in metrics.jsonl
+            System.out.println();
+            System.out.println("Time per phase");
+            for (RunMetrics.PhaseTotal phase : result.phases()) {
+                System.out.printf("  %-7s %-20s %6d x %9.3fs = %9.1fs%n", phase.scope(), phase.phase(), phase.count(),
+                                  phase.seconds() / phase.count(), phase.seconds());
+            }
+        }
+
+        private double secondsSinceStart() {
+            return (System.nanoTime() - startTime) / 1e9;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+// Keeps two instances from writing to the same resources and results folders of the main folder, queued runs have their own
+final class InstanceLock {
+    private static final String LOCK_FILE_PATH = "program.lock";
+    private static RandomAccessFile lockFile;
+    private static FileLock lock;
+
+    private InstanceLock() {
+    }
+
+    static boolean acquire() {
+        try {
+            lockFile = new RandomAccessFile(LOCK_FILE_PATH, "rw");
+            FileChannel channel = lockFile.getChannel();
+            lock = channel.tryLock();
+            return lock != null;
+        } catch (OverlappingFileLockException | IOException e) {
+            return false;
+        }
+    }
+
+    static void release() {
+        try {
+            // The file belongs to the instance holding the lock, an instance that only queues runs leaves it alone
+            boolean held = lock != null;
+            if (lock != null) lock.release();
+            if (lockFile != null) lockFile.close();
+            if (held) new File(LOCK_FILE_PATH).delete();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
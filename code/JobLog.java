@@ -0,0 +1,71 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Output of one job, script or worker, written to its own file and forwarded to the live event stream
+class JobLog implements AutoCloseable {
+    private final Path file;
+    private final Consumer<String> events;
+    private BufferedWriter writer;
+    // Lines come from the virtual threads draining the workers and may be forwarded over a socket, which would pin
+    // them to their carrier thread under a monitor
+    private final ReentrantLock lock = new ReentrantLock();
+
+    JobLog(Path file, Consumer<String> events) {
+        this.file = file;
+        this.events = events;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    // The file is only created once there is something to write, most jobs print nothing
+    void line(String line) {
+        lock.lock();
+        try {
+            if (writer == null) {
+                Files.createDirectories(file.getParent());
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+            events.accept(line);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void text(String text) {
+        lock.lock();
+        try {
+            for (String line : text.split("\n")) {
+                line(line);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.List;
+import java.util.Map;
+
+// The metrics returned by a worker for one analysis job, or why the job has none
+record JobResult(AnalysisJob job, JobStatus status, Map<String, String> metrics, String message, long elapsedMillis) {
+
+    JobResult(AnalysisJob job, Map<String, String> metrics) {
+        this(job, JobStatus.OK, metrics, null, 0);
+    }
+
+    static JobResult failed(AnalysisJob job, String message) {
+        return new JobResult(job, JobStatus.FAILED, Map.of(), message, 0);
+    }
+
+    static JobResult timedOut(AnalysisJob job, String message) {
+        return new JobResult(job, JobStatus.TIMED_OUT, Map.of(), message, 0);
+    }
+
+    static JobResult cancelled(AnalysisJob job) {
+        return new JobResult(job, JobStatus.CANCELLED, Map.of(), "Cancelled", 0);
+    }
+
+    static JobResult eliminated(AnalysisJob job, String message) {
+        return new JobResult(job, JobStatus.ELIMINATED, Map.of(), message, 0);
+    }
+
+    JobResult withElapsedMillis(long elapsed) {
+        return new JobResult(job, status, metrics, message, elapsed);
+    }
+
+    boolean isOk() {
+        return status == JobStatus.OK;
+    }
+
+    // Racing runs add a stage column, so the rows on samples and the eliminations can be told from the full runs.
+    // Pinned runs add the cores the job ran on (as "2+3") and the threads its math libraries were allowed.
+    // Runs reusing search results add whether the job ran its search or took the parameters from the cache ("ran",
+    // "cached", or "none" for a model with nothing to search), the Processing Time of the two is not comparable
+    static String csvHeader(List<String> parameters, boolean withStage, boolean withCores, boolean withSearch) {
+        return "technique,model,status," + (withStage ? "stage," : "") + (withCores ? "cores,threads," : "") + (withSearch ? "search," : "")
+               + String.join(",", parameters);
+    }
+
+    String toCsvRow(List<String> parameters, boolean withStage, boolean withCores, boolean withSearch) {
+        StringBuilder row = new StringBuilder(job.technique()).append(',').append(job.model()).append(',').append(status.label());
+        if (withStage) {
+            row.append(',').append(job.stage());
+        }
+        if (withCores) {
+            row.append(',').append(metrics.getOrDefault("cores", "")).append(',').append(metrics.getOrDefault("threads", ""));
+        }
+        if (withSearch) {
+            row.append(',').append(metrics.getOrDefault("search", ""));
+        }
+        for (String parameter : parameters) {
+            row.append(',').append(metrics.getOrDefault(parameter, ""));
+        }
+        return row.toString();
+    }
+}
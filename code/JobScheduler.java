@@ -0,0 +1,219 @@
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs the analysis jobs concurrently while handing the results over in job order
+//
+// Jobs are pulled from a JobSource one at a time as cores free up, so a source can decide what to run next
+// from the results seen so far. Job indexes must be handed out in order, they are the delivery order
+class JobScheduler {
+    // Results that finished ahead of a slower earlier job wait here, so this bounds how far ahead jobs may start
+    static final int REORDER_WINDOW = 1024;
+
+    // cores are the local cores the job is pinned to, null when the jobs are not pinned
+    interface JobRunner {
+        JobResult run(AnalysisJob job, int[] cores) throws Exception;
+    }
+
+    interface ResultConsumer {
+        void accept(JobResult result) throws Exception;
+    }
+
+    interface ProgressListener {
+        void jobFinished(JobResult result, int jobsDone, int totalJobs);
+    }
+
+    // Only called by the scheduler while it holds its lock, so sources need no locking of their own
+    interface JobSource {
+        // The next job to start, or null when nothing can start before a running job finishes, or nothing is left
+        AnalysisJob next();
+
+        void finished(JobResult result);
+
+        // Best estimate of the number of jobs the run will have, for progress reporting
+        int plannedJobs();
+    }
+
+    static JobSource fixed(List<AnalysisJob> jobs) {
+        return new JobSource() {
+            private int next;
+
+            @Override
+            public AnalysisJob next() {
+                return next < jobs.size() ? jobs.get(next++) : null;
+            }
+
+            @Override
+            public void finished(JobResult result) {
+            }
+
+            @Override
+            public int plannedJobs() {
+                return jobs.size();
+            }
+        };
+    }
+
+    private final CpuBudget cores;
+    private final boolean pinned;
+    private final TreeMap<Integer, JobResult> pendingResults = new TreeMap<>();
+    private int nextPosition;
+    private int jobsDone;
+    private int runningJobs;
+    private Exception failure;
+    private volatile boolean cancelled;
+
+    JobScheduler(int parallelism) {
+        this(new CpuBudget(parallelism), false);
+    }
+
+    // Schedulers of runs that go at the same time share one budget. Pinned jobs each get cores of their own
+    JobScheduler(CpuBudget cores, boolean pinned) {
+        this.cores = cores;
+        this.pinned = pinned;
+    }
+
+    static int defaultParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    // Number of cores a model keeps busy on its own (RandomForest runs with n_jobs=-1, XGBoost uses every core by default)
+    int coresFor(String model) {
+        if (model.equals("RandomForest") || model.equals("XGBoost")) {
+            return cores.getLocalCores();
+        }
+        return 1;
+    }
+
+    void runAll(List<AnalysisJob> jobs, JobRunner runner, ResultConsumer consumer, ProgressListener listener) throws Exception {
+        run(fixed(jobs), runner, consumer, listener);
+    }
+
+    void run(JobSource source, JobRunner runner, ResultConsumer consumer, ProgressListener listener) throws Exception {
+        // One thread per running job, their number follows the budget
+        ExecutorService executor = Executors.newCachedThreadPool();
+        synchronized (this) {
+            pendingResults.clear();
+            nextPosition = 0;
+            jobsDone = 0;
+            runningJobs = 0;
+            failure = null;
+        }
+
+        try {
+            AnalysisJob job;
+            while ((job = nextJob(source)) != null) {
+                AnalysisJob current = job;
+                if (!awaitReorderWindow(current.index())) {
+                    jobEnded();
+                    break;
+                }
+                int permits = coresFor(current.model());
+                cores.acquire(permits);
+                int[] pinnedCores;
+                try {
+                    pinnedCores = pinned ? cores.pin(permits) : null;
+                } catch (InterruptedException e) {
+                    cores.release(permits);
+                    throw e;
+                }
+                executor.execute(() -> {
+                    try {
+                        JobResult result;
+                        try {
+                            // Jobs that had not started yet still go through here, so the results before them get delivered
+                            result = cancelled ? JobResult.cancelled(current) : runner.run(current, pinnedCores);
+                        } finally {
+                            if (pinnedCores != null) {
+                                cores.unpin(pinnedCores);
+                            }
+                            cores.release(permits);
+                        }
+                        reportFinished(source, listener, result);
+                        deliver(current.index(), result, consumer);
+                    } catch (Exception e) {
+                        failed(e);
+                    } finally {
+                        jobEnded();
+                    }
+                });
+            }
+
+            synchronized (this) {
+                while (failure == null && runningJobs > 0) {
+                    wait();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Waits while jobs are running and the source has nothing to start, null once the run is over
+    private synchronized AnalysisJob nextJob(JobSource source) throws InterruptedException {
+        while (failure == null) {
+            AnalysisJob job = source.next();
+            if (job != null) {
+                runningJobs++;
+                return job;
+            }
+            if (runningJobs == 0) {
+                return null;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    CpuBudget getCores() {
+        return cores;
+    }
+
+    private synchronized void jobEnded() {
+        runningJobs--;
+        notifyAll();
+    }
+
+    private synchronized void failed(Exception e) {
+        if (failure == null) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    // Jobs that have not started are not run, the caller is responsible for stopping the running ones
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    // False when the run failed while waiting
+    private synchronized boolean awaitReorderWindow(int position) throws InterruptedException {
+        while (failure == null && position - nextPosition >= REORDER_WINDOW) {
+            wait();
+        }
+        return failure == null;
+    }
+
+    private synchronized void deliver(int position, JobResult result, ResultConsumer consumer) throws Exception {
+        pendingResults.put(position, result);
+        while (!pendingResults.isEmpty() && pendingResults.firstKey() == nextPosition) {
+            consumer.accept(pendingResults.pollFirstEntry().getValue());
+            nextPosition++;
+        }
+        notifyAll();
+    }
+
+    private synchronized void reportFinished(JobSource source, ProgressListener listener, JobResult result) {
+        source.finished(result);
+        jobsDone++;
+        listener.jobFinished(result, jobsDone, source.plannedJobs());
+    }
+}
@@ -0,0 +1,19 @@
+// How an analysis job ended, the label is what goes into the status column of the results table
+enum JobStatus {
+    OK("ok"),
+    FAILED("failed"),
+    TIMED_OUT("timed out"),
+    CANCELLED("cancelled"),
+    // Only used for the rows marking where a racing run dropped a technique and model pair
+    ELIMINATED("eliminated");
+
+    private final String label;
+
+    JobStatus(String label) {
+        this.label = label;
+    }
+
+    String label() {
+        return label;
+    }
+}
@@ -1,3 +1,4 @@
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
@@ -5,15 +6,12 @@ import java.io.*;
 import java.util.ArrayList;
 import java.nio.file.*;
 
-import java.util.Arrays;
 import java.util.List;
 import javax.swing.text.NumberFormatter;
 import java.text.NumberFormat;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
 
 public class MLAnalyzer extends JFrame implements ActionListener {
+    private static final String LOADING_TEXT = "<html>Loading... <br/><br/><br/>This analysis program may take hours to finish<br/>Leave it running in the background<br/><br/>The results will be available at MLAnalyzer/results table<br/>The graphs will be available at MLAnalyzer/results image </html>";
     private JFileChooser fileChooser;
     private JPanel currentPage;
     private JPanel csvSelectionPage;
@@ -21,6 +19,7 @@ public class MLAnalyzer extends JFrame implements ActionListener {
     private JPanel loadingPage;
     private JButton selectCSVButton;
     private JButton analyzeButton;
+    private JButton cancelButton;
     private List<JCheckBox> dataCleaningCheckBoxes;
     private List<JCheckBox> modelCheckBoxes;
     private List<JCheckBox> techniqueCheckBoxes;
@@ -30,20 +29,34 @@ public class MLAnalyzer extends JFrame implements ActionListener {
     private JLabel modelsLabel;
     private JLabel topLoadingLabel;
     private JLabel bottomLoadingLabel;
-    private StringBuilder pythonOutput = new StringBuilder();
-    private StringBuilder errorLog = new StringBuilder();
-    private static final String LOCK_FILE_PATH = "program.lock";
-    private static RandomAccessFile lockFile;
-    private static FileLock lock;
-
-    private List<String> dataCleaning = Arrays.asList("Normalize", "Mean Imputation for Missing Values", "Remove Duplicate Data", "Collinearity Removal");
-    private List<String> techniques = Arrays.asList("No Technique", "PCA", "IncPCA", "ICA", "LDA");
-    private List<String> models = Arrays.asList("Naive Bayes", "SVM", "MLP", "DecisionTree", "RandomForest", "KNN", "LogReg", "GradientBoost", "XGBoost", "Custom AI Model");
+    private ProgressDashboard dashboard;
+
+    private List<String> dataCleaning = RunConfiguration.DATA_CLEANING;
+    private List<String> techniques = RunConfiguration.TECHNIQUES;
+    private List<String> models = RunConfiguration.MODELS;
     private String selectedOptimization;
     private String selectedCrossValidation;
     private JFormattedTextField iterationsField;
     private int numberOfIterations;
-    private List<String> parameters = Arrays.asList("F1-Score", "Processing Time", "ROC AUC", "Memory Usage", "Precision", "Accuracy","Recall");
+    private JFormattedTextField parallelJobsField;
+    private int numberOfParallelJobs;
+    private JFormattedTextField jobTimeoutField;
+    private JFormattedTextField retriesField;
+    private JFormattedTextField cleaningMemoryField;
+    private JCheckBox adaptiveCheckBox;
+    private JCheckBox racingCheckBox;
+    private JCheckBox searchCacheCheckBox;
+    private JCheckBox distributedSearchCheckBox;
+    private JCheckBox pinCoresCheckBox;
+    private JFormattedTextField warmupRunsField;
+    private JFormattedTextField minIterationsField;
+    private JFormattedTextField toleranceField;
+    private transient volatile AnalysisPipeline runningPipeline;
+    // The charts of the run, filled in as the report stage draws them
+    private JPanel chartsPanel;
+    // Set when another instance has the main folder, analyses then go to the run queue
+    private static boolean queueOnly;
+    private List<String> parameters = RunConfiguration.PARAMETERS;
 
     public MLAnalyzer() {
         super("MLAnalyzer");
@@ -80,7 +93,7 @@ public class MLAnalyzer extends JFrame implements ActionListener {
         currentPage = csvSelectionPage;
 
         // Set up main frame
-        ImageIcon icon = new ImageIcon("resources\\icon.png");
+        ImageIcon icon = new ImageIcon(Paths.get("resources", "icon.png").toString());
         setIconImage(icon.getImage());
         setContentPane(currentPage);
         setPreferredSize(new Dimension(1280, 720));
@@ -98,17 +111,7 @@ public class MLAnalyzer extends JFrame implements ActionListener {
     }
 
     private void handleWindowClosing() {
-        releaseLock();
-
-        Path filePath = Paths.get("resources\\cleaned_data.csv");
-        try {
-            if (Files.exists(filePath)) {
-                Files.delete(filePath);
-            }
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error deleting cleaned data file: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-        }
+        InstanceLock.release();
 
         // Dispose of the frame and exit
         dispose();
@@ -215,6 +218,14 @@ public class MLAnalyzer extends JFrame implements ActionListener {
         optimizationPanel.add(gridSearchRadioButton);
         optimizationPanel.add(randomSearchRadioButton);
         optimizationPanel.add(NoSearchRadioButton);
+        searchCacheCheckBox = new JCheckBox("Reuse Search Results");
+        searchCacheCheckBox.setFont(new Font("Lucida Sans Unicode", Font.PLAIN, 20));
+        searchCacheCheckBox.setToolTipText("Search once per dataset, technique and model, later iterations and runs reuse the best parameters found");
+        optimizationPanel.add(searchCacheCheckBox);
+        distributedSearchCheckBox = new JCheckBox("Search on All Workers");
+        distributedSearchCheckBox.setFont(new Font("Lucida Sans Unicode", Font.PLAIN, 20));
+        distributedSearchCheckBox.setToolTipText("Spread each search over every worker, one candidate and fold at a time, and stop the candidates that fall behind");
+        optimizationPanel.add(distributedSearchCheckBox);
 
         gridSearchRadioButton.addActionListener(e -> selectedOptimization = "Grid Search");
         randomSearchRadioButton.addActionListener(e -> selectedOptimization = "Random Search");
@@ -267,8 +278,139 @@ public class MLAnalyzer extends JFrame implements ActionListener {
         iterationsField.setValue(10); // Default value
         iterationsPanel.add(iterationsLabel);
         iterationsPanel.add(iterationsField);
+
+        // Number of jobs running at the same time
+        JLabel parallelJobsLabel = new JLabel("Parallel Jobs:");
+        parallelJobsLabel.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
+        parallelJobsLabel.setForeground(new Color(0, 0, 139));
+        NumberFormatter parallelJobsFormatter = new NumberFormatter(integerFormat);
+        parallelJobsFormatter.setValueClass(Integer.class);
+        parallelJobsFormatter.setMinimum(1);
+        parallelJobsFormatter.setMaximum(999);
+        parallelJobsFormatter.setAllowsInvalid(false);
+        parallelJobsField = new JFormattedTextField(parallelJobsFormatter);
+        parallelJobsField.setFont(new Font("Lucida Sans Unicode", Font.PLAIN, 20));
+        parallelJobsField.setColumns(10);
+        parallelJobsField.setValue(JobScheduler.defaultParallelism()); // Default value
+        iterationsPanel.add(parallelJobsLabel);
+        iterationsPanel.add(parallelJobsField);
         configPanel.add(iterationsPanel);
 
+        // Time limit for a single analysis and how often a failed one is tried again, 0 means no limit
+        JPanel limitsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JLabel jobTimeoutLabel = new JLabel("Job Time Limit (s):");
+        jobTimeoutLabel.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
+        jobTimeoutLabel.setForeground(new Color(0, 0, 139));
+        NumberFormatter jobTimeoutFormatter = new NumberFormatter(integerFormat);
+        jobTimeoutFormatter.setValueClass(Integer.class);
+        jobTimeoutFormatter.setMinimum(0);
+        jobTimeoutFormatter.setMaximum(999999);
+        jobTimeoutFormatter.setAllowsInvalid(false);
+        jobTimeoutField = new JFormattedTextField(jobTimeoutFormatter);
+        jobTimeoutField.setFont(new Font("Lucida Sans Unicode", Font.PLAIN, 20));
+        jobTimeoutField.setColumns(10);
+        jobTimeoutField.setValue(0); // Default value
+        limitsPanel.add(jobTimeoutLabel);
+        limitsPanel.add(jobTimeoutField);
+
+        JLabel retriesLabel = new JLabel("Retries:");
+        retriesLabel.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
+        retriesLabel.setForeground(new Color(0, 0, 139));
+        NumberFormatter retriesFormatter = new NumberFormatter(integerFormat);
+        retriesFormatter.setValueClass(Integer.class);
+        retriesFormatter.setMinimum(0);
+        retriesFormatter.setMaximum(9);
+        retriesFormatter.setAllowsInvalid(false);
+        retriesField = new JFormattedTextField(retriesFormatter);
+        retriesField.setFont(new Font("Lucida Sans Unicode", Font.PLAIN, 20));
+        retriesField.setColumns(10);
+        retriesField.setValue(0); // Default value
+        limitsPanel.add(retriesLabel);
+        limitsPanel.add(retriesField);
+
+        // Above 0 the CSV is cleaned in chunks within about this much memory, for CSVs larger than the RAM
+        JLabel cleaningMemoryLabel = new JLabel("Cleaning Memory (MB):");
+        cleaningMemoryLabel.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
+        cleaningMemoryLabel.setForeground(new Color(0, 0, 139));
+        NumberFormatter cleaningMemoryFormatter = new NumberFormatter(integerFormat);
+        cleaningMemoryFormatter.setValueClass(Integer.class);
+        cleaningMemoryFormatter.setMinimum(0);
+        cleaningMemoryFormatter.setMaximum(999999);
+        cleaningMemoryFormatter.setAllowsInvalid(false);
+        cleaningMemoryField = new JFormattedTextField(cleaningMemoryFormatter);
+        cleaningMemoryField.setFont(new Font("Lucida Sans Unicode", Font.PLAIN, 20));
+        cleaningMemoryField.setColumns(10);
+        cleaningMemoryField.setValue(0); // Default value
+        limitsPanel.add(cleaningMemoryLabel);
+        limitsPanel.add(cleaningMemoryField);
+        configPanel.add(limitsPanel);
+
+        // Adaptive iterations: the number of iterations becomes the maximum, a pair stops once its results are stable
+        JPanel adaptivePanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        adaptiveCheckBox = new JCheckBox("Adaptive Iterations");
+        adaptiveCheckBox.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
+        adaptiveCheckBox.setForeground(new Color(0, 0, 139));
+        adaptiveCheckBox.setToolTipText("Repeat each technique and model only until the 95% confidence interval of the first parameter is within the tolerance");
+        JLabel minIterationsLabel = new JLabel("Min:");
+        minIterationsLabel.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
+        minIterationsLabel.setForeground(new Color(0, 0, 139));
+        NumberFormatter minIterationsFormatter = new NumberFormatter(integerFormat);
+        minIterationsFormatter.setValueClass(Integer.class);
+        minIterationsFormatter.setMinimum(2);
+        minIterationsFormatter.setMaximum(999);
+        minIterationsFormatter.setAllowsInvalid(false);
+        minIterationsField = new JFormattedTextField(minIterationsFormatter);
+        minIterationsField.setFont(new Font("Lucida Sans Unicode", Font.PLAIN, 20));
+        minIterationsField.setColumns(5);
+        minIterationsField.setValue(5); // Default value
+        JLabel toleranceLabel = new JLabel("Tolerance (\u00b1):");
+        toleranceLabel.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
+        toleranceLabel.setForeground(new Color(0, 0, 139));
+        toleranceField = new JFormattedTextField(NumberFormat.getNumberInstance());
+        toleranceField.setFont(new Font("Lucida Sans Unicode", Font.PLAIN, 20));
+        toleranceField.setColumns(5);
+        toleranceField.setValue(0.01); // Default value
+        adaptivePanel.add(adaptiveCheckBox);
+        adaptivePanel.add(minIterationsLabel);
+        adaptivePanel.add(minIterationsField);
+        adaptivePanel.add(toleranceLabel);
+        adaptivePanel.add(toleranceField);
+
+        // Racing: the weakest pairs are dropped on samples of the data, only the best ones run on all of it
+        racingCheckBox = new JCheckBox("Racing");
+        racingCheckBox.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
+        racingCheckBox.setForeground(new Color(0, 0, 139));
+        racingCheckBox.setToolTipText("Run every technique and model on samples of the data first and keep the best half of them each round, the rest run all iterations on the full data");
+        adaptiveCheckBox.addActionListener(e -> racingCheckBox.setSelected(racingCheckBox.isSelected() && !adaptiveCheckBox.isSelected()));
+        racingCheckBox.addActionListener(e -> adaptiveCheckBox.setSelected(adaptiveCheckBox.isSelected() && !racingCheckBox.isSelected()));
+        adaptivePanel.add(racingCheckBox);
+        configPanel.add(adaptivePanel);
+
+        // Timing runs: every job on cores of its own, so parallel jobs measure as steadily as one at a time
+        JPanel timingPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        pinCoresCheckBox = new JCheckBox("Pin Jobs to Cores");
+        pinCoresCheckBox.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
+        pinCoresCheckBox.setForeground(new Color(0, 0, 139));
+        pinCoresCheckBox.setToolTipText("Run each analysis on cores no other analysis uses, with its math libraries limited to that many threads");
+        pinCoresCheckBox.addActionListener(e -> distributedSearchCheckBox.setSelected(distributedSearchCheckBox.isSelected() && !pinCoresCheckBox.isSelected()));
+        distributedSearchCheckBox.addActionListener(e -> pinCoresCheckBox.setSelected(pinCoresCheckBox.isSelected() && !distributedSearchCheckBox.isSelected()));
+        JLabel warmupRunsLabel = new JLabel("Warm-up Runs:");
+        warmupRunsLabel.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
+        warmupRunsLabel.setForeground(new Color(0, 0, 139));
+        NumberFormatter warmupRunsFormatter = new NumberFormatter(integerFormat);
+        warmupRunsFormatter.setValueClass(Integer.class);
+        warmupRunsFormatter.setMinimum(0);
+        warmupRunsFormatter.setMaximum(99);
+        warmupRunsFormatter.setAllowsInvalid(false);
+        warmupRunsField = new JFormattedTextField(warmupRunsFormatter);
+        warmupRunsField.setFont(new Font("Lucida Sans Unicode", Font.PLAIN, 20));
+        warmupRunsField.setColumns(5);
+        warmupRunsField.setValue(0); // Default value
+        timingPanel.add(pinCoresCheckBox);
+        timingPanel.add(warmupRunsLabel);
+        timingPanel.add(warmupRunsField);
+        configPanel.add(timingPanel);
+
 
 
         // Parameters Analysed selection panel
@@ -322,29 +464,38 @@ public class MLAnalyzer extends JFrame implements ActionListener {
 
         JPanel bottomTextPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
         bottomTextPanel.setBorder(BorderFactory.createEmptyBorder(0, 0, 0, 0));
-        bottomLoadingLabel = new JLabel("<html>Loading... <br/><br/><br/>This analysis program may take hours to finish<br/>Leave it running in the background<br/><br/>The results will be available at MLAnalyzer/results table<br/>The graphs will be available at MLAnalyzer/results image </html>");
+        bottomLoadingLabel = new JLabel(LOADING_TEXT);
         bottomLoadingLabel.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 26));
         bottomLoadingLabel.setForeground(new Color(0, 0, 0));
         bottomTextPanel.add(bottomLoadingLabel);
 
         loadingPanel.add(bottomTextPanel, BorderLayout.NORTH);
 
+        dashboard = new ProgressDashboard();
+        loadingPanel.add(dashboard);
+
+        // Stops the run, the analyses already finished are kept
+        cancelButton = new JButton("Cancel");
+        cancelButton.addActionListener(this);
+        cancelButton.setFont(new Font("Lucida Sans Unicode", Font.BOLD, 30));
+        cancelButton.setPreferredSize(new Dimension(250, 70));
+        JPanel cancelPanel = new JPanel();
+        cancelPanel.setOpaque(false);
+        cancelPanel.add(cancelButton);
+        loadingPanel.add(cancelPanel);
+
         backgroundLabel.add(loadingPanel, BorderLayout.CENTER);
         loadingPage.add(backgroundLabel, BorderLayout.CENTER);
     }
 
-    private void updateLoadingLabel(int currentIteration, int totalIterations) {
-        String progressText = String.format("Iterations done: %d of %d", currentIteration, totalIterations);
-        bottomLoadingLabel.setText("<html>Loading...<br/>" + progressText + "<br/><br/>This analysis program may take hours to finish<br/>Leave it running in the background<br/><br/>The results will be available at MLAnalyzer/results table<br/>The graphs will be available at MLAnalyzer/results image </html>");
-        revalidate();
-        repaint(); 
-    }
-
     public void actionPerformed(ActionEvent e) {
         if (e.getSource() == selectCSVButton) {
             openCSVSelection();
+        } else if (e.getSource() == cancelButton) {
+            cancelAnalysis();
         } else if (e.getSource() == analyzeButton) {
 
+            cancelButton.setEnabled(true);
             currentPage = loadingPage;
             setContentPane(currentPage);
             revalidate();
@@ -362,9 +513,32 @@ public class MLAnalyzer extends JFrame implements ActionListener {
         }
     }
 
+    private void cancelAnalysis() {
+        AnalysisPipeline pipeline = runningPipeline;
+        if (pipeline == null) {
+            return;
+        }
+
+        int answer = JOptionPane.showConfirmDialog(this, "Cancel the analysis?\nThe analyses already finished are kept", "Cancel", JOptionPane.YES_NO_OPTION);
+        if (answer == JOptionPane.YES_OPTION) {
+            cancelButton.setEnabled(false);
+            bottomLoadingLabel.setText("<html>Cancelling...</html>");
+            pipeline.cancel();
+        }
+    }
+
     private void openCSVSelection() {
         int returnVal = fileChooser.showOpenDialog(this);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
+            // The columns are profiled while the analysis is configured, the data cleaning then finds the profile ready
+            Path csv = fileChooser.getSelectedFile().toPath();
+            Thread.ofPlatform().daemon().name("csv profiler").start(() -> {
+                try {
+                    CsvProfiler.cached(csv, JobScheduler.defaultParallelism());
+                } catch (IOException | InterruptedException ex) {
+                    // The run profiles it again, or the cleaning works the columns out itself
+                }
+            });
             currentPage.setVisible(false);
             currentPage = analysisConfigPage;
             setContentPane(currentPage);
@@ -382,7 +556,6 @@ public class MLAnalyzer extends JFrame implements ActionListener {
                 selectedDataCleaning.add(checkBox.getText());
             }
         }
-        String stringDataCleaning = String.join(", ", selectedDataCleaning);
 
         // Get selected models
         List<String> selectedModels = new ArrayList<>();
@@ -417,6 +590,23 @@ public class MLAnalyzer extends JFrame implements ActionListener {
             numberOfIterations = 10;
         }
 
+        // Get selected number of parallel jobs
+        Object parallelJobsValue = parallelJobsField.getValue();
+        if (parallelJobsValue instanceof Number) {
+            numberOfParallelJobs = ((Number) parallelJobsValue).intValue();
+        }
+        else {
+            numberOfParallelJobs = JobScheduler.defaultParallelism();
+        }
+
+        // Get selected time limit and retries
+        Object jobTimeoutValue = jobTimeoutField.getValue();
+        int jobTimeoutSeconds = jobTimeoutValue instanceof Number ? ((Number) jobTimeoutValue).intValue() : 0;
+        Object retriesValue = retriesField.getValue();
+        int retries = retriesValue instanceof Number ? ((Number) retriesValue).intValue() : 0;
+        Object cleaningMemoryValue = cleaningMemoryField.getValue();
+        int cleaningMemoryMb = cleaningMemoryValue instanceof Number ? ((Number) cleaningMemoryValue).intValue() : 0;
+
         // Get selected parameters
         List<String> selectedParameters = new ArrayList<>();
         for (JCheckBox checkBox : parameterCheckBoxes) {
@@ -427,182 +617,179 @@ public class MLAnalyzer extends JFrame implements ActionListener {
         if (selectedParameters.isEmpty()){
             selectedParameters.add("F1-Score");
         }
-        String parameters = String.join(",", selectedParameters);
 
-        // Get selected file
-        File selectedFile = fileChooser.getSelectedFile();
-        
+        RunConfiguration configuration = new RunConfiguration();
+        configuration.inputFile = fileChooser.getSelectedFile().toPath();
+        configuration.dataCleaning = selectedDataCleaning;
+        configuration.techniques = selectedTechniques;
+        configuration.models = selectedModels;
+        configuration.optimization = selectedOptimization;
+        configuration.crossValidation = selectedCrossValidation;
+        configuration.iterations = numberOfIterations;
+        configuration.parameters = selectedParameters;
+        configuration.parallelJobs = numberOfParallelJobs;
+        configuration.jobTimeoutSeconds = jobTimeoutSeconds;
+        configuration.retries = retries;
+        configuration.cleaningMemoryMb = cleaningMemoryMb;
+        if (adaptiveCheckBox.isSelected()) {
+            Object minIterationsValue = minIterationsField.getValue();
+            Object toleranceValue = toleranceField.getValue();
+            configuration.adaptive = true;
+            configuration.minIterations = minIterationsValue instanceof Number ? ((Number) minIterationsValue).intValue() : 5;
+            configuration.tolerance = toleranceValue instanceof Number ? ((Number) toleranceValue).doubleValue() : 0.01;
+        }
+        configuration.racing = racingCheckBox.isSelected();
+        configuration.searchCache = searchCacheCheckBox.isSelected();
+        configuration.distributedSearch = distributedSearchCheckBox.isSelected();
+        configuration.pinCores = pinCoresCheckBox.isSelected();
+        Object warmupRunsValue = warmupRunsField.getValue();
+        configuration.warmupRuns = warmupRunsValue instanceof Number ? ((Number) warmupRunsValue).intValue() : 0;
+
+        // The same checks as the headless runner, a value out of range is reported rather than changed
         try {
-            pythonOutput.append("technique,model," + parameters).append("\n");
-            ProcessBuilder pb_cleaning = new ProcessBuilder("python", "code\\program_data_cleaning.py", selectedFile.getAbsolutePath(), stringDataCleaning);
-            pb_cleaning.redirectErrorStream(true);
-            Process process_cleaning = pb_cleaning.start();
-            int exitCode_cleaning = process_cleaning.waitFor();
-            if (exitCode_cleaning != 0) {
-                Path logFilePath = Path.of("error_log.txt");
-                BufferedReader reader = new BufferedReader(new InputStreamReader(process_cleaning.getInputStream()));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    errorLog.append(line).append("\n");
-                }  
-                Files.writeString(logFilePath, errorLog, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);          
-                JOptionPane.showMessageDialog(this, "Error on the plot script\nDetails are on the file 'error_log.txt' at the main folder", "Error", JOptionPane.ERROR_MESSAGE);
-
-                releaseLock();
-                System.exit(0);
+            configuration.validate();
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Invalid configuration", JOptionPane.ERROR_MESSAGE);
+            currentPage = analysisConfigPage;
+            setContentPane(currentPage);
+            revalidate();
+            repaint();
+            return;
+        }
+
+        if (queueOnly) {
+            submitToQueue(configuration);
+            return;
+        }
+
+        // The pipeline threads hand their events to the dashboard, which shows them at its own pace on the event thread
+        AnalysisPipeline pipeline = new AnalysisPipeline(configuration, new PipelineListener() {
+            @Override
+            public void stageStarted(String stage) {
+                dashboard.stageStarted(stage);
             }
 
-            int numberOfAnalysDone = -1;
-            for (String technique : selectedTechniques) {
-                for (String model : selectedModels) {
-                    for (int i = 0; i < numberOfIterations; i++) {
-
-                        numberOfAnalysDone++;
-
-                        updateLoadingLabel(numberOfAnalysDone, numberOfIterations * selectedModels.size() * selectedTechniques.size());
-
-                        ProcessBuilder pb = new ProcessBuilder("python", "code\\program_analysis.py", technique, model, selectedOptimization, selectedCrossValidation, parameters);
-                        pb.redirectErrorStream(true);
-                        Process process = pb.start();
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                        String line;
-
-                        int exitCode = process.waitFor();
-                        if (exitCode != 0) {
-                            Path filePath = Paths.get("resources\\cleaned_data.csv");
-                            Files.delete(filePath);
-
-                            Path logFilePath = Path.of("error_log.txt");
-                            while ((line = reader.readLine()) != null) {
-                                errorLog.append(line).append("\n");
-                            }  
-                            Files.writeString(logFilePath, errorLog, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);          
-                            JOptionPane.showMessageDialog(this, "Error on the plot script\nDetails are on the file 'error_log.txt' at the main folder", "Error", JOptionPane.ERROR_MESSAGE);
-
-                            releaseLock();
-                            System.exit(0);
-                        }
-                        else {
-                            while ((line = reader.readLine()) != null) {
-                                pythonOutput.append(line).append("\n");
-                        }
-                        }
-                    }
-                }
+            @Override
+            public void jobStarted(AnalysisJob job) {
+                dashboard.jobStarted(job);
             }
 
-            // Delete the cleaned data file
-            Path filePath = Paths.get("resources\\cleaned_data.csv");
-            Files.delete(filePath);
-            
-            String returnedString = pythonOutput.toString();
-
-            // Save the returned string as a CSV file
-            saveStringAsCSV(returnedString, "results table\\results.csv");
-             
-             revalidate();
-             repaint();
-
-             // Generate image
-             ProcessBuilder pbImage = new ProcessBuilder("python", "code\\program_plot.py");
-             pbImage.redirectErrorStream(true);
-             Process processImage = pbImage.start();
-
-             int exitCodeImage = processImage.waitFor();
-            if (exitCodeImage != 0) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(processImage.getInputStream()));
-                String line;
-
-                Path logFilePath = Path.of("error_log.txt");
-                while ((line = reader.readLine()) != null) {
-                    errorLog.append(line).append("\n");
-                }  
-                Files.writeString(logFilePath, errorLog, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);          
-                JOptionPane.showMessageDialog(this, "Error on the plot script\nDetails are on the file 'error_log.txt' at the main folder", "Error", JOptionPane.ERROR_MESSAGE);
-
-                releaseLock();
-                System.exit(0);
+            @Override
+            public void jobFinished(JobResult result, int jobsDone, int totalJobs) {
+                dashboard.jobFinished(result, jobsDone, totalJobs);
             }
 
-            // Save results to xlsx and graphs to pdf
-            ProcessBuilder pbPDF= new ProcessBuilder("python", "code\\program_xlsx_and_pdf.py");
-            pbPDF.redirectErrorStream(true);
-             Process processPDF = pbPDF.start();
-
-             int exitCodePDF = processPDF.waitFor();
-            if (exitCodePDF != 0) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(processPDF.getInputStream()));
-                String line;
-
-                Path logFilePath = Path.of("error_log.txt");
-                while ((line = reader.readLine()) != null) {
-                    errorLog.append(line).append("\n");
-                }  
-                Files.writeString(logFilePath, errorLog, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);          
-                JOptionPane.showMessageDialog(this, "Error on the plot script\nDetails are on the file 'error_log.txt' at the main folder", "Error", JOptionPane.ERROR_MESSAGE);
-
-                releaseLock();
-                System.exit(0);
+            @Override
+            public void workerMemory(String worker, double rssMb) {
+                dashboard.workerMemory(worker, rssMb);
             }
 
-            // Show returned image
-            ImageIcon returnedImage = new ImageIcon("results image\\graphs.png");
-            JLabel imageLabel = new JLabel(returnedImage);
-            imageLabel.setIcon(returnedImage);
-            JScrollPane scrollPane = new JScrollPane(imageLabel);
-            setContentPane(scrollPane);
+            @Override
+            public void chartReady(Path chart) {
+                SwingUtilities.invokeLater(() -> showChart(chart));
+            }
+        });
+
+        runningPipeline = pipeline;
+        SwingUtilities.invokeLater(() -> chartsPanel = null);
+        try {
+            SwingUtilities.invokeLater(() -> bottomLoadingLabel.setText(LOADING_TEXT));
+            dashboard.start(numberOfIterations * selectedModels.size() * selectedTechniques.size());
+            PipelineResult result = pipeline.run();
+
+            if (result.cancelled()) {
+                JOptionPane.showMessageDialog(this, "The analysis was cancelled\nThe finished analyses are in the results table\nStart the analysis again with the same configuration to resume it", "Cancelled", JOptionPane.INFORMATION_MESSAGE);
+                currentPage = analysisConfigPage;
+                setContentPane(currentPage);
+                revalidate();
+                repaint();
+                return;
+            }
 
-            pack();
-            setLocationRelativeTo(null);
-            setVisible(true);
+            if (!result.failedJobs().isEmpty()) {
+                JOptionPane.showMessageDialog(this, result.failedJobs().size() + " analyses failed and were left out of the results\nDetails are on the file 'error_log.txt' at the main folder\nStart the analysis again with the same configuration to retry only those", "Warning", JOptionPane.WARNING_MESSAGE);
+            }
 
-            // Revalidate and repaint the frame to reflect the changes
-            revalidate();
-            repaint();
+            // The charts are already on screen, the frame is fitted to them once they are all there
+            SwingUtilities.invokeLater(() -> {
+                if (chartsPanel == null) {
+                    showChart(RunWorkspace.MAIN.graphsPng());
+                }
+                pack();
+                setLocationRelativeTo(null);
+                setVisible(true);
+                revalidate();
+                repaint();
+            });
+
+        } catch (PipelineException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage() + "\nDetails are on the file 'error_log.txt' at the main folder", "Error", JOptionPane.ERROR_MESSAGE);
 
-        } catch (IOException | InterruptedException ex) {
+            InstanceLock.release();
+            System.exit(0);
+        } catch (Exception ex) {
             ex.printStackTrace();
             JOptionPane.showMessageDialog(this, "Error running Python script: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(0);
+        } finally {
+            dashboard.stop();
+            runningPipeline = null;
         }
     }
 
-    private static void saveStringAsCSV(String content, String filePath) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-            writer.write(content);
+    // Called on the event thread, the first chart replaces the loading page
+    private void showChart(Path chart) {
+        Image image;
+        try {
+            // Read from the file every time, ImageIcon would keep the chart of an earlier run with the same name
+            image = ImageIO.read(chart.toFile());
+        } catch (IOException ex) {
+            return;
         }
-    }
-
-    public static void main(String[] args) {
-        if (!acquireLock()) {
-            JOptionPane.showMessageDialog(null, 
-                "The application is already running.", 
-                "Error", 
-                JOptionPane.ERROR_MESSAGE);
-            System.exit(1);
+        if (image == null) {
+            return;
         }
-
-        SwingUtilities.invokeLater(MLAnalyzer::new);
+        if (chartsPanel == null) {
+            chartsPanel = new JPanel();
+            chartsPanel.setLayout(new BoxLayout(chartsPanel, BoxLayout.Y_AXIS));
+            chartsPanel.setBackground(Color.WHITE);
+            JScrollPane scrollPane = new JScrollPane(chartsPanel);
+            scrollPane.getVerticalScrollBar().setUnitIncrement(24);
+            setContentPane(scrollPane);
+        }
+        chartsPanel.add(new JLabel(new ImageIcon(image)));
+        revalidate();
+        repaint();
     }
 
-    private static boolean acquireLock() {
+    private void submitToQueue(RunConfiguration configuration) {
+        RunQueue queue = new RunQueue(RunQueue.ROOT);
         try {
-            lockFile = new RandomAccessFile(LOCK_FILE_PATH, "rw");
-            FileChannel channel = lockFile.getChannel();
-            lock = channel.tryLock();
-            return lock != null;
-        } catch (OverlappingFileLockException | IOException e) {
-            return false;
+            String id = queue.submit(configuration);
+            String service = queue.isServiceRunning() ? "The queue service will start it when its turn comes"
+                                                      : "Start the queue service to run it: java -cp bin QueueService";
+            JOptionPane.showMessageDialog(this, "The analysis was added to the run queue as '" + id + "'\n" + service + "\nThe results will be at MLAnalyzer/" + RunWorkspace.forQueuedRun(id), "Queued", JOptionPane.INFORMATION_MESSAGE);
+        } catch (IOException | IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, "The analysis could not be queued: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
+        currentPage = analysisConfigPage;
+        setContentPane(currentPage);
+        revalidate();
+        repaint();
     }
 
-    private static void releaseLock() {
-        try {
-            if (lock != null) lock.release();
-            if (lockFile != null) lockFile.close();
-            new File(LOCK_FILE_PATH).delete();
-        } catch (IOException e) {
-            e.printStackTrace();
+    public static void main(String[] args) {
+        if (!InstanceLock.acquire()) {
+            int answer = JOptionPane.showConfirmDialog(null,
+                "The application is already running in this folder.\nAnalyses started from this window will be added to the run queue\nand get a folder of their own under 'runs'. Continue?",
+                "Already running",
+                JOptionPane.YES_NO_OPTION);
+            if (answer != JOptionPane.YES_OPTION) {
+                System.exit(1);
+            }
+            queueOnly = true;
         }
+
+        SwingUtilities.invokeLater(MLAnalyzer::new);
     }
-}
\ No newline at end of file
+}
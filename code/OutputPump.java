@@ -0,0 +1,28 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+// Drains a child process stream line by line on a virtual thread, so a chatty child can never fill its pipe and stall
+final class OutputPump {
+
+    private OutputPump() {
+    }
+
+    static Thread start(String name, InputStream stream, Consumer<String> lines, Runnable onEnd) {
+        return Thread.ofVirtual().name(name).start(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.accept(line);
+                }
+            } catch (IOException e) {
+                // The process was killed while we were reading, nothing left to drain
+            } finally {
+                onEnd.run();
+            }
+        });
+    }
+}
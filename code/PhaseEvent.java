@@ -0,0 +1,27 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// One timed phase of a run, visible in Flight Recorder next to the JVM's own events
+//
+//     java -XX:StartFlightRecording=filename=run.jfr -cp bin HeadlessRunner ...
+//     jfr print --events mlanalyzer.Phase run.jfr
+@Name("mlanalyzer.Phase")
+@Label("Pipeline Phase")
+@Category("MLAnalyzer")
+class PhaseEvent extends Event {
+    @Label("Scope")
+    String scope;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Job")
+    String job;
+
+    @Label("Time Spent")
+    @Timespan(Timespan.NANOSECONDS)
+    long spent;
+}
@@ -0,0 +1,6 @@
+// A pipeline step failed, the details were written to error_log.txt
+class PipelineException extends Exception {
+    PipelineException(String message) {
+        super(message);
+    }
+}
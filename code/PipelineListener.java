@@ -0,0 +1,27 @@
+import java.nio.file.Path;
+
+// Progress callbacks of an AnalysisPipeline run, called from the pipeline's own threads
+interface PipelineListener {
+
+    default void stageStarted(String stage) {
+    }
+
+    // A job went to a worker, jobs finished by an earlier run of the same configuration are only reported as finished
+    default void jobStarted(AnalysisJob job) {
+    }
+
+    default void jobFinished(JobResult result, int jobsDone, int totalJobs) {
+    }
+
+    // Resident memory of a local worker after each of its requests, 0 once the worker stopped
+    default void workerMemory(String worker, double rssMb) {
+    }
+
+    // One chart of the reports is on disk, the charts come in no particular order
+    default void chartReady(Path chart) {
+    }
+
+    // A line printed by a job, a pipeline step or a worker, as soon as it is printed
+    default void output(String source, String line) {
+    }
+}
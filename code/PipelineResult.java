@@ -0,0 +1,5 @@
+import java.util.List;
+
+record PipelineResult(int totalJobs, int rowsWritten, List<AnalysisJob> failedJobs, boolean cancelled, long elapsedMillis,
+                      List<RunMetrics.PhaseTotal> phases) {
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// Measures a worker process from the outside, so the measurement does not run inside the job it measures
+//
+// On Linux the peak resident memory (VmHWM in /proc/<pid>/status) is reset before each job through
+// /proc/<pid>/clear_refs and CPU time is read from /proc/<pid>/stat, descendants included.
+// Elsewhere only the CPU time reported by ProcessHandle is available and the worker keeps measuring its own memory
+class ProcessSampler {
+    // The usual USER_HZ, for a worker that does not report the one of its system
+    static final double DEFAULT_CLOCK_TICKS_PER_SECOND = 100.0;
+
+    private final ProcessHandle process;
+    private final Path proc;
+    private final boolean measuresMemory;
+    private volatile double clockTicksPerSecond = DEFAULT_CLOCK_TICKS_PER_SECOND;
+    private Map<Long, Long> startTicks = Map.of();
+    private Duration startCpu;
+    private double startRssMb;
+
+    ProcessSampler(ProcessHandle process) {
+        this.process = process;
+        this.proc = Paths.get("/proc", String.valueOf(process.pid()));
+        this.measuresMemory = resetPeak() && statusValueMb("VmHWM:") >= 0;
+    }
+
+    // The unit of the CPU times in /proc/<pid>/stat, as the worker read it from sysconf when it started
+    void setClockTicksPerSecond(double clockTicksPerSecond) {
+        if (clockTicksPerSecond > 0) {
+            this.clockTicksPerSecond = clockTicksPerSecond;
+        }
+    }
+
+    // True when memory is measured here, the worker can then leave its own memory monitor off
+    boolean measuresMemory() {
+        return measuresMemory;
+    }
+
+    void start() {
+        if (measuresMemory) {
+            resetPeak();
+            startRssMb = statusValueMb("VmRSS:");
+            startTicks = cpuTicks();
+        } else {
+            startCpu = process.info().totalCpuDuration().orElse(null);
+        }
+    }
+
+    // Adds "CPU Time" in seconds and, when measured here, "Memory Usage" (growth over the job) and "Peak Memory" in MB.
+    // The CPU Time includes the cpu_adjust of the worker, the difference between what the shared reduction cost to
+    // compute and what loading or computing it took this job
+    void finish(Map<String, String> metrics) {
+        String adjustment = metrics.remove("cpu_adjust");
+        double cpuSeconds = -1;
+        if (measuresMemory) {
+            long ticks = 0;
+            for (Map.Entry<Long, Long> entry : cpuTicks().entrySet()) {
+                ticks += entry.getValue() - startTicks.getOrDefault(entry.getKey(), 0L);
+            }
+            cpuSeconds = ticks / clockTicksPerSecond;
+
+            double peakMb = statusValueMb("VmHWM:");
+            if (peakMb >= 0) {
+                metrics.put("Memory Usage", String.valueOf(Math.max(0, peakMb - startRssMb)));
+                metrics.put("Peak Memory", String.valueOf(peakMb));
+            }
+        } else if (startCpu != null) {
+            Duration endCpu = process.info().totalCpuDuration().orElse(null);
+            if (endCpu != null) {
+                cpuSeconds = endCpu.minus(startCpu).toNanos() / 1e9;
+            }
+        }
+        if (cpuSeconds >= 0) {
+            if (adjustment != null) {
+                cpuSeconds = Math.max(0, cpuSeconds + Double.parseDouble(adjustment));
+            }
+            metrics.put("CPU Time", String.valueOf(cpuSeconds));
+        }
+    }
+
+    // Writing 5 to clear_refs sets the peak resident memory back to the current resident memory (Linux 4.0 and later)
+    private boolean resetPeak() {
+        try {
+            Files.writeString(proc.resolve("clear_refs"), "5");
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private double statusValueMb(String field) {
+        try {
+            for (String line : Files.readAllLines(proc.resolve("status"), StandardCharsets.UTF_8)) {
+                if (line.startsWith(field)) {
+                    // Values are given in kB
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]) / 1024.0;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // The process is gone or the field is not there
+        }
+        return -1;
+    }
+
+    // User and system ticks of the worker, of the children it waited for, and of every child still running
+    private Map<Long, Long> cpuTicks() {
+        List<ProcessHandle> processes = process.descendants().collect(Collectors.toList());
+        processes.add(process);
+
+        Map<Long, Long> ticks = new HashMap<>();
+        for (ProcessHandle handle : processes) {
+            long value = statTicks(handle.pid(), handle == process);
+            if (value >= 0) {
+                ticks.put(handle.pid(), value);
+            }
+        }
+        return ticks;
+    }
+
+    private static long statTicks(long pid, boolean withWaitedChildren) {
+        try {
+            String stat = Files.readString(Paths.get("/proc", String.valueOf(pid), "stat"), StandardCharsets.UTF_8);
+            // The command name can hold spaces, the fields are counted from the closing parenthesis
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+            long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            if (withWaitedChildren) {
+                ticks += Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+            }
+            return ticks;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GridLayout;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+// Live progress of a run: jobs per minute, running and queued jobs, the time each model takes, the memory of each
+// worker, the time left and the jobs that take much longer than usual
+//
+// The pipeline threads only add events to a lock-free queue. A Swing timer applies them on the event thread a few
+// times a second and updates the labels once, however many jobs finished in between
+class ProgressDashboard extends JPanel {
+    private static final long serialVersionUID = 1L;
+    static final int REFRESH_MILLIS = 250;
+    // Jobs per minute are counted over the last stretch of the run
+    static final long RATE_WINDOW_MILLIS = 120_000;
+    // A job running this many times longer than its technique and model usually take is listed as a straggler
+    static final double STRAGGLER_FACTOR = 2.0;
+    static final int MAX_STRAGGLERS = 3;
+
+    // The state of a run is not part of the panel if it is ever serialized, only the labels are
+    private final transient ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<>();
+    private final transient Timer timer = new Timer(REFRESH_MILLIS, e -> refresh());
+
+    // Everything below is only touched on the event thread
+    private final JLabel stageLabel = line(Font.BOLD);
+    private final JLabel progressLabel = line(Font.PLAIN);
+    private final JLabel rateLabel = line(Font.PLAIN);
+    private final JLabel modelsLabel = line(Font.PLAIN);
+    private final JLabel workersLabel = line(Font.PLAIN);
+    private final JLabel stragglersLabel = line(Font.PLAIN);
+    private transient String stage = "";
+    private transient int jobsDone;
+    private transient int totalJobs;
+    private transient long startMillis;
+    // Start time of each running job
+    private final transient Map<AnalysisJob, Long> running = new LinkedHashMap<>();
+    private final transient ArrayDeque<Long> recentFinishes = new ArrayDeque<>();
+    // Count and total seconds of the measured jobs, by technique and model and by model
+    private final transient Map<String, double[]> pairSeconds = new HashMap<>();
+    private final transient Map<String, double[]> modelSeconds = new TreeMap<>();
+    private final transient Map<String, Double> workerMemory = new TreeMap<>();
+
+    ProgressDashboard() {
+        super(new GridLayout(0, 1));
+        setOpaque(false);
+        add(stageLabel);
+        add(progressLabel);
+        add(rateLabel);
+        add(modelsLabel);
+        add(workersLabel);
+        add(stragglersLabel);
+    }
+
+    private static JLabel line(int style) {
+        JLabel label = new JLabel(" ");
+        label.setFont(new Font("Lucida Sans Unicode", style, 20));
+        label.setForeground(style == Font.BOLD ? new Color(0, 0, 139) : Color.BLACK);
+        return label;
+    }
+
+    // The methods below can be called from any thread
+
+    void start(int plannedJobs) {
+        long now = System.currentTimeMillis();
+        events.add(() -> reset(plannedJobs, now));
+        SwingUtilities.invokeLater(() -> {
+            refresh();
+            timer.start();
+        });
+    }
+
+    // Applies what is left and leaves the last figures on screen
+    void stop() {
+        SwingUtilities.invokeLater(() -> {
+            timer.stop();
+            refresh();
+        });
+    }
+
+    void stageStarted(String stage) {
+        events.add(() -> this.stage = stage);
+    }
+
+    void jobStarted(AnalysisJob job) {
+        long now = System.currentTimeMillis();
+        events.add(() -> running.put(job, now));
+    }
+
+    void jobFinished(JobResult result, int jobsDone, int totalJobs) {
+        long now = System.currentTimeMillis();
+        events.add(() -> finished(result, jobsDone, totalJobs, now));
+    }
+
+    // 0 once the worker stopped
+    void workerMemory(String worker, double rssMb) {
+        events.add(() -> {
+            if (rssMb > 0) {
+                workerMemory.put(worker, rssMb);
+            } else {
+                workerMemory.remove(worker);
+            }
+        });
+    }
+
+    private void reset(int plannedJobs, long now) {
+        stage = "";
+        jobsDone = 0;
+        totalJobs = plannedJobs;
+        startMillis = now;
+        running.clear();
+        recentFinishes.clear();
+        pairSeconds.clear();
+        modelSeconds.clear();
+        workerMemory.clear();
+    }
+
+    private void finished(JobResult result, int jobsDone, int totalJobs, long now) {
+        this.jobsDone = jobsDone;
+        this.totalJobs = totalJobs;
+        // Jobs resumed from the journal and jobs cancelled before they started never ran here
+        if (running.remove(result.job()) == null || result.status() == JobStatus.CANCELLED) {
+            return;
+        }
+        recentFinishes.addLast(now);
+        if (result.isOk() && result.elapsedMillis() > 0) {
+            double seconds = result.elapsedMillis() / 1000.0;
+            add(pairSeconds, pair(result.job()), seconds);
+            add(modelSeconds, result.job().model(), seconds);
+        }
+    }
+
+    private static void add(Map<String, double[]> durations, String key, double seconds) {
+        double[] total = durations.computeIfAbsent(key, k -> new double[2]);
+        total[0]++;
+        total[1] += seconds;
+    }
+
+    private static String pair(AnalysisJob job) {
+        return job.technique() + " / " + job.model();
+    }
+
+    private void refresh() {
+        Runnable event;
+        while ((event = events.poll()) != null) {
+            event.run();
+        }
+
+        long now = System.currentTimeMillis();
+        while (!recentFinishes.isEmpty() && recentFinishes.peekFirst() < now - RATE_WINDOW_MILLIS) {
+            recentFinishes.pollFirst();
+        }
+        int queued = Math.max(0, totalJobs - jobsDone - running.size());
+        long window = Math.min(RATE_WINDOW_MILLIS, Math.max(1, now - startMillis));
+
+        stageLabel.setText(stage.isEmpty() ? " " : stage);
+        progressLabel.setText(String.format(Locale.ROOT, "Jobs done: %d of %d   Running: %d   Queued: %d", jobsDone, totalJobs, running.size(), queued));
+        rateLabel.setText(String.format(Locale.ROOT, "%.1f jobs/min   Elapsed: %s   Time left: %s", recentFinishes.size() * 60_000.0 / window,
+                                        duration((now - startMillis) / 1000.0), timeLeft(queued, now)));
+
+        List<String> models = new ArrayList<>();
+        modelSeconds.forEach((model, total) -> models.add(String.format(Locale.ROOT, "%s %s", model, duration(total[1] / total[0]))));
+        modelsLabel.setText(models.isEmpty() ? "Average per model: measuring..." : "Average per model: " + String.join(", ", models));
+
+        List<String> workers = new ArrayList<>();
+        workerMemory.forEach((worker, rssMb) -> workers.add(String.format(Locale.ROOT, "%s %.0f MB", worker, rssMb)));
+        workersLabel.setText(workers.isEmpty() ? " " : "Worker memory: " + String.join(", ", workers));
+
+        stragglersLabel.setText(stragglers(now));
+    }
+
+    // Seconds a job of this pair is expected to take, the mean over every pair for a pair not measured yet, -1 before any
+    private double expectedSeconds(AnalysisJob job) {
+        double[] total = pairSeconds.get(pair(job));
+        if (total != null) {
+            return total[1] / total[0];
+        }
+        return meanPairSeconds();
+    }
+
+    // Every pair counts the same, as each of them has the same number of jobs left in a plain run
+    private double meanPairSeconds() {
+        if (pairSeconds.isEmpty()) {
+            return -1;
+        }
+        double sum = 0;
+        for (double[] total : pairSeconds.values()) {
+            sum += total[1] / total[0];
+        }
+        return sum / pairSeconds.size();
+    }
+
+    // The queued jobs shared among as many jobs as are running now, or the longest running job when nothing is queued
+    private String timeLeft(int queued, long now) {
+        double mean = meanPairSeconds();
+        if (mean < 0) {
+            return "measuring...";
+        }
+        double runningLeft = 0;
+        double longestLeft = 0;
+        for (Map.Entry<AnalysisJob, Long> job : running.entrySet()) {
+            double left = Math.max(0, expectedSeconds(job.getKey()) - (now - job.getValue()) / 1000.0);
+            runningLeft += left;
+            longestLeft = Math.max(longestLeft, left);
+        }
+        double seconds = Math.max(longestLeft, (queued * mean + runningLeft) / Math.max(1, running.size()));
+        return duration(seconds);
+    }
+
+    private String stragglers(long now) {
+        List<Map.Entry<AnalysisJob, Long>> slow = new ArrayList<>();
+        for (Map.Entry<AnalysisJob, Long> job : running.entrySet()) {
+            double expected = expectedSeconds(job.getKey());
+            if (expected > 0 && (now - job.getValue()) / 1000.0 > STRAGGLER_FACTOR * expected) {
+                slow.add(job);
+            }
+        }
+        if (slow.isEmpty()) {
+            return " ";
+        }
+        // Longest running first
+        slow.sort(Map.Entry.comparingByValue());
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<AnalysisJob, Long> job : slow.subList(0, Math.min(MAX_STRAGGLERS, slow.size()))) {
+            names.add(job.getKey() + " (" + duration((now - job.getValue()) / 1000.0) + ")");
+        }
+        return "Slow: " + String.join(", ", names) + (slow.size() > MAX_STRAGGLERS ? " and " + (slow.size() - MAX_STRAGGLERS) + " more" : "");
+    }
+
+    static String duration(double seconds) {
+        long total = Math.round(seconds);
+        if (total >= 3600) {
+            return String.format(Locale.ROOT, "%dh %02dm", total / 3600, total % 3600 / 60);
+        }
+        if (total >= 60) {
+            return String.format(Locale.ROOT, "%dm %02ds", total / 60, total % 60);
+        }
+        return seconds < 10 ? String.format(Locale.ROOT, "%.1fs", seconds) : total + "s";
+    }
+}
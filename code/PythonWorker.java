@@ -0,0 +1,238 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A long-lived code/program_worker.py process, talked to with one tab separated line per request
+//
+// Both output streams are drained by their own virtual thread: protocol lines are parsed as they arrive,
+// everything else goes to the log of the job being run, or to the worker's own log between jobs
+class PythonWorker implements AnalysisWorker {
+    private static final String END_OF_OUTPUT = "\u0000EOF";
+
+    // Raised when the worker answered the request with an error, the worker itself can still be used
+    static class RequestFailedException extends Exception {
+        RequestFailedException(String message) {
+            super(message);
+        }
+    }
+
+    // Raised when a request ran out of time, the worker has been killed
+    static class RequestTimedOutException extends IOException {
+        RequestTimedOutException(String message) {
+            super(message);
+        }
+    }
+
+    private final int id;
+    private final Process process;
+    private final BufferedWriter writer;
+    private final JobLog workerLog;
+    private final LinkedBlockingQueue<String> responses = new LinkedBlockingQueue<>();
+    private final ProcessSampler sampler;
+    // One request at a time. Not a monitor, as requests from worker agents run on virtual threads that would stay
+    // pinned to their carrier thread while waiting for the answer
+    private final ReentrantLock requestLock = new ReentrantLock();
+    private volatile JobLog currentLog;
+    private int jobsServed;
+    private double rssMb;
+    private final Map<String, Double> startupSeconds = new LinkedHashMap<>();
+
+    PythonWorker(int id, List<String> command, JobLog workerLog) throws IOException {
+        this.id = id;
+        this.workerLog = workerLog;
+        this.currentLog = workerLog;
+        long startTime = System.nanoTime();
+        process = new ProcessBuilder(command).start();
+        sampler = new ProcessSampler(process.toHandle());
+        writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+
+        OutputPump.start("worker-" + id + "-stdout", process.getInputStream(), this::stdoutLine, () -> responses.add(END_OF_OUTPUT));
+        OutputPump.start("worker-" + id + "-stderr", process.getErrorStream(), line -> currentLog.line(line), () -> { });
+
+        try {
+            // The worker reports how long its imports took, the rest is process and interpreter start
+            Map<String, String> ready = readResponse();
+            double totalSeconds = (System.nanoTime() - startTime) / 1e9;
+            double importSeconds = Double.parseDouble(ready.getOrDefault("import_seconds", "0"));
+            startupSeconds.put("process start", Math.max(0, totalSeconds - importSeconds));
+            startupSeconds.put("imports", importSeconds);
+            sampler.setClockTicksPerSecond(Double.parseDouble(ready.getOrDefault("clock_ticks", String.valueOf(ProcessSampler.DEFAULT_CLOCK_TICKS_PER_SECOND))));
+        } catch (RequestFailedException | InterruptedException e) {
+            close();
+            throw new IOException("Worker " + id + " failed to start: " + e.getMessage());
+        }
+    }
+
+    private void stdoutLine(String line) {
+        // The worker is done loading the dataset or warming up, the job is measured from here
+        if (line.equals("MEASURE")) {
+            sampler.start();
+            try {
+                writer.write("GO");
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                // The worker is gone, the request fails when its answer does not come
+            }
+            return;
+        }
+        if (line.equals("READY") || line.startsWith("READY\t") || line.startsWith("OK\t") || line.equals("OK") || line.startsWith("ERR\t")) {
+            responses.add(line);
+        } else {
+            currentLog.line(line);
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    @Override
+    public int getJobsServed() {
+        return jobsServed;
+    }
+
+    @Override
+    public double getRssMb() {
+        return rssMb;
+    }
+
+    Map<String, Double> getStartupSeconds() {
+        return startupSeconds;
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    // A timeout of 0 waits for as long as the request takes
+    @Override
+    public Map<String, String> execute(String command, Map<String, String> arguments, JobLog jobLog, long timeoutMillis) throws IOException, InterruptedException, RequestFailedException {
+        StringBuilder request = new StringBuilder(command);
+        for (Map.Entry<String, String> argument : arguments.entrySet()) {
+            request.append('\t').append(argument.getKey()).append('=').append(argument.getValue());
+        }
+        // Memory is measured from here when possible, so the worker does not poll it during the job
+        if (sampler.measuresMemory()) {
+            request.append("\tmemory_monitor=off");
+        }
+
+        requestLock.lockInterruptibly();
+        currentLog = jobLog;
+        try {
+            sampler.start();
+            writer.write(request.toString());
+            writer.newLine();
+            writer.flush();
+
+            jobsServed++;
+            Map<String, String> values = timeoutMillis > 0 ? readResponse(timeoutMillis) : readResponse();
+            sampler.finish(values);
+            return values;
+        } finally {
+            currentLog = workerLog;
+            requestLock.unlock();
+        }
+    }
+
+    private Map<String, String> readResponse(long timeoutMillis) throws IOException, InterruptedException, RequestFailedException {
+        String line = responses.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (line == null) {
+            kill();
+            throw new RequestTimedOutException("No answer from worker " + id + " after " + timeoutMillis / 1000.0 + " seconds, the worker was stopped");
+        }
+        return parseResponse(line);
+    }
+
+    private Map<String, String> readResponse() throws IOException, InterruptedException, RequestFailedException {
+        return parseResponse(responses.take());
+    }
+
+    private Map<String, String> parseResponse(String line) throws IOException, RequestFailedException {
+        if (line.equals(END_OF_OUTPUT)) {
+            responses.add(END_OF_OUTPUT);
+            throw new IOException("Worker " + id + " exited unexpectedly (exit code " + exitCode() + ")");
+        }
+
+        String[] fields = line.split("\t");
+        if (fields[0].equals("ERR")) {
+            throw new RequestFailedException(fields.length > 1 ? unescape(fields[1]) : "Unknown worker error");
+        }
+
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 1; i < fields.length; i++) {
+            int separator = fields[i].indexOf('=');
+            if (separator > 0) {
+                values.put(fields[i].substring(0, separator), fields[i].substring(separator + 1));
+            }
+        }
+
+        String rss = values.remove("worker_rss");
+        if (rss != null) {
+            rssMb = Double.parseDouble(rss);
+        }
+        return values;
+    }
+
+    private String exitCode() {
+        try {
+            return process.waitFor(1, TimeUnit.SECONDS) ? String.valueOf(process.exitValue()) : "unknown";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "unknown";
+        }
+    }
+
+    private static String unescape(String text) {
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                result.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "worker " + id;
+    }
+
+    // Stops the worker and everything it started (joblib and xgboost helpers included) right away
+    @Override
+    public void kill() {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (IOException e) {
+            process.destroyForcibly();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+        try {
+            workerLog.close();
+        } catch (IOException e) {
+            // Nothing more will be written to it anyway
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+// Runs the analyses of the run queue, each in its own folder under runs, several at a time
+//
+//     java -cp bin QueueService --concurrent-runs 2 --order size
+//     java -cp bin HeadlessRunner --submit true --csv "csv_examples/example - Iris.csv" --models SVM
+//
+// The runs going at the same time share one worker pool and one budget of cores, so a run in its last few jobs leaves
+// the free cores to the next one instead of to nobody. The parallel-jobs and python of a queued spec are replaced by
+// the service's own. Ctrl+C stops the running analyses, they resume when the service starts again
+public class QueueService {
+    static final long POLL_MILLIS = 2_000;
+    private static final DateTimeFormatter CLOCK = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private final RunQueue queue;
+    private final RunQueue.Order order;
+    private final int concurrentRuns;
+    private final int parallelJobs;
+    private final String python;
+    private final boolean untilEmpty;
+    private final int coordinatorPort;
+    private final String coordinatorBind;
+    private final String agentToken;
+    private final Map<String, AnalysisPipeline> active = new ConcurrentHashMap<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean stopping;
+
+    QueueService(RunQueue queue, Properties options) {
+        this.queue = queue;
+        this.order = RunQueue.Order.parse(options.getProperty("order", "fifo"));
+        this.concurrentRuns = Integer.parseInt(options.getProperty("concurrent-runs", "2").trim());
+        this.parallelJobs = Integer.parseInt(options.getProperty("parallel-jobs", String.valueOf(JobScheduler.defaultParallelism())).trim());
+        this.python = options.getProperty("python", System.getProperty("mlanalyzer.python", "python")).trim();
+        this.untilEmpty = Boolean.parseBoolean(options.getProperty("until-empty", "false").trim());
+        this.coordinatorPort = Integer.parseInt(options.getProperty("coordinator-port", "0").trim());
+        this.coordinatorBind = options.getProperty("coordinator-bind", RunConfiguration.DEFAULT_COORDINATOR_BIND).trim();
+        this.agentToken = options.getProperty("agent-token", "").trim();
+        if (concurrentRuns < 1 || parallelJobs < 1) {
+            throw new IllegalArgumentException("'concurrent-runs' and 'parallel-jobs' must be at least 1");
+        }
+        if (coordinatorPort > 0 && agentToken.isEmpty()) {
+            throw new IllegalArgumentException("'coordinator-port' needs an 'agent-token'");
+        }
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        Properties options;
+        QueueService service;
+        try {
+            options = HeadlessRunner.parseArguments(args);
+            service = new QueueService(new RunQueue(RunQueue.ROOT), options);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println();
+            System.err.println("Usage: java -cp bin QueueService [--option value ...]");
+            System.err.println("  --concurrent-runs <n>       analyses going at the same time, defaults to 2");
+            System.err.println("  --order <fifo|size>         which waiting analysis starts next: the oldest, or the smallest (default fifo)");
+            System.err.println("  --parallel-jobs <n>         cores shared by all the analyses, defaults to the number of cores");
+            System.err.println("  --python <executable>       defaults to 'python'");
+            System.err.println("  --until-empty <true|false>  stop once the queue is empty instead of waiting for more");
+            System.err.println("  --coordinator-port <n>      let worker agents connect and share the jobs of every analysis, see HeadlessRunner");
+            System.err.println("  --coordinator-bind <address> address the coordinator listens on, defaults to " + RunConfiguration.DEFAULT_COORDINATOR_BIND + " (this machine only)");
+            System.err.println("  --agent-token <text>        shared secret the agents must present, required with --coordinator-port");
+            return HeadlessRunner.EXIT_USAGE;
+        }
+
+        try {
+            FileLock lock = service.queue.lockService();
+            if (lock == null) {
+                System.err.println("Error: another queue service is running in this folder");
+                return HeadlessRunner.EXIT_ALREADY_RUNNING;
+            }
+            try {
+                return service.serve(options);
+            } finally {
+                lock.channel().close();
+                service.finished.countDown();
+            }
+        } catch (Exception e) {
+            System.err.println("Error: " + e);
+            return HeadlessRunner.EXIT_RUN_FAILED;
+        }
+    }
+
+    private int serve(Properties options) throws Exception {
+        queue.requeueInterrupted();
+        Path logDirectory = RunQueue.ROOT.resolve("logs").resolve(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH-mm-ss")));
+        RunLogs logs = new RunLogs(logDirectory, RunQueue.ROOT.resolve("error_log.txt"), (source, line) -> { });
+        CpuBudget cores = new CpuBudget(parallelJobs);
+        List<Thread> runThreads = new ArrayList<>();
+
+        // Ctrl+C stops the analyses and waits for them to wind down, so their journals and results stay consistent
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (finished.getCount() == 0) {
+                return;
+            }
+            stopping = true;
+            active.values().forEach(AnalysisPipeline::cancel);
+            synchronized (this) {
+                notifyAll();
+            }
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        Coordinator coordinator = coordinatorPort > 0 ? Coordinator.shared(coordinatorBind, coordinatorPort, agentToken) : null;
+        List<String> workerCommand = Arrays.asList(python, Paths.get("code", "program_worker.py").toString());
+        try (RunMetrics metrics = new RunMetrics(logDirectory);
+             WorkerPool pool = new WorkerPool(workerCommand, logs, metrics, parallelJobs)) {
+            if (coordinator != null) {
+                pool.setCapacityListener(cores::changeCapacity);
+                coordinator.attach(pool, logs.forStep("agents"));
+            }
+            print("queue service started, " + concurrentRuns + " analyses at a time on " + parallelJobs + " cores, " + order.name().toLowerCase(Locale.ROOT) + " order");
+
+            while (!stopping) {
+                boolean started = false;
+                synchronized (this) {
+                    while (active.size() < concurrentRuns && !stopping) {
+                        RunQueue.Entry entry = queue.claim(order);
+                        if (entry == null) {
+                            break;
+                        }
+                        started = true;
+                        Thread runThread = start(entry, pool, cores);
+                        if (runThread != null) {
+                            runThreads.add(runThread);
+                        }
+                    }
+                    if (untilEmpty && !started && active.isEmpty()) {
+                        break;
+                    }
+                    wait(POLL_MILLIS);
+                }
+            }
+
+            for (Thread runThread : runThreads) {
+                runThread.join();
+            }
+            if (coordinator != null) {
+                coordinator.detach(pool);
+            }
+        }
+        print("queue service stopped");
+        return HeadlessRunner.EXIT_OK;
+    }
+
+    // Null when the spec can not be run at all, it goes straight to failed
+    private Thread start(RunQueue.Entry entry, WorkerPool pool, CpuBudget cores) throws IOException {
+        RunConfiguration configuration;
+        try {
+            configuration = RunConfiguration.fromProperties(entry.spec());
+            configuration.python = python;
+            configuration.parallelJobs = parallelJobs;
+            configuration.validate();
+        } catch (IllegalArgumentException e) {
+            queue.finish(entry, false, e.getMessage());
+            print(entry.id() + ": failed, " + e.getMessage());
+            return null;
+        }
+        AnalysisPipeline pipeline = new AnalysisPipeline(configuration, new PipelineListener() {
+            @Override
+            public void stageStarted(String stage) {
+                print(entry.id() + ": " + stage);
+            }
+        }, entry.workspace(), pool, cores);
+        active.put(entry.id(), pipeline);
+        print(entry.id() + ": started in " + entry.workspace());
+
+        return Thread.ofPlatform().name("run " + entry.id()).start(() -> {
+            boolean succeeded = false;
+            String outcome;
+            try {
+                PipelineResult result = pipeline.run();
+                succeeded = true;
+                outcome = result.cancelled() ? null
+                        : String.format("%d jobs, %d failed, %.1f s", result.totalJobs(), result.failedJobs().size(), result.elapsedMillis() / 1000.0);
+            } catch (PipelineException e) {
+                outcome = e.getMessage() + ", details are in " + entry.workspace().errorLog();
+            } catch (Exception e) {
+                outcome = e.toString();
+            }
+
+            // A cancelled run stays in running and starts again, resuming from its journal, with the service
+            try {
+                if (outcome != null) {
+                    queue.finish(entry, succeeded, outcome);
+                    print(entry.id() + ": " + (succeeded ? "done, " : "failed, ") + outcome);
+                } else {
+                    print(entry.id() + ": stopped, it resumes when the service starts again");
+                }
+            } catch (IOException e) {
+                print(entry.id() + ": could not be moved out of the queue: " + e.getMessage());
+            }
+            synchronized (this) {
+                active.remove(entry.id());
+                notifyAll();
+            }
+        });
+    }
+
+    private static void print(String line) {
+        System.out.println("[" + LocalTime.now().format(CLOCK) + "] " + line);
+    }
+}
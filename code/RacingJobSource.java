@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Successive halving over the technique x model pairs
+//
+// Every pair first runs a few iterations on a small stratified sample of the cleaned data. After each round the pairs
+// are ranked by the mean of one metric and only the best share of them goes on to the next round, on a sample that is
+// larger by the same factor. The pairs that survive every round run all iterations on the full data.
+// A round only starts once every job of the round before it is in, the ranking needs all of them
+class RacingJobSource implements JobScheduler.JobSource {
+    private static class Pair {
+        final String technique;
+        final String model;
+        int samples;
+        double sum;
+        // Stage where the pair was dropped, null while it is still in the race
+        String eliminatedAt;
+        double meanAtElimination = Double.NaN;
+
+        Pair(String technique, String model) {
+            this.technique = technique;
+            this.model = model;
+        }
+
+        double mean() {
+            return samples == 0 ? Double.NaN : sum / samples;
+        }
+    }
+
+    private final List<Pair> pairs = new ArrayList<>();
+    private final int rounds;
+    private final double keep;
+    private final int roundIterations;
+    private final int fullIterations;
+    private final String metric;
+    private final boolean lowerIsBetter;
+    private final List<String> roundLines = new ArrayList<>();
+
+    private int round;
+    private List<Pair> alive;
+    // Jobs of the current round, handed out pair by pair
+    private int nextInRound;
+    private int running;
+    private int nextIndex;
+    private boolean stopped;
+
+    RacingJobSource(List<String> techniques, List<String> models, int rounds, double keep, int roundIterations, int fullIterations, String metric) {
+        for (String technique : techniques) {
+            for (String model : models) {
+                pairs.add(new Pair(technique, model));
+            }
+        }
+        this.alive = new ArrayList<>(pairs);
+        this.rounds = rounds;
+        this.keep = keep;
+        this.roundIterations = roundIterations;
+        this.fullIterations = fullIterations;
+        this.metric = metric;
+        this.lowerIsBetter = RunConfiguration.LOWER_IS_BETTER.contains(metric);
+    }
+
+    private boolean isFullRound() {
+        return round == rounds - 1;
+    }
+
+    // The last round is the full data, each round before it sees keep times the rows of the next one
+    private double fraction() {
+        return Math.pow(keep, rounds - 1 - round);
+    }
+
+    private String stage() {
+        return isFullRound() ? AnalysisJob.FULL_STAGE
+                             : String.format(Locale.ROOT, "round %d of %d at %.0f%%", round + 1, rounds, fraction() * 100);
+    }
+
+    private int iterationsPerPair() {
+        return isFullRound() ? fullIterations : roundIterations;
+    }
+
+    @Override
+    public AnalysisJob next() {
+        if (stopped) {
+            return null;
+        }
+        if (nextInRound == alive.size() * iterationsPerPair()) {
+            if (running > 0 || isFullRound()) {
+                return null;
+            }
+            endRound();
+        }
+
+        int iterations = iterationsPerPair();
+        Pair pair = alive.get(nextInRound / iterations);
+        int iteration = nextInRound % iterations;
+        nextInRound++;
+        running++;
+        return new AnalysisJob(nextIndex++, pair.technique, pair.model, iteration, isFullRound() ? 1.0 : fraction(), stage());
+    }
+
+    // Ranks the pairs still in the race and drops the ones below the cut, pairs without a single result rank last
+    private void endRound() {
+        Comparator<Pair> byMean = Comparator.comparingDouble(pair -> lowerIsBetter ? pair.mean() : -pair.mean());
+        List<Pair> ranked = new ArrayList<>(alive);
+        ranked.sort(Comparator.comparing((Pair pair) -> pair.samples == 0).thenComparing(byMean));
+
+        int survivors = Math.max(1, (int) Math.ceil(ranked.size() * keep));
+        String stage = stage();
+        for (Pair pair : ranked.subList(survivors, ranked.size())) {
+            pair.eliminatedAt = stage;
+            pair.meanAtElimination = pair.mean();
+        }
+        roundLines.add(String.format(Locale.ROOT, "%s: %d pairs, %d kept, cut at %s %s", stage, ranked.size(), survivors, metric,
+                                     format(ranked.get(survivors - 1).mean())));
+
+        // Each round ranks on its own results, a bigger sample should not be averaged with a smaller one
+        alive = new ArrayList<>(ranked.subList(0, survivors));
+        for (Pair pair : alive) {
+            pair.samples = 0;
+            pair.sum = 0;
+        }
+        round++;
+        nextInRound = 0;
+    }
+
+    @Override
+    public void finished(JobResult result) {
+        running--;
+        if (result.status() == JobStatus.CANCELLED) {
+            stopped = true;
+            return;
+        }
+        Double value = result.isOk() ? parse(result.metrics().get(metric)) : null;
+        if (value == null) {
+            return;
+        }
+        for (Pair pair : alive) {
+            if (pair.technique.equals(result.job().technique()) && pair.model.equals(result.job().model())) {
+                pair.samples++;
+                pair.sum += value;
+            }
+        }
+    }
+
+    private static Double parse(String value) {
+        try {
+            return value == null ? null : Double.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String format(double value) {
+        return Double.isNaN(value) ? "no results" : String.format(Locale.ROOT, "%.4f", value);
+    }
+
+    // Jobs handed out so far plus the rest of the race if the cut keeps the planned share
+    @Override
+    public int plannedJobs() {
+        int planned = nextIndex + alive.size() * iterationsPerPair() - nextInRound;
+        int remaining = alive.size();
+        for (int later = round + 1; later < rounds; later++) {
+            remaining = Math.max(1, (int) Math.ceil(remaining * keep));
+            planned += remaining * (later == rounds - 1 ? fullIterations : roundIterations);
+        }
+        return planned;
+    }
+
+    // One row per dropped pair for the results table, marking the round it lost
+    List<JobResult> eliminatedRows() {
+        List<JobResult> rows = new ArrayList<>();
+        for (Pair pair : pairs) {
+            if (pair.eliminatedAt != null) {
+                AnalysisJob job = new AnalysisJob(nextIndex + rows.size(), pair.technique, pair.model, 0, 1.0, pair.eliminatedAt);
+                rows.add(JobResult.eliminated(job, "Eliminated with " + metric + " " + format(pair.meanAtElimination)));
+            }
+        }
+        return rows;
+    }
+
+    List<String> summary() {
+        List<String> lines = new ArrayList<>(roundLines);
+        Map<String, List<String>> byStage = new LinkedHashMap<>();
+        for (Pair pair : pairs) {
+            String stage = pair.eliminatedAt != null ? "eliminated in " + pair.eliminatedAt : stopped ? "still racing when stopped" : "ran on the full data";
+            byStage.computeIfAbsent(stage, key -> new ArrayList<>()).add(pair.technique + " / " + pair.model
+                    + (pair.eliminatedAt != null ? " (" + format(pair.meanAtElimination) + ")" : ""));
+        }
+        for (Map.Entry<String, List<String>> stage : byStage.entrySet()) {
+            lines.add(stage.getKey() + ": " + String.join(", ", stage.getValue()));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// Writes each result row to the results table as soon as it arrives, so finished rows survive a crash
+// Failed and timed out jobs get a row with their status and no metrics, cancelled jobs are left out
+class ResultsSink implements AutoCloseable {
+    private final BufferedWriter writer;
+    private final List<String> parameters;
+    private final boolean withStage;
+    private final boolean withCores;
+    private final boolean withSearch;
+    private int rowsWritten;
+    private int successfulRows;
+
+    ResultsSink(Path file, List<String> parameters) throws IOException {
+        this(file, parameters, false, false, false);
+    }
+
+    ResultsSink(Path file, List<String> parameters, boolean withStage, boolean withCores, boolean withSearch) throws IOException {
+        this.parameters = parameters;
+        this.withStage = withStage;
+        this.withCores = withCores;
+        this.withSearch = withSearch;
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        writer.write(JobResult.csvHeader(parameters, withStage, withCores, withSearch));
+        writer.newLine();
+        writer.flush();
+    }
+
+    synchronized void append(JobResult result) throws IOException {
+        if (result.status() == JobStatus.CANCELLED) {
+            return;
+        }
+        writer.write(result.toCsvRow(parameters, withStage, withCores, withSearch));
+        writer.newLine();
+        writer.flush();
+        rowsWritten++;
+        if (result.isOk()) {
+            successfulRows++;
+        }
+    }
+
+    synchronized int getRowsWritten() {
+        return rowsWritten;
+    }
+
+    synchronized int getSuccessfulRows() {
+        return successfulRows;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,317 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+// Everything a run needs, filled from the configuration page or from a headless run spec
+class RunConfiguration {
+    static final List<String> DATA_CLEANING = List.of("Normalize", "Mean Imputation for Missing Values", "Remove Duplicate Data", "Collinearity Removal",
+                                                     "Remove ID Columns");
+    static final List<String> TECHNIQUES = List.of("No Technique", "PCA", "IncPCA", "ICA", "LDA");
+    static final List<String> MODELS = List.of("Naive Bayes", "SVM", "MLP", "DecisionTree", "RandomForest", "KNN", "LogReg", "GradientBoost", "XGBoost", "Custom AI Model");
+    static final List<String> OPTIMIZATIONS = List.of("Grid Search", "Random Search", "None");
+    static final List<String> CROSS_VALIDATIONS = List.of("K-Fold", "Hold-Out");
+    static final List<String> PARAMETERS = List.of("F1-Score", "Processing Time", "ROC AUC", "Memory Usage", "Precision", "Accuracy", "Recall", "CPU Time", "Peak Memory");
+    static final List<String> LOWER_IS_BETTER = List.of("Processing Time", "Memory Usage", "CPU Time", "Peak Memory");
+    static final int AGENT_WAIT_SECONDS = 300;
+    static final String DEFAULT_COORDINATOR_BIND = "127.0.0.1";
+
+    Path inputFile;
+    List<String> dataCleaning = new ArrayList<>();
+    List<String> techniques = new ArrayList<>(List.of("No Technique"));
+    List<String> models = new ArrayList<>(List.of("Naive Bayes"));
+    String optimization = "None";
+    String crossValidation = "Hold-Out";
+    int iterations = 10;
+    List<String> parameters = new ArrayList<>(List.of("F1-Score"));
+    int parallelJobs = JobScheduler.defaultParallelism();
+    String python = System.getProperty("mlanalyzer.python", "python");
+    // Wall-clock budget of a single job in seconds, 0 means no limit, a model's own budget wins over the general one
+    int jobTimeoutSeconds = 0;
+    Map<String, Integer> modelTimeoutSeconds = new LinkedHashMap<>();
+    int retries = 0;
+    // Adaptive iterations: each pair repeats from minIterations up to iterations times, until the 95% confidence
+    // interval of adaptiveMetric (the first parameter when not set) is at most tolerance wide on each side
+    boolean adaptive = false;
+    int minIterations = 5;
+    double tolerance = 0.01;
+    String adaptiveMetric;
+    // Racing: every pair runs racingIterations times on a stratified sample in each of racingRounds - 1 rounds, the
+    // sample growing by 1 / racingKeep each round, and only the best racingKeep share of the pairs (by the first
+    // parameter) goes on to the next round. The pairs left at the end run all iterations on the full data
+    boolean racing = false;
+    int racingRounds = 3;
+    double racingKeep = 0.5;
+    int racingIterations = 3;
+    // Reuse the winning parameters of an earlier Grid or Random Search for the same dataset, technique and model
+    boolean searchCache = false;
+    // Spread each Grid or Random Search over the worker pool, one request per candidate and fold, with median pruning
+    boolean distributedSearch = false;
+    // Coordinator: worker agents connecting on this port (0 for none) with this token get jobs next to the local workers.
+    // The run waits up to AGENT_WAIT_SECONDS for waitForAgents of them before it starts. The coordinator only listens on
+    // coordinatorBind, this machine unless another address is given
+    int coordinatorPort = 0;
+    String coordinatorBind = DEFAULT_COORDINATOR_BIND;
+    String agentToken = "";
+    int waitForAgents = 0;
+    // Above 0 the CSV is cleaned in chunks of about this many MB instead of being read whole, for CSVs larger than memory
+    int cleaningMemoryMb = 0;
+    // Timing runs: each job is pinned to cores no other job uses, its math libraries get as many threads as it has
+    // cores, and each worker runs a pair warmupRuns times unmeasured before the first measured job of that pair
+    boolean pinCores = false;
+    int warmupRuns = 0;
+
+    // Keys are the same as the headless command line options, without the leading "--"
+    static RunConfiguration fromProperties(Properties spec) {
+        RunConfiguration configuration = new RunConfiguration();
+        String csv = spec.getProperty("csv");
+        if (csv != null) {
+            configuration.inputFile = Paths.get(csv);
+        }
+        configuration.dataCleaning = listProperty(spec, "cleaning", configuration.dataCleaning);
+        configuration.techniques = listProperty(spec, "techniques", configuration.techniques);
+        configuration.models = listProperty(spec, "models", configuration.models);
+        configuration.optimization = spec.getProperty("optimization", configuration.optimization).trim();
+        configuration.crossValidation = spec.getProperty("cross-validation", configuration.crossValidation).trim();
+        configuration.iterations = intProperty(spec, "iterations", configuration.iterations);
+        configuration.parameters = listProperty(spec, "parameters", configuration.parameters);
+        configuration.parallelJobs = intProperty(spec, "parallel-jobs", configuration.parallelJobs);
+        configuration.python = spec.getProperty("python", configuration.python).trim();
+        configuration.jobTimeoutSeconds = intProperty(spec, "job-timeout", configuration.jobTimeoutSeconds);
+        for (String budget : listProperty(spec, "model-timeouts", List.of())) {
+            int separator = budget.lastIndexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("'model-timeouts' expects model=seconds pairs, got '" + budget + "'");
+            }
+            configuration.modelTimeoutSeconds.put(budget.substring(0, separator).trim(), parseInt("model-timeouts", budget.substring(separator + 1)));
+        }
+        configuration.retries = intProperty(spec, "retries", configuration.retries);
+        configuration.adaptive = Boolean.parseBoolean(spec.getProperty("adaptive", String.valueOf(configuration.adaptive)).trim());
+        configuration.minIterations = intProperty(spec, "min-iterations", configuration.minIterations);
+        configuration.tolerance = doubleProperty(spec, "tolerance", configuration.tolerance);
+        String adaptiveMetric = spec.getProperty("adaptive-metric");
+        if (adaptiveMetric != null && !adaptiveMetric.isBlank()) {
+            configuration.adaptiveMetric = adaptiveMetric.trim();
+        }
+        configuration.racing = Boolean.parseBoolean(spec.getProperty("racing", String.valueOf(configuration.racing)).trim());
+        configuration.racingRounds = intProperty(spec, "racing-rounds", configuration.racingRounds);
+        configuration.racingKeep = doubleProperty(spec, "racing-keep", configuration.racingKeep);
+        configuration.racingIterations = intProperty(spec, "racing-iterations", configuration.racingIterations);
+        configuration.searchCache = Boolean.parseBoolean(spec.getProperty("search-cache", String.valueOf(configuration.searchCache)).trim());
+        configuration.distributedSearch = Boolean.parseBoolean(spec.getProperty("distributed-search", String.valueOf(configuration.distributedSearch)).trim());
+        configuration.coordinatorPort = intProperty(spec, "coordinator-port", configuration.coordinatorPort);
+        configuration.coordinatorBind = spec.getProperty("coordinator-bind", configuration.coordinatorBind).trim();
+        configuration.agentToken = spec.getProperty("agent-token", configuration.agentToken).trim();
+        configuration.waitForAgents = intProperty(spec, "wait-for-agents", configuration.waitForAgents);
+        configuration.cleaningMemoryMb = intProperty(spec, "cleaning-memory", configuration.cleaningMemoryMb);
+        configuration.pinCores = Boolean.parseBoolean(spec.getProperty("pin-cores", String.valueOf(configuration.pinCores)).trim());
+        configuration.warmupRuns = intProperty(spec, "warmup-runs", configuration.warmupRuns);
+        return configuration;
+    }
+
+    // The other way round, for runs handed to the run queue. The CSV is stored with its full path
+    Properties toProperties() {
+        Properties spec = new Properties();
+        spec.setProperty("csv", inputFile.toAbsolutePath().toString());
+        spec.setProperty("cleaning", String.join(",", dataCleaning));
+        spec.setProperty("techniques", String.join(",", techniques));
+        spec.setProperty("models", String.join(",", models));
+        spec.setProperty("optimization", optimization);
+        spec.setProperty("cross-validation", crossValidation);
+        spec.setProperty("iterations", String.valueOf(iterations));
+        spec.setProperty("parameters", String.join(",", parameters));
+        spec.setProperty("parallel-jobs", String.valueOf(parallelJobs));
+        spec.setProperty("python", python);
+        spec.setProperty("job-timeout", String.valueOf(jobTimeoutSeconds));
+        List<String> budgets = new ArrayList<>();
+        modelTimeoutSeconds.forEach((model, seconds) -> budgets.add(model + "=" + seconds));
+        spec.setProperty("model-timeouts", String.join(",", budgets));
+        spec.setProperty("retries", String.valueOf(retries));
+        spec.setProperty("adaptive", String.valueOf(adaptive));
+        spec.setProperty("min-iterations", String.valueOf(minIterations));
+        spec.setProperty("tolerance", String.valueOf(tolerance));
+        if (adaptiveMetric != null) {
+            spec.setProperty("adaptive-metric", adaptiveMetric);
+        }
+        spec.setProperty("racing", String.valueOf(racing));
+        spec.setProperty("racing-rounds", String.valueOf(racingRounds));
+        spec.setProperty("racing-keep", String.valueOf(racingKeep));
+        spec.setProperty("racing-iterations", String.valueOf(racingIterations));
+        spec.setProperty("search-cache", String.valueOf(searchCache));
+        spec.setProperty("distributed-search", String.valueOf(distributedSearch));
+        spec.setProperty("cleaning-memory", String.valueOf(cleaningMemoryMb));
+        spec.setProperty("pin-cores", String.valueOf(pinCores));
+        spec.setProperty("warmup-runs", String.valueOf(warmupRuns));
+        return spec;
+    }
+
+    private static List<String> listProperty(Properties spec, String key, List<String> defaultValue) {
+        String value = spec.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        List<String> values = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.isBlank()) {
+                values.add(item.trim());
+            }
+        }
+        return values;
+    }
+
+    private static int intProperty(Properties spec, String key, int defaultValue) {
+        String value = spec.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return parseInt(key, value);
+    }
+
+    private static double doubleProperty(Properties spec, String key, double defaultValue) {
+        String value = spec.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + key + "' must be a number, got '" + value + "'");
+        }
+    }
+
+    private static int parseInt(String key, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + key + "' must be a whole number, got '" + value + "'");
+        }
+    }
+
+    void validate() {
+        if (inputFile == null) {
+            throw new IllegalArgumentException("No input CSV given");
+        }
+        checkNames("cleaning", dataCleaning, DATA_CLEANING);
+        checkNames("techniques", techniques, TECHNIQUES);
+        checkNames("models", models, MODELS);
+        checkNames("optimization", List.of(optimization), OPTIMIZATIONS);
+        checkNames("cross-validation", List.of(crossValidation), CROSS_VALIDATIONS);
+        checkNames("parameters", parameters, PARAMETERS);
+        if (techniques.isEmpty() || models.isEmpty() || parameters.isEmpty()) {
+            throw new IllegalArgumentException("At least one technique, model and parameter is needed");
+        }
+        if (iterations < 1 || iterations > 999) {
+            throw new IllegalArgumentException("'iterations' must be between 1 and 999");
+        }
+        if (parallelJobs < 1) {
+            throw new IllegalArgumentException("'parallel-jobs' must be at least 1");
+        }
+        checkNames("model-timeouts", new ArrayList<>(modelTimeoutSeconds.keySet()), MODELS);
+        if (jobTimeoutSeconds < 0 || retries < 0 || modelTimeoutSeconds.values().stream().anyMatch(seconds -> seconds < 0)) {
+            throw new IllegalArgumentException("Time limits and retries can not be negative");
+        }
+        if (adaptive) {
+            if (minIterations < 2 || minIterations > iterations) {
+                throw new IllegalArgumentException("'min-iterations' must be between 2 and 'iterations'");
+            }
+            if (!(tolerance > 0)) {
+                throw new IllegalArgumentException("'tolerance' must be above 0");
+            }
+            if (!parameters.contains(adaptiveMetric())) {
+                throw new IllegalArgumentException("'adaptive-metric' must be one of the parameters " + parameters);
+            }
+        }
+        if (racing) {
+            if (adaptive) {
+                throw new IllegalArgumentException("'racing' and 'adaptive' can not be used together");
+            }
+            if (racingRounds < 2) {
+                throw new IllegalArgumentException("'racing-rounds' must be at least 2");
+            }
+            if (!(racingKeep > 0 && racingKeep < 1)) {
+                throw new IllegalArgumentException("'racing-keep' must be between 0 and 1");
+            }
+            if (racingIterations < 1) {
+                throw new IllegalArgumentException("'racing-iterations' must be at least 1");
+            }
+        }
+        if (coordinatorPort < 0 || coordinatorPort > 65535) {
+            throw new IllegalArgumentException("'coordinator-port' must be between 0 and 65535");
+        }
+        // Agents receive the cleaned data and send back results, an open port would take them from anyone
+        if (coordinatorPort > 0 && agentToken.isEmpty()) {
+            throw new IllegalArgumentException("'coordinator-port' needs an 'agent-token'");
+        }
+        if (waitForAgents < 0 || waitForAgents > 0 && coordinatorPort == 0) {
+            throw new IllegalArgumentException("'wait-for-agents' needs a 'coordinator-port' and can not be negative");
+        }
+        if (cleaningMemoryMb < 0) {
+            throw new IllegalArgumentException("'cleaning-memory' can not be negative");
+        }
+        if (warmupRuns < 0 || warmupRuns > 99) {
+            throw new IllegalArgumentException("'warmup-runs' must be between 0 and 99");
+        }
+        // Searches spread over the workers and jobs on other machines would run next to the pinned jobs
+        if (pinCores && (coordinatorPort > 0 || distributedSearch && !optimization.equals("None"))) {
+            throw new IllegalArgumentException("'pin-cores' can not be used with 'coordinator-port' or 'distributed-search'");
+        }
+    }
+
+    String adaptiveMetric() {
+        return adaptiveMetric != null ? adaptiveMetric : parameters.get(0);
+    }
+
+    private static void checkNames(String key, List<String> values, List<String> allowed) {
+        for (String value : values) {
+            if (!allowed.contains(value)) {
+                throw new IllegalArgumentException("Unknown " + key + " '" + value + "', expected one of " + allowed);
+            }
+        }
+    }
+
+    long timeoutMillisFor(String model) {
+        return modelTimeoutSeconds.getOrDefault(model, jobTimeoutSeconds) * 1000L;
+    }
+
+    // Identifies the run in the run journal, options that do not change the results (where the jobs run included) are left out
+    String describe() {
+        return "cleaning=" + String.join(", ", dataCleaning) + ";techniques=" + String.join(",", techniques)
+               + ";models=" + String.join(",", models) + ";optimization=" + optimization
+               + ";cross_validation=" + crossValidation + ";iterations=" + iterations
+               + ";parameters=" + String.join(",", parameters)
+               + (adaptive ? ";adaptive=" + minIterations + "," + tolerance + "," + adaptiveMetric() : "")
+               + (racing ? ";racing=" + racingRounds + "," + racingKeep + "," + racingIterations : "")
+               + (searchCache && !optimization.equals("None") ? ";search-cache=true" : "")
+               + (distributedSearch && !optimization.equals("None") ? ";distributed-search=true" : "")
+               + (cleaningMemoryMb > 0 ? ";streaming-cleaning=true" : "")
+               + (pinCores ? ";pin-cores=true" : "")
+               + (warmupRuns > 0 ? ";warmup-runs=" + warmupRuns : "");
+    }
+
+    @Override
+    public String toString() {
+        return "csv=" + inputFile + "\n"
+               + "cleaning=" + String.join(",", dataCleaning) + "\n"
+               + "techniques=" + String.join(",", techniques) + "\n"
+               + "models=" + String.join(",", models) + "\n"
+               + "optimization=" + optimization + "\n"
+               + "cross-validation=" + crossValidation + "\n"
+               + "iterations=" + iterations + "\n"
+               + "parameters=" + String.join(",", parameters) + "\n"
+               + "parallel-jobs=" + parallelJobs + "\n"
+               + "python=" + python + "\n"
+               + "job-timeout=" + jobTimeoutSeconds + "\n"
+               + "model-timeouts=" + modelTimeoutSeconds + "\n"
+               + "retries=" + retries
+               + (adaptive ? "\nadaptive=true, min-iterations=" + minIterations + ", tolerance=" + tolerance + ", adaptive-metric=" + adaptiveMetric() : "")
+               + (racing ? "\nracing=true, racing-rounds=" + racingRounds + ", racing-keep=" + racingKeep + ", racing-iterations=" + racingIterations : "")
+               + (searchCache ? "\nsearch-cache=true" : "")
+               + (distributedSearch ? "\ndistributed-search=true" : "")
+               + (coordinatorPort > 0 ? "\ncoordinator-port=" + coordinatorPort + ", coordinator-bind=" + coordinatorBind + ", wait-for-agents=" + waitForAgents : "")
+               + (cleaningMemoryMb > 0 ? "\ncleaning-memory=" + cleaningMemoryMb : "")
+               + (pinCores || warmupRuns > 0 ? "\npin-cores=" + pinCores + ", warmup-runs=" + warmupRuns : "");
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Append-only record of a run, so an interrupted run can be restarted without redoing the finished jobs
+//
+//     CONFIG <TAB> run configuration
+//     INPUT  <TAB> sha-256 of the input CSV
+//     SEED   <TAB> seed of the splits, kept so a resumed run splits the data like the interrupted one
+//     DONE   <TAB> job key <TAB> metric=value ...
+//     FAILED or TIMED_OUT <TAB> job key <TAB> last line of the error
+//
+// Only DONE jobs are skipped on restart, failed and timed out ones get another chance
+class RunJournal implements AutoCloseable {
+    private final Path file;
+    private final FileChannel channel;
+    private final Map<String, Map<String, String>> finishedJobs;
+    private final long seed;
+
+    private RunJournal(Path file, Map<String, Map<String, String>> finishedJobs, long seed) throws IOException {
+        this.file = file;
+        this.finishedJobs = finishedJobs;
+        this.seed = seed;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Picks up the existing journal when it belongs to the same configuration and input file, otherwise starts a new one
+    static RunJournal open(Path file, String configuration, String inputHash) throws IOException {
+        Map<String, Map<String, String>> finishedJobs = new HashMap<>();
+        boolean resumable = false;
+        long seed = 0;
+
+        if (Files.exists(file)) {
+            String[] lines = Files.readString(file, StandardCharsets.UTF_8).split("\n", -1);
+            resumable = lines.length > 3
+                        && lines[0].equals("CONFIG\t" + configuration)
+                        && lines[1].equals("INPUT\t" + inputHash)
+                        && lines[2].matches("SEED\t\\d+");
+            if (resumable) {
+                seed = Long.parseLong(lines[2].substring("SEED\t".length()));
+            }
+
+            // The last element is whatever follows the final newline, a line cut short by a crash is left out
+            for (int i = 3; resumable && i < lines.length - 1; i++) {
+                String[] fields = lines[i].split("\t");
+                if (fields[0].equals("DONE") && fields.length > 1) {
+                    Map<String, String> metrics = new LinkedHashMap<>();
+                    for (int j = 2; j < fields.length; j++) {
+                        int separator = fields[j].indexOf('=');
+                        if (separator > 0) {
+                            metrics.put(fields[j].substring(0, separator), fields[j].substring(separator + 1));
+                        }
+                    }
+                    finishedJobs.put(fields[1], metrics);
+                }
+            }
+        }
+
+        if (!resumable) {
+            finishedJobs.clear();
+            seed = new SecureRandom().nextLong() & Long.MAX_VALUE;
+            Files.writeString(file, "CONFIG\t" + configuration + "\nINPUT\t" + inputHash + "\nSEED\t" + seed + "\n", StandardCharsets.UTF_8);
+        }
+        return new RunJournal(file, finishedJobs, seed);
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    int getFinishedJobCount() {
+        return finishedJobs.size();
+    }
+
+    // The result saved by an earlier attempt of this run, or null when the job still has to run
+    JobResult finishedResult(AnalysisJob job) {
+        Map<String, String> metrics = finishedJobs.get(job.key());
+        return metrics == null ? null : new JobResult(job, metrics);
+    }
+
+    synchronized void record(JobResult result) throws IOException {
+        if (result.status() == JobStatus.CANCELLED) {
+            return;
+        }
+
+        StringBuilder line = new StringBuilder();
+        if (!result.isOk()) {
+            String reason = result.message().strip();
+            int lineBreak = reason.lastIndexOf('\n');
+            line.append(result.status().name()).append('\t').append(result.job().key()).append('\t').append(reason.substring(lineBreak + 1).replace('\t', ' '));
+        } else {
+            line.append("DONE\t").append(result.job().key());
+            for (Map.Entry<String, String> metric : result.metrics().entrySet()) {
+                line.append('\t').append(metric.getKey()).append('=').append(metric.getValue());
+            }
+        }
+        line.append('\n');
+
+        ByteBuffer buffer = ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    // Called once every job of the run succeeded, the next run starts from scratch
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+// The log folder of one run: one file per job, pipeline step and worker, plus the summary in error_log.txt
+class RunLogs {
+    static final Path ERROR_LOG = RunWorkspace.MAIN.errorLog();
+
+    interface EventListener {
+        void line(String source, String line);
+    }
+
+    private final Path directory;
+    private final Path errorLog;
+    private final EventListener events;
+
+    RunLogs(Path directory, EventListener events) throws IOException {
+        this(directory, ERROR_LOG, events);
+    }
+
+    RunLogs(Path directory, Path errorLog, EventListener events) throws IOException {
+        this.directory = directory;
+        this.errorLog = errorLog;
+        this.events = events;
+        Files.createDirectories(directory);
+    }
+
+    static Path newRunDirectory(RunWorkspace workspace) {
+        return workspace.logs().resolve(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH-mm-ss")));
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    JobLog forJob(AnalysisJob job) {
+        String name = String.format("%05d %s - %s - %d.log", job.index(), job.technique(), job.model(), job.iteration() + 1);
+        return open(name, job.toString());
+    }
+
+    JobLog forStep(String step) {
+        return open(step + ".log", step);
+    }
+
+    JobLog forWorker(int workerId) {
+        return open("worker " + workerId + ".log", "worker " + workerId);
+    }
+
+    private JobLog open(String fileName, String source) {
+        return new JobLog(directory.resolve(fileName), line -> events.line(source, line));
+    }
+
+    // error_log.txt only covers the latest run of its folder
+    void clearErrorLog() throws IOException {
+        Files.deleteIfExists(errorLog);
+    }
+
+    // error_log.txt only lists what failed and where to find the full output
+    synchronized void error(String title, JobLog log, String details) throws IOException {
+        String lastLine = details.strip();
+        lastLine = lastLine.substring(lastLine.lastIndexOf('\n') + 1);
+        String entry = title + "\n    " + lastLine + "\n    Full output: " + log.getFile() + "\n\n";
+        Files.writeString(errorLog, entry, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Where the time of a run went: every timed phase is appended to metrics.jsonl in the run's log folder and
+// sent to Flight Recorder, and the totals per phase end up in phase_breakdown.csv
+//
+// Scopes: "stage" for the pipeline steps (wall time), "worker" for starting the Python workers,
+// "job" for the phases of each analysis as measured inside the worker, plus the time spent around them
+class RunMetrics implements AutoCloseable {
+    static final String METRICS_FILE = "metrics.jsonl";
+    static final String BREAKDOWN_FILE = "phase_breakdown.csv";
+
+    record PhaseTotal(String scope, String phase, int count, double seconds) {
+    }
+
+    private final Path directory;
+    private final BufferedWriter writer;
+    private final long startTime = System.nanoTime();
+    private final Map<String, PhaseTotal> totals = new LinkedHashMap<>();
+
+    RunMetrics(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        writer = Files.newBufferedWriter(directory.resolve(METRICS_FILE), StandardCharsets.UTF_8);
+    }
+
+    // Job may be null for phases that do not belong to one analysis
+    synchronized void record(String scope, String phase, AnalysisJob job, double seconds) throws IOException {
+        PhaseEvent event = new PhaseEvent();
+        if (event.isEnabled()) {
+            event.scope = scope;
+            event.phase = phase;
+            event.job = job == null ? "" : job.toString();
+            event.spent = (long) (seconds * 1e9);
+            event.commit();
+        }
+
+        StringBuilder line = new StringBuilder("{\"at\":").append(String.format(Locale.ROOT, "%.3f", (System.nanoTime() - startTime) / 1e9))
+                .append(",\"scope\":").append(quote(scope))
+                .append(",\"phase\":").append(quote(phase));
+        if (job != null) {
+            line.append(",\"job\":").append(job.index())
+                .append(",\"technique\":").append(quote(job.technique()))
+                .append(",\"model\":").append(quote(job.model()))
+                .append(",\"iteration\":").append(job.iteration() + 1);
+        }
+        line.append(",\"seconds\":").append(String.format(Locale.ROOT, "%.6f", seconds)).append('}');
+        writer.write(line.toString());
+        writer.newLine();
+
+        String key = scope + "|" + phase;
+        PhaseTotal total = totals.get(key);
+        totals.put(key, total == null ? new PhaseTotal(scope, phase, 1, seconds)
+                                      : new PhaseTotal(scope, phase, total.count() + 1, total.seconds() + seconds));
+    }
+
+    // Seconds spent in the given phases, as reported by a worker ("phase.fit=0.25" and so on)
+    void recordJob(AnalysisJob job, Map<String, Double> phaseSeconds, double elapsedSeconds) throws IOException {
+        double measured = 0;
+        for (Map.Entry<String, Double> phase : phaseSeconds.entrySet()) {
+            record("job", phase.getKey(), job, phase.getValue());
+            measured += phase.getValue();
+        }
+        // Waiting for a free worker, the request round trip and whatever the worker does between the phases
+        record("job", "other", job, Math.max(0, elapsedSeconds - measured));
+    }
+
+    synchronized List<PhaseTotal> getTotals() {
+        return new ArrayList<>(totals.values());
+    }
+
+    // One line per phase with its share of the time of its scope
+    private void writeBreakdown() throws IOException {
+        Map<String, Double> scopeSeconds = new LinkedHashMap<>();
+        for (PhaseTotal total : totals.values()) {
+            scopeSeconds.merge(total.scope(), total.seconds(), Double::sum);
+        }
+
+        List<String> lines = new ArrayList<>();
+        lines.add("scope,phase,count,total seconds,mean seconds,share of scope");
+        for (PhaseTotal total : totals.values()) {
+            double scopeTotal = scopeSeconds.get(total.scope());
+            lines.add(String.format(Locale.ROOT, "%s,%s,%d,%.3f,%.4f,%.1f%%", total.scope(), total.phase(), total.count(), total.seconds(),
+                                    total.seconds() / total.count(), scopeTotal > 0 ? 100 * total.seconds() / scopeTotal : 0.0));
+        }
+        Files.write(directory.resolve(BREAKDOWN_FILE), lines, StandardCharsets.UTF_8);
+    }
+
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            writer.close();
+        } finally {
+            writeBreakdown();
+        }
+    }
+}
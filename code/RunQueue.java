@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+// Analyses waiting to run, as spec files in the queue folder
+//
+// Submitting writes the spec to queue/pending. The QueueService moves it to running while it goes, then to done or
+// failed with the outcome added to it. Any number of MLAnalyzer instances can submit at the same time: a spec is written
+// under a name nobody else can take and only appears in pending once it is complete
+class RunQueue {
+    static final Path ROOT = Paths.get("queue");
+    private static final DateTimeFormatter ID_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    enum Order {
+        // In the order they were submitted
+        FIFO,
+        // Smallest first (rows of the CSV times jobs), so short analyses are not stuck behind an overnight one
+        SIZE;
+
+        static Order parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("'order' must be fifo or size, got '" + value + "'");
+            }
+        }
+    }
+
+    record Entry(String id, Properties spec, long size) {
+        RunWorkspace workspace() {
+            return RunWorkspace.forQueuedRun(id);
+        }
+    }
+
+    private final Path pending;
+    private final Path running;
+    private final Path done;
+    private final Path failed;
+    private final Path serviceLock;
+
+    RunQueue(Path root) {
+        pending = root.resolve("pending");
+        running = root.resolve("running");
+        done = root.resolve("done");
+        failed = root.resolve("failed");
+        serviceLock = root.resolve("service.lock");
+    }
+
+    // Returns the id of the run, which is also the name of its folder under runs
+    String submit(RunConfiguration configuration) throws IOException {
+        configuration.validate();
+        Properties spec = configuration.toProperties();
+        spec.setProperty("submitted", LocalDateTime.now().toString());
+        Files.createDirectories(pending);
+
+        while (true) {
+            String id = newId(configuration);
+            Path reserved = pending.resolve(id + ".properties.tmp");
+            try {
+                Files.createFile(reserved);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            try (Writer writer = Files.newBufferedWriter(reserved, StandardCharsets.UTF_8)) {
+                spec.store(writer, "MLAnalyzer queued run");
+            }
+            Files.move(reserved, pending.resolve(id + ".properties"), StandardCopyOption.ATOMIC_MOVE);
+            return id;
+        }
+    }
+
+    // The time and the name of the CSV, safe as a folder name. Runs in the main folder are named the same way in the results store
+    static String newId(RunConfiguration configuration) {
+        String name = configuration.inputFile.getFileName().toString().replaceAll("(?i)\\.csv$", "").replaceAll("[^A-Za-z0-9 ._-]", "_");
+        return LocalDateTime.now().format(ID_TIME) + " " + name;
+    }
+
+    List<Entry> pending() throws IOException {
+        return list(pending);
+    }
+
+    List<Entry> running() throws IOException {
+        return list(running);
+    }
+
+    private static List<Entry> list(Path folder) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!Files.isDirectory(folder)) {
+            return entries;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*.properties")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                Properties spec = read(file);
+                entries.add(new Entry(fileName.substring(0, fileName.length() - ".properties".length()), spec, size(spec)));
+            }
+        }
+        entries.sort(Comparator.comparing(Entry::id));
+        return entries;
+    }
+
+    private static Properties read(Path file) throws IOException {
+        Properties spec = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            spec.load(reader);
+        }
+        return spec;
+    }
+
+    // Bytes of the CSV times the jobs of the run, a spec that does not make sense is let through to fail early
+    private static long size(Properties spec) {
+        try {
+            RunConfiguration configuration = RunConfiguration.fromProperties(spec);
+            long jobs = (long) configuration.techniques.size() * configuration.models.size() * configuration.iterations;
+            return Files.size(configuration.inputFile) * jobs;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // The next run to start, moved to running, or null when nothing is waiting
+    Entry claim(Order order) throws IOException {
+        List<Entry> entries = pending();
+        if (order == Order.SIZE) {
+            entries.sort(Comparator.comparingLong(Entry::size).thenComparing(Entry::id));
+        }
+        Files.createDirectories(running);
+        for (Entry entry : entries) {
+            try {
+                Files.move(pending.resolve(entry.id() + ".properties"), running.resolve(entry.id() + ".properties"), StandardCopyOption.ATOMIC_MOVE);
+                return entry;
+            } catch (NoSuchFileException e) {
+                // Withdrawn in the meantime
+            }
+        }
+        return null;
+    }
+
+    void finish(Entry entry, boolean succeeded, String outcome) throws IOException {
+        Path file = running.resolve(entry.id() + ".properties");
+        Files.writeString(file, "outcome=" + outcome.replace("\n", " ") + "\nfinished=" + LocalDateTime.now() + "\n",
+                          StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        Path target = succeeded ? done : failed;
+        Files.createDirectories(target);
+        Files.move(file, target.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Runs a stopped service left in running go back to the front of the queue, their journals let them resume
+    void requeueInterrupted() throws IOException {
+        for (Entry entry : running()) {
+            Files.createDirectories(pending);
+            Files.move(running.resolve(entry.id() + ".properties"), pending.resolve(entry.id() + ".properties"), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // Held by the QueueService for as long as it runs, null when another one has it
+    FileLock lockService() throws IOException {
+        Files.createDirectories(serviceLock.getParent());
+        FileChannel channel = FileChannel.open(serviceLock, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+            }
+            return lock;
+        } catch (OverlappingFileLockException e) {
+            channel.close();
+            return null;
+        }
+    }
+
+    boolean isServiceRunning() {
+        try {
+            FileLock lock = lockService();
+            if (lock == null) {
+                return true;
+            }
+            lock.channel().close();
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
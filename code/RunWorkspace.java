@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// The folder a run writes to: its run journal, split cache, results table, graphs, logs and error log
+//
+// Runs started from the interface or HeadlessRunner use the main folder. Queued runs each get a folder of their own
+// under runs, so several of them can go at the same time. The dataset and search caches stay shared, they are keyed by content
+class RunWorkspace {
+    static final RunWorkspace MAIN = new RunWorkspace(Paths.get(""));
+    static final Path RUNS = Paths.get("runs");
+
+    private final Path root;
+
+    RunWorkspace(Path root) {
+        this.root = root;
+    }
+
+    static RunWorkspace forQueuedRun(String id) {
+        return new RunWorkspace(RUNS.resolve(id));
+    }
+
+    // The name of a run in the results store: a queued run keeps its queue id, a run in the main folder gets a new one
+    String runId(RunConfiguration configuration) {
+        return root.toString().isEmpty() ? RunQueue.newId(configuration) : root.getFileName().toString();
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    Path runJournal() {
+        return root.resolve("resources").resolve("run_journal.txt");
+    }
+
+    Path splitCache() {
+        return root.resolve("resources").resolve("cache").resolve("splits");
+    }
+
+    Path resultsCsv() {
+        return root.resolve("results table").resolve("results.csv");
+    }
+
+    Path graphsPng() {
+        return root.resolve("results image").resolve("graphs.png");
+    }
+
+    Path errorLog() {
+        return root.resolve("error_log.txt");
+    }
+
+    Path logs() {
+        return root.resolve("logs");
+    }
+
+    // The report scripts run inside the workspace and expect these folders to be there
+    void create() throws IOException {
+        Files.createDirectories(root.resolve("resources"));
+        Files.createDirectories(resultsCsv().getParent());
+        Files.createDirectories(graphsPng().getParent());
+    }
+
+    @Override
+    public String toString() {
+        return root.toString().isEmpty() ? "the main folder" : root.toString();
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Runs analysis jobs for an MLAnalyzer coordinator on another machine (or on the same one, for testing)
+//
+//     java -cp bin WorkerAgent --coordinator 192.168.0.10:7070 --token secret --workers 8
+//
+// Run it from an MLAnalyzer folder, the jobs run on its code/program_worker.py. Datasets, splits and search results are
+// kept under --directory (default "agent"). The agent reconnects on its own when the coordinator goes away
+public class WorkerAgent {
+    static final long RECONNECT_MILLIS = 2_000;
+
+    private final String host;
+    private final int port;
+    private final String token;
+    private final String name;
+    private final int slots;
+    private final List<String> workerCommand;
+    private final Path directory;
+    private final DatasetCache datasets;
+    private final Path logDirectory;
+
+    private final LinkedBlockingDeque<PythonWorker> idleWorkers = new LinkedBlockingDeque<>();
+    private final Map<Long, PythonWorker> running = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Void>> transfers = new ConcurrentHashMap<>();
+    private final Map<String, Path> transferDirectories = new ConcurrentHashMap<>();
+    private final AtomicLong nextTransfer = new AtomicLong();
+    // Requests for a dataset that is on its way wait for it instead of fetching it again
+    private final Map<String, ReentrantLock> datasetLocks = new ConcurrentHashMap<>();
+    private int nextWorkerId;
+    private String currentSplitSeed;
+
+    WorkerAgent(Properties options) throws IOException {
+        String coordinator = options.getProperty("coordinator");
+        if (coordinator == null || coordinator.lastIndexOf(':') < 0) {
+            throw new IllegalArgumentException("--coordinator must be host:port");
+        }
+        host = coordinator.substring(0, coordinator.lastIndexOf(':'));
+        port = Integer.parseInt(coordinator.substring(coordinator.lastIndexOf(':') + 1).trim());
+        token = options.getProperty("token", "");
+        name = options.getProperty("name", InetAddress.getLocalHost().getHostName());
+        slots = Integer.parseInt(options.getProperty("workers", String.valueOf(JobScheduler.defaultParallelism())).trim());
+        if (slots < 1 || slots > Coordinator.MAX_SLOTS_PER_AGENT) {
+            throw new IllegalArgumentException("--workers must be 1 to " + Coordinator.MAX_SLOTS_PER_AGENT);
+        }
+        workerCommand = Arrays.asList(options.getProperty("python", "python"), options.getProperty("worker-script", Paths.get("code", "program_worker.py").toString()));
+        directory = Paths.get(options.getProperty("directory", "agent")).toAbsolutePath();
+        datasets = new DatasetCache(directory.resolve("datasets"));
+        logDirectory = directory.resolve("logs").resolve(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH-mm-ss")));
+    }
+
+    public static void main(String[] args) {
+        WorkerAgent agent;
+        try {
+            agent = new WorkerAgent(HeadlessRunner.parseArguments(args));
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println();
+            System.err.println("Usage: java -cp bin WorkerAgent --coordinator <host:port> [--option value ...]");
+            System.err.println("  --token <text>         shared secret, must match the coordinator's agent-token");
+            System.err.println("  --workers <n>          jobs run at the same time, defaults to the number of cores");
+            System.err.println("  --python <executable>  defaults to 'python'");
+            System.err.println("  --name <text>          shown in the coordinator's logs, defaults to the host name");
+            System.err.println("  --directory <folder>   datasets, caches and logs of the agent, defaults to 'agent'");
+            System.err.println("  --worker-script <file> defaults to code/program_worker.py, the benchmarks use code/program_stub_worker.py");
+            System.exit(HeadlessRunner.EXIT_USAGE);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(agent::stopWorkers));
+        System.exit(agent.run());
+    }
+
+    int run() {
+        while (true) {
+            try (AgentConnection connection = new AgentConnection(new Socket(host, port))) {
+                connection.send("HELLO", token, name, String.valueOf(slots));
+                List<String> reply = connection.receive();
+                if (!reply.get(0).equals("WELCOME")) {
+                    // A wrong token or slot count does not get better by trying again
+                    System.err.println("Rejected by the coordinator: " + (reply.size() > 1 ? reply.get(1) : reply.get(0)));
+                    return HeadlessRunner.EXIT_USAGE;
+                }
+                System.out.println("Connected to " + host + ":" + port + " with " + slots + " workers");
+                connection.setReadTimeout(Coordinator.READ_TIMEOUT_MILLIS);
+                serve(connection);
+            } catch (IOException e) {
+                System.out.println("No connection to " + host + ":" + port + " (" + (e.getMessage() != null ? e.getMessage() : "closed") + "), trying again");
+            } finally {
+                endSession();
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return HeadlessRunner.EXIT_CANCELLED;
+            }
+        }
+    }
+
+    private void serve(AgentConnection connection) throws IOException {
+        while (true) {
+            List<String> frame = connection.receive();
+            switch (frame.get(0)) {
+                case "REQ" -> Thread.ofVirtual().name("request-" + frame.get(1)).start(() -> execute(connection, frame));
+                case "CANCEL" -> {
+                    PythonWorker worker = running.get(Long.parseLong(frame.get(1)));
+                    if (worker != null) {
+                        worker.kill();
+                    }
+                }
+                case "PING" -> connection.send("PONG");
+                case "FILE" -> {
+                    Path transferDirectory = transferDirectories.get(frame.get(1));
+                    String fileName = Paths.get(frame.get(2)).getFileName().toString();
+                    if (transferDirectory == null) {
+                        throw new IOException("File for an unknown transfer " + frame.get(1));
+                    }
+                    connection.receiveFile(Long.parseLong(frame.get(3)), transferDirectory.resolve(fileName));
+                }
+                case "READY" -> finishTransfer(frame.get(1), null);
+                case "MISSING" -> finishTransfer(frame.get(1), new IOException("The coordinator does not have the dataset anymore"));
+                default -> throw new IOException("Unexpected frame " + frame.get(0));
+            }
+        }
+    }
+
+    private void finishTransfer(String transfer, IOException failure) {
+        transferDirectories.remove(transfer);
+        CompletableFuture<Void> done = transfers.remove(transfer);
+        if (done != null) {
+            if (failure == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(failure);
+            }
+        }
+    }
+
+    // The requests of a lost connection are run again elsewhere, so they are stopped here
+    private void endSession() {
+        for (PythonWorker worker : running.values()) {
+            worker.kill();
+        }
+        for (String transfer : new ArrayList<>(transfers.keySet())) {
+            finishTransfer(transfer, new IOException("Connection to the coordinator lost"));
+        }
+    }
+
+    private void stopWorkers() {
+        endSession();
+        PythonWorker worker;
+        while ((worker = idleWorkers.pollFirst()) != null) {
+            worker.close();
+        }
+    }
+
+    // REQ <id> <timeout millis> <command> <key=value>..., answered with RES <id> <status> ...
+    private void execute(AgentConnection connection, List<String> frame) {
+        long id = Long.parseLong(frame.get(1));
+        long timeoutMillis = Long.parseLong(frame.get(2));
+        String command = frame.get(3);
+        List<String> reply = new ArrayList<>(List.of("RES", frame.get(1)));
+        PythonWorker worker = null;
+        Map<String, String> arguments = new LinkedHashMap<>();
+        for (String field : frame.subList(4, frame.size())) {
+            int separator = field.indexOf('=');
+            if (separator > 0) {
+                arguments.put(field.substring(0, separator), field.substring(separator + 1));
+            }
+        }
+        String key = arguments.get("dataset");
+        DatasetCache.Pin inUse = null;
+        try (JobLog jobLog = new JobLog(logDirectory.resolve("request " + id + ".log"), line -> forward(connection, id, line))) {
+            // The dataset stays pinned until the worker is done with it, requests on other datasets can not evict it
+            if (key != null) {
+                inUse = datasets.pin(checkedKey(key));
+            }
+            localize(connection, arguments);
+            worker = borrow();
+            running.put(id, worker);
+            Map<String, String> values = worker.execute(command, arguments, jobLog, timeoutMillis);
+            reply.add("OK");
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                reply.add(value.getKey() + "=" + value.getValue());
+            }
+            release(worker);
+        } catch (PythonWorker.RequestFailedException e) {
+            reply.add("ERR");
+            reply.add(e.getMessage());
+            release(worker);
+        } catch (PythonWorker.RequestTimedOutException e) {
+            reply.add("TIMEOUT");
+            reply.add(e.getMessage());
+            discard(worker);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            reply.add("FAIL");
+            reply.add(String.valueOf(e.getMessage()));
+            discard(worker);
+        } finally {
+            running.remove(id);
+            unpin(inUse);
+        }
+
+        try {
+            connection.send(reply);
+        } catch (IOException e) {
+            // The coordinator runs the request again on another worker
+        }
+    }
+
+    private static void unpin(DatasetCache.Pin pin) {
+        if (pin == null) {
+            return;
+        }
+        try {
+            pin.close();
+        } catch (IOException e) {
+            // The lock goes with the channel when the agent exits at the latest
+        }
+    }
+
+    private static void forward(AgentConnection connection, long id, String line) {
+        try {
+            connection.send("LOG", String.valueOf(id), line);
+        } catch (IOException e) {
+            // The line is still in the agent's own log
+        }
+    }
+
+    // The paths of the coordinator mean nothing here: the dataset is fetched by its cache key, splits and search
+    // results are kept in the agent's folder. The seeded splits come out the same on every machine
+    private void localize(AgentConnection connection, Map<String, String> arguments) throws IOException, InterruptedException {
+        String key = arguments.get("dataset");
+        if (key != null) {
+            ReentrantLock lock = datasetLocks.computeIfAbsent(key, unused -> new ReentrantLock());
+            lock.lockInterruptibly();
+            try {
+                arguments.put("dataset", datasets.get(key, target -> fetch(connection, key, target)).toString());
+            } catch (IOException | InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+        String splitCache = arguments.get("split_cache");
+        if (splitCache != null) {
+            String seed = Paths.get(splitCache).getFileName().toString();
+            useSplitSeed(seed);
+            arguments.put("split_cache", directory.resolve("cache").resolve("splits").resolve(seed).toString());
+        }
+        if (arguments.containsKey("search_cache")) {
+            arguments.put("search_cache", directory.resolve("cache").resolve("search").resolve("best_params.json").toString());
+        }
+    }
+
+    // The key names files in the agent's folder
+    private static String checkedKey(String key) throws IOException {
+        if (!key.matches("[0-9a-f]{32}")) {
+            throw new IOException("Bad dataset key " + key);
+        }
+        return key;
+    }
+
+    private void fetch(AgentConnection connection, String key, Path target) throws IOException, InterruptedException {
+        String transfer = String.valueOf(nextTransfer.incrementAndGet());
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        transferDirectories.put(transfer, target);
+        transfers.put(transfer, done);
+        connection.send("NEED", transfer, key);
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+        }
+    }
+
+    // Like the coordinator, only the splits of the current run are kept
+    private synchronized void useSplitSeed(String seed) throws IOException {
+        if (seed.equals(currentSplitSeed)) {
+            return;
+        }
+        Path splits = directory.resolve("cache").resolve("splits");
+        if (Files.isDirectory(splits)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(splits)) {
+                for (Path entry : entries) {
+                    if (!entry.getFileName().toString().equals(seed)) {
+                        DatasetCache.deleteRecursively(entry);
+                    }
+                }
+            }
+        }
+        currentSplitSeed = seed;
+    }
+
+    private PythonWorker borrow() throws IOException {
+        PythonWorker worker = idleWorkers.pollFirst();
+        if (worker != null) {
+            return worker;
+        }
+        int id;
+        synchronized (this) {
+            id = nextWorkerId++;
+        }
+        return new PythonWorker(id, workerCommand, new JobLog(logDirectory.resolve("worker " + id + ".log"), line -> { }));
+    }
+
+    private void release(PythonWorker worker) {
+        if (worker.getJobsServed() >= WorkerPool.MAX_JOBS_PER_WORKER || worker.getRssMb() >= WorkerPool.MAX_WORKER_MEMORY_MB) {
+            discard(worker);
+        } else {
+            idleWorkers.addFirst(worker);
+        }
+    }
+
+    private void discard(PythonWorker worker) {
+        if (worker != null) {
+            worker.close();
+        }
+    }
+}
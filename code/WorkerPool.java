@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+
+// Keeps up to maxWorkers Python workers alive across jobs, recycling them after too many jobs or too much memory
+//
+// The slots of remote worker agents (see Coordinator) join the pool next to the local workers. A request whose agent
+// is lost is run again on another worker. Queued runs going at the same time share one pool, each of them can stop its
+// own requests with kill(owner)
+class WorkerPool implements AutoCloseable {
+    static final int MAX_JOBS_PER_WORKER = Integer.getInteger("mlanalyzer.worker.maxJobs", 100);
+    static final int MAX_WORKER_MEMORY_MB = Integer.getInteger("mlanalyzer.worker.maxMemoryMb", 2048);
+
+    private final List<String> command;
+    private final RunLogs logs;
+    private final RunMetrics metrics;
+    private final int maxWorkers;
+    private final LinkedBlockingDeque<AnalysisWorker> idleWorkers = new LinkedBlockingDeque<>();
+    private final List<PythonWorker> allWorkers = new ArrayList<>();
+    private final List<AnalysisWorker> remoteWorkers = new ArrayList<>();
+    private final Map<AnalysisWorker, Object> owners = new ConcurrentHashMap<>();
+    private IntConsumer capacityListener = change -> { };
+    private volatile BiConsumer<String, Double> memoryListener = (worker, rssMb) -> { };
+    private int liveWorkers;
+    private int nextWorkerId;
+    private boolean closed;
+
+    WorkerPool(List<String> command, RunLogs logs, RunMetrics metrics, int maxWorkers) {
+        this.command = command;
+        this.logs = logs;
+        this.metrics = metrics;
+        this.maxWorkers = Math.max(1, maxWorkers);
+    }
+
+    Map<String, String> execute(String requestCommand, Map<String, String> arguments, JobLog jobLog, long timeoutMillis) throws IOException, InterruptedException, PythonWorker.RequestFailedException {
+        return execute(requestCommand, arguments, jobLog, timeoutMillis, this);
+    }
+
+    Map<String, String> execute(String requestCommand, Map<String, String> arguments, JobLog jobLog, long timeoutMillis, Object owner) throws IOException, InterruptedException, PythonWorker.RequestFailedException {
+        while (true) {
+            AnalysisWorker worker = borrow();
+            Map<String, String> response;
+            owners.put(worker, owner);
+            try {
+                response = worker.execute(requestCommand, arguments, jobLog, timeoutMillis);
+            } catch (Coordinator.AgentLostException e) {
+                owners.remove(worker);
+                discard(worker);
+                jobLog.line(e.getMessage() + ", the request goes to another worker");
+                continue;
+            } catch (PythonWorker.RequestFailedException e) {
+                owners.remove(worker);
+                memoryListener.accept(worker.toString(), worker.getRssMb());
+                release(worker);
+                throw e;
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                owners.remove(worker);
+                discard(worker);
+                throw e;
+            }
+            owners.remove(worker);
+            memoryListener.accept(worker.toString(), worker.getRssMb());
+            release(worker);
+            return response;
+        }
+    }
+
+    // Stops the running requests of one owner right away, the pool stays open for the others
+    void kill(Object owner) {
+        for (Map.Entry<AnalysisWorker, Object> entry : owners.entrySet()) {
+            if (entry.getValue() == owner) {
+                entry.getKey().kill();
+            }
+        }
+    }
+
+    // Called with the worker's resident memory in MB after each request, and with 0 when a local worker is stopped
+    void setMemoryListener(BiConsumer<String, Double> memoryListener) {
+        this.memoryListener = memoryListener;
+    }
+
+    // Called with the change in the number of workers whenever agents join or leave
+    synchronized void setCapacityListener(IntConsumer capacityListener) {
+        this.capacityListener = capacityListener;
+    }
+
+    void addRemote(List<? extends AnalysisWorker> workers) {
+        IntConsumer listener;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            remoteWorkers.addAll(workers);
+            listener = capacityListener;
+        }
+        workers.forEach(idleWorkers::addLast);
+        listener.accept(workers.size());
+    }
+
+    // The running requests of these workers end on their own, with an AgentLostException when the agent is gone
+    void removeRemote(List<? extends AnalysisWorker> workers) {
+        IntConsumer listener;
+        int removed = 0;
+        synchronized (this) {
+            for (AnalysisWorker worker : workers) {
+                if (remoteWorkers.remove(worker)) {
+                    removed++;
+                }
+            }
+            listener = capacityListener;
+        }
+        idleWorkers.removeAll(workers);
+        if (removed > 0) {
+            listener.accept(-removed);
+        }
+    }
+
+    private AnalysisWorker borrow() throws IOException, InterruptedException {
+        while (true) {
+            AnalysisWorker worker = idleWorkers.pollFirst();
+            if (worker != null) {
+                return worker;
+            }
+
+            int workerId = -1;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Worker pool is closed");
+                }
+                if (liveWorkers < maxWorkers) {
+                    liveWorkers++;
+                    workerId = nextWorkerId++;
+                }
+            }
+
+            if (workerId >= 0) {
+                PythonWorker localWorker;
+                try {
+                    localWorker = new PythonWorker(workerId, command, logs.forWorker(workerId));
+                } catch (IOException | RuntimeException e) {
+                    synchronized (this) {
+                        liveWorkers--;
+                    }
+                    throw e;
+                }
+                synchronized (this) {
+                    allWorkers.add(localWorker);
+                }
+                for (Map.Entry<String, Double> phase : localWorker.getStartupSeconds().entrySet()) {
+                    metrics.record("worker", phase.getKey(), null, phase.getValue());
+                }
+                return localWorker;
+            }
+
+            // Every slot is taken, wait for a worker to come back or for a recycled slot to free up
+            worker = idleWorkers.pollFirst(100, TimeUnit.MILLISECONDS);
+            if (worker != null) {
+                return worker;
+            }
+        }
+    }
+
+    private void release(AnalysisWorker worker) {
+        if (worker.getJobsServed() >= MAX_JOBS_PER_WORKER || worker.getRssMb() >= MAX_WORKER_MEMORY_MB) {
+            discard(worker);
+        } else {
+            idleWorkers.addFirst(worker);
+        }
+    }
+
+    // The slot of a discarded worker is freed, the next borrow starts a fresh process.
+    // A remote slot goes back to the pool as long as its agent is connected, the agent replaces its own worker
+    private void discard(AnalysisWorker worker) {
+        synchronized (this) {
+            if (remoteWorkers.contains(worker)) {
+                if (worker.survivesErrors()) {
+                    idleWorkers.addLast(worker);
+                }
+                return;
+            }
+            if (allWorkers.remove(worker)) {
+                liveWorkers--;
+            }
+        }
+        worker.close();
+        memoryListener.accept(worker.toString(), 0.0);
+    }
+
+    // Stops every worker at once, the jobs they were running fail with an IOException
+    void killAll() {
+        List<AnalysisWorker> workers;
+        synchronized (this) {
+            closed = true;
+            workers = new ArrayList<>(allWorkers);
+            workers.addAll(remoteWorkers);
+        }
+        for (AnalysisWorker worker : workers) {
+            worker.kill();
+        }
+    }
+
+    @Override
+    public void close() {
+        List<AnalysisWorker> workers;
+        synchronized (this) {
+            closed = true;
+            workers = new ArrayList<>(allWorkers);
+            allWorkers.clear();
+            liveWorkers = 0;
+            // Remote workers belong to their agent, which outlives the run
+            remoteWorkers.clear();
+        }
+        idleWorkers.clear();
+        for (AnalysisWorker worker : workers) {
+            worker.close();
+        }
+    }
+}
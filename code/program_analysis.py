@@ -9,6 +9,16 @@ import numpy as np
 import json
 import ast
 import importlib.util
+import hashlib
+import contextlib
+
+try:
+    import fcntl
+    msvcrt = None
+except ImportError:
+    # Windows
+    fcntl = None
+    import msvcrt
 
 import xgboost as xgb
 
@@ -27,30 +37,55 @@ from sklearn.naive_bayes import GaussianNB
 from sklearn.decomposition import PCA, IncrementalPCA, FastICA
 
 from sklearn.discriminant_analysis import LinearDiscriminantAnalysis
-from sklearn.model_selection import RandomizedSearchCV, GridSearchCV, StratifiedKFold
+from sklearn.model_selection import RandomizedSearchCV, GridSearchCV, StratifiedKFold, ParameterGrid, ParameterSampler
 from scipy.stats import randint, uniform
 
 warnings.filterwarnings("ignore")
 
+REDUCTION_TECHNIQUES = ['PCA', 'IncPCA', 'ICA', 'LDA']
+
+class PhaseTimer:
+    '''
+        Adds up the seconds spent in each phase of an analysis (split, reduction, fit or search, predict, scores, roc auc)
+    '''
+    def __init__(self):
+        self.seconds = {}
+
+    def add(self, phase, start):
+        self.seconds[phase] = self.seconds.get(phase, 0) + time.perf_counter() - start
+
 class Analysis:
     '''
         This class call the other two classes, Prepare_data and Perform_analysis
     '''
-    def __init__(self, dataframe, technique, optimization, cross_validation, model='SVM'):
+    def __init__(self, dataset, technique, optimization, cross_validation, model='SVM', splits=None, search_cache=None, best_params=None):
         
         start_time = time.time()
-        prepared = SplitData(dataframe)
+        start_cpu_time = time.process_time()
+        self.phases = PhaseTimer()
+        random_state = splits.random_state if splits is not None else None
+        best_params = best_params or {}
+
+        phase_start = time.perf_counter()
+        prepared = SplitData(dataset, random_state)
+        self.phases.add('split', phase_start)
 
         if cross_validation == 'Hold-Out':
             performed = PerformAnalysis(technique, model, optimization, prepared.X_train, \
                                                                         prepared.X_test, \
                                                                         prepared.y_train, \
-                                                                        prepared.y_test)
+                                                                        prepared.y_test, \
+                                                                        self.phases, \
+                                                                        splits, 'hold-out', \
+                                                                        search_cache, \
+                                                                        best_params.get('hold-out'))
             self.f1_score = performed.f1_score
             self.precision = performed.precision
             self.accuracy = performed.accuracy
             self.recall = performed.recall
             self.roc_auc = performed.roc_auc
+            searches = [performed.search]
+            performed_splits = [performed]
 
         elif cross_validation == 'K-Fold': 
             
@@ -59,22 +94,30 @@ class Analysis:
             accuracy_list = []
             recall_list = []
             roc_auc_list = []
+            searches = []
+            performed_splits = []
 
-            kf = StratifiedKFold(n_splits=5, shuffle=True)
+            kf = StratifiedKFold(n_splits=5, shuffle=True, random_state=random_state)
 
-            for train_index, test_index in kf.split(prepared.x, prepared.y):
-                X_train, X_test = prepared.x.iloc[train_index], prepared.x.iloc[test_index]
-                y_train, y_test = prepared.y.iloc[train_index], prepared.y.iloc[test_index]
+            for fold, (train_index, test_index) in enumerate(kf.split(prepared.x, prepared.y)):
+                X_train, X_test = prepared.x[train_index], prepared.x[test_index]
+                y_train, y_test = prepared.y[train_index], prepared.y[test_index]
 
                 performed = PerformAnalysis(technique, model, optimization, X_train, \
                                                                             X_test, \
                                                                             y_train, \
-                                                                            y_test)
+                                                                            y_test, \
+                                                                            self.phases, \
+                                                                            splits, f'fold {fold + 1}', \
+                                                                            search_cache, \
+                                                                            best_params.get(f'fold {fold + 1}'))
                 f1_score_list.append(performed.f1_score)
                 precision_list.append(performed.precision)
                 accuracy_list.append(performed.accuracy)
                 recall_list.append(performed.recall)
                 roc_auc_list.append(performed.roc_auc)
+                searches.append(performed.search)
+                performed_splits.append(performed)
 
             self.f1_score = sum(f1_score_list) / len(f1_score_list)
             self.precision = sum(precision_list) / len(precision_list)
@@ -88,31 +131,61 @@ class Analysis:
 
         end_time = time.time()
 
-        self.processing_time = end_time - start_time
+        # A shared reduction is charged to every job at what it cost to compute, see ReducedSplit
+        self.time_adjustment = sum(performed.time_adjustment for performed in performed_splits)
+        self.cpu_adjustment = sum(performed.cpu_adjustment for performed in performed_splits)
+        self.processing_time = end_time - start_time + self.time_adjustment
+        # A job with a split that took its parameters from the search cache did not run the whole search
+        self.search = 'cached' if 'cached' in searches else 'ran' if 'ran' in searches else 'none'
+        self.cpu_time = time.process_time() - start_cpu_time + self.cpu_adjustment
 
 class SplitData:
     '''
-        This class receaves the dataframe and returns the X_train, X_test, y_train and y_test
+        This class receaves the dataset and returns the X_train, X_test, y_train and y_test
+        The dataset is either a dataframe with the target as last column or a (features, target) pair of arrays
+        The same random_state gives the same split, so every model of an iteration can be compared on the same rows
     '''
-    def __init__(self, dataframe):
-        self.x = dataframe.iloc[:, :-1]
-        self.y = dataframe.iloc[:, -1]
+    def __init__(self, dataset, random_state=None):
+        if isinstance(dataset, pd.DataFrame):
+            self.x = dataset.iloc[:, :-1].to_numpy()
+            self.y = dataset.iloc[:, -1].to_numpy()
+        else:
+            self.x, self.y = dataset
 
-        self.X_train, self.X_test, self.y_train, self.y_test = train_test_split(self.x, self.y, stratify=self.y,test_size=0.20, train_size=0.80)
+        self.X_train, self.X_test, self.y_train, self.y_test = train_test_split(self.x, self.y, stratify=self.y,test_size=0.20, train_size=0.80, random_state=random_state)
     
 
-class PerformAnalysis:
-    '''
-        This class performs the analysis and saves the f1_score
+class ReducedSplit:
     '''
-    def __init__(self, technique, model, optimization, X_train, X_test, y_train, y_test):
+        The train and test matrices of one split after the dimensionality reduction technique
 
-        self.X_train = X_train.to_numpy()
-        self.X_test = X_test.to_numpy()
-        self.y_train = y_train.to_numpy()
-        self.y_test = y_test.to_numpy()
-        self.y_pred = None
+        A reduction shared through the split cache is computed by the first job that needs it and loaded by the others.
+        So that the times of a job do not depend on whether it came first, every job is charged the wall and CPU seconds
+        the computation took, instead of the time it spent computing, waiting for or loading the matrices. The
+        adjustments are added to the job's Processing Time and CPU Time
+    '''
+    def __init__(self, technique, X_train, X_test, y_train, y_test, phases=None, splits=None, fold='hold-out'):
+
+        self.phases = phases if phases is not None else PhaseTimer()
+        self.X_train = np.asarray(X_train)
+        self.X_test = np.asarray(X_test)
+        self.y_train = np.asarray(y_train)
+        self.y_test = np.asarray(y_test)
+        self.technique = technique
+
+        self.time_adjustment = 0.0
+        self.cpu_adjustment = 0.0
+        phase_start = time.perf_counter()
+        cpu_start = time.process_time()
+        if splits is not None and technique in REDUCTION_TECHNIQUES:
+            self.X_train, self.X_test, (wall_seconds, cpu_seconds) = splits.reduced(technique, fold, lambda: self.apply_technique(technique))
+            self.time_adjustment = wall_seconds - (time.perf_counter() - phase_start)
+            self.cpu_adjustment = cpu_seconds - (time.process_time() - cpu_start)
+        else:
+            self.apply_technique(technique)
+        self.phases.add('reduction', phase_start)
 
+    def apply_technique(self, technique):
         if technique == 'PCA':
             self.apply_pca()
         elif technique == 'IncPCA':
@@ -125,8 +198,7 @@ class PerformAnalysis:
             pass
         else: 
             pass
-
-        self.select_model(model, optimization)
+        return self.X_train, self.X_test
 
     def apply_pca(self):
         pca = PCA(n_components=0.95)
@@ -153,7 +225,22 @@ class PerformAnalysis:
 
         self.X_test = lda.transform(self.X_test)
 
-    def load_optimization_data(self, json_file_path):
+class PerformAnalysis(ReducedSplit):
+    '''
+        This class performs the analysis and saves the f1_score
+        best_params are the parameters picked by a search MLAnalyzer.java spread over the workers, the search is then skipped
+    '''
+    def __init__(self, technique, model, optimization, X_train, X_test, y_train, y_test, phases=None, splits=None, fold='hold-out', search_cache=None, best_params=None):
+        super().__init__(technique, X_train, X_test, y_train, y_test, phases, splits, fold)
+        self.fold = fold
+        self.y_pred = None
+        self.search_cache = search_cache
+        self.best_params = best_params
+
+        self.select_model(model, optimization)
+
+    @staticmethod
+    def load_optimization_data(json_file_path):
             with open(json_file_path, 'r') as file:
                 data = json.load(file)
 
@@ -191,83 +278,65 @@ class PerformAnalysis:
             return process_data(data)
 
     def select_model(self, model, optimization):
-        def find_first_class(file_path):
-            with open(file_path, "r") as file:
-                tree = ast.parse(file.read(), filename=file_path)
-                for node in ast.iter_child_nodes(tree):
-                    if isinstance(node, ast.ClassDef):
-                        return node.name  # Return the name of the first class found
-            return None
-        def load_class_from_file(file_path, class_name):
-            spec = importlib.util.spec_from_file_location("module.name", file_path)
-            module = importlib.util.module_from_spec(spec)
-            spec.loader.exec_module(module)
-            return getattr(module, class_name)
-        
-        model_dict = {'Naive Bayes': GaussianNB(),
-                      'SVM': SVC(),
-                      'MLP': MLPClassifier(n_iter_no_change=50, ),
-                      'DecisionTree': DecisionTreeClassifier(),
-                      'RandomForest': RandomForestClassifier(n_jobs=-1),
-                      'KNN': KNeighborsClassifier(),
-                      'LogReg': LogisticRegression(),
-                      'GradientBoost': GradientBoostingClassifier(),
-                      'XGBoost': xgb.XGBClassifier()
-                     }
-
-        if model == "Custom AI Model":
-            class_name = find_first_class("custom AI model\\custom AI model.py")
-            user_model = load_class_from_file("custom AI model\\custom AI model.py", class_name)
-            model_dict["Custom AI Model"] = user_model()
-
-
-        if optimization == 'Grid Search':
-            try:
-                param_grid_dict, _ = self.load_optimization_data("configurate optimization\\grid-search configuration.json")
-                if model not in param_grid_dict:
-                    raise Exception
-                optimized_model = GridSearchCV(estimator=model_dict[model], param_grid = param_grid_dict[model])
-            except:
-                param_grid_dict, _ = self.load_optimization_data("configurate optimization\\grid-search defaults.json")
-                if model not in param_grid_dict:
-                     optimized_model = model_dict[model]
-                else:
-                    optimized_model = GridSearchCV(estimator=model_dict[model], param_grid = param_grid_dict[model])
-
-
-        elif optimization == 'Random Search':
-            try:
-                param_random_dict, random_search_iteractions  = self.load_optimization_data("configurate optimization\\random-search configuration.json")
-                if model not in param_random_dict:
-                    raise Exception
-                optimized_model = RandomizedSearchCV(estimator = model_dict[model], param_distributions = param_random_dict[model], n_iter=random_search_iteractions)
-            except:
-                param_random_dict, random_search_iteractions  = self.load_optimization_data("configurate optimization\\random-search defaults.json")
-                if model not in param_random_dict:
-                    optimized_model = model_dict[model]
-                else:
-                    optimized_model = RandomizedSearchCV(estimator = model_dict[model], param_distributions = param_random_dict[model], n_iter=random_search_iteractions)
-                
-
-
+        estimator = new_model(model)
+
+        search_file = None
+        if optimization in ['Grid Search', 'Random Search']:
+            space, random_search_iteractions, search_file = search_space(model, optimization)
+            if space is None:
+                optimized_model = estimator
+            elif optimization == 'Grid Search':
+                optimized_model = GridSearchCV(estimator=estimator, param_grid = space)
+            else:
+                optimized_model = RandomizedSearchCV(estimator = estimator, param_distributions = space, n_iter=random_search_iteractions)
         elif optimization == 'None':
-            optimized_model = model_dict[model]
+            optimized_model = estimator
         else:
             raise ValueError('Wrong optimization name given')
 
+        # Parameters already picked, by a search MLAnalyzer.java spread over the workers or by an earlier search in the cache.
+        # The custom model is left out of the cache, its code can change without the search space changing
+        self.search_key = None
+        self.search = 'none' if optimized_model is estimator else 'ran'
+        if optimized_model is not estimator:
+            if self.search_cache is not None and model != "Custom AI Model":
+                self.search_key = self.search_cache.key(optimization, search_file, self.technique, model, self.fold)
+            best_params = self.best_params
+            if best_params is None and self.search_key is not None:
+                best_params = self.search_cache.get(self.search_key)
+                if best_params is not None:
+                    self.search = 'cached'
+            elif best_params is not None and self.search_key is not None:
+                self.search_cache.put(self.search_key, best_params)
+            if best_params is not None:
+                optimized_model = estimator.set_params(**best_params)
+                self.search_key = None
+
+        # With an optimization the fit is the whole hyperparameter search
+        self.fit_phase = 'fit' if optimized_model is estimator else 'search'
         self.get_metrics(optimized_model)
+        if self.search_key is not None:
+            self.search_cache.put(self.search_key, optimized_model.best_params_)
 
     def get_metrics(self, classifier):
+        phase_start = time.perf_counter()
         classifier.fit(self.X_train, self.y_train)
+        self.phases.add(self.fit_phase, phase_start)
+
+        phase_start = time.perf_counter()
         self.y_pred = classifier.predict(self.X_test)
+        self.phases.add('predict', phase_start)
 
         # Calculate classification scores (F1, Recall, Precision and Accuracy)
+        phase_start = time.perf_counter()
         self.f1_score = f1_score(self.y_test, self.y_pred, average='weighted')
         self.recall = recall_score(self.y_test, self.y_pred, average='weighted')
         self.precision = precision_score(self.y_test, self.y_pred, average='weighted')
         self.accuracy = accuracy_score(self.y_test, self.y_pred)
+        self.phases.add('scores', phase_start)
 
         # Calculate ROC AUC
+        phase_start = time.perf_counter()
         label_binarizer = LabelBinarizer()
         y_true_binary = label_binarizer.fit_transform(self.y_test)
 
@@ -301,6 +370,8 @@ class PerformAnalysis:
             fpr, tpr, _ = roc_curve(y_true_binary.ravel(), decision_function.ravel())
             self.roc_auc = auc(fpr, tpr)
 
+        self.phases.add('roc auc', phase_start)
+
 
 
 class MemoryMonitor:
@@ -310,6 +381,11 @@ class MemoryMonitor:
         self.initial_memory_usage = None
         self.max_memory_rss = 0  
 
+    def reset(self):
+        rss_mb = self.process.memory_info().rss / (1024 * 1024)
+        self.initial_memory_usage = rss_mb
+        self.max_memory_rss = rss_mb
+
     def __call__(self):
         while True:
             memory_info = self.process.memory_info()
@@ -324,41 +400,320 @@ class MemoryMonitor:
             time.sleep(self.interval)
 
 
+def new_model(model):
+    '''
+        A new, unfitted estimator for one of the model names of MLAnalyzer
+    '''
+    def find_first_class(file_path):
+        with open(file_path, "r") as file:
+            tree = ast.parse(file.read(), filename=file_path)
+            for node in ast.iter_child_nodes(tree):
+                if isinstance(node, ast.ClassDef):
+                    return node.name  # Return the name of the first class found
+        return None
+    def load_class_from_file(file_path, class_name):
+        spec = importlib.util.spec_from_file_location("module.name", file_path)
+        module = importlib.util.module_from_spec(spec)
+        spec.loader.exec_module(module)
+        return getattr(module, class_name)
+
+    model_dict = {'Naive Bayes': GaussianNB,
+                  'SVM': SVC,
+                  'MLP': lambda: MLPClassifier(n_iter_no_change=50, ),
+                  'DecisionTree': DecisionTreeClassifier,
+                  'RandomForest': lambda: RandomForestClassifier(n_jobs=-1),
+                  'KNN': KNeighborsClassifier,
+                  'LogReg': LogisticRegression,
+                  'GradientBoost': GradientBoostingClassifier,
+                  'XGBoost': xgb.XGBClassifier
+                 }
+
+    if model == "Custom AI Model":
+        class_name = find_first_class(os.path.join("custom AI model", "custom AI model.py"))
+        user_model = load_class_from_file(os.path.join("custom AI model", "custom AI model.py"), class_name)
+        model_dict["Custom AI Model"] = user_model
+
+    return model_dict[model]()
+
+def search_space(model, optimization):
+    '''
+        The grid or the random search distributions of a model, the number of random candidates and the file they come from
+        The configuration file is used when it has the model, then the defaults file, the space is None when neither has it
+    '''
+    name = 'grid-search' if optimization == 'Grid Search' else 'random-search'
+    try:
+        search_file = os.path.join("configurate optimization", f"{name} configuration.json")
+        spaces, random_search_iteractions = PerformAnalysis.load_optimization_data(search_file)
+        if model not in spaces:
+            raise Exception
+    except:
+        search_file = os.path.join("configurate optimization", f"{name} defaults.json")
+        spaces, random_search_iteractions = PerformAnalysis.load_optimization_data(search_file)
+    return spaces.get(model), random_search_iteractions, search_file
+
+def search_candidates(model, optimization, random_state):
+    '''
+        Every parameter set of the grid, or the sampled ones of a random search, for MLAnalyzer.java to spread over the workers
+    '''
+    space, random_search_iteractions, _ = search_space(model, optimization)
+    if space is None:
+        return []
+    if optimization == 'Grid Search':
+        candidates = ParameterGrid(space)
+    else:
+        candidates = ParameterSampler(space, n_iter=random_search_iteractions, random_state=random_state)
+    return [plain_params(candidate) for candidate in candidates]
+
+def plain_params(params):
+    '''
+        Parameters with numpy numbers and tuples turned into plain numbers and lists, so they can be written as JSON
+    '''
+    return {name: value.item() if hasattr(value, 'item') else list(value) if isinstance(value, tuple) else value
+            for name, value in params.items()}
+
+def outer_split(dataset, outer_fold, random_state):
+    '''
+        The rows of one split of an analysis, 'hold-out' or 'fold 1' to 'fold 5' of the K-Fold,
+        the same ones Analysis uses with the same random_state
+    '''
+    prepared = SplitData(dataset, random_state)
+    if outer_fold == 'hold-out':
+        return prepared.X_train, prepared.X_test, prepared.y_train, prepared.y_test
+    kf = StratifiedKFold(n_splits=5, shuffle=True, random_state=random_state)
+    train_index, test_index = list(kf.split(prepared.x, prepared.y))[int(outer_fold.split()[1]) - 1]
+    return prepared.x[train_index], prepared.x[test_index], prepared.y[train_index], prepared.y[test_index]
+
+def score_candidate(dataset, technique, model, outer_fold, candidate, fold, folds, splits, phases):
+    '''
+        Score of one search candidate on one fold of the inner cross-validation of a split, as GridSearchCV would compute it
+    '''
+    X_train, X_test, y_train, y_test = outer_split(dataset, outer_fold, splits.random_state)
+    reduced = ReducedSplit(technique, X_train, X_test, y_train, y_test, phases, splits, outer_fold)
+    train_index, validation_index = list(StratifiedKFold(n_splits=folds).split(reduced.X_train, reduced.y_train))[fold]
+
+    estimator = new_model(model).set_params(**candidate)
+    phase_start = time.perf_counter()
+    estimator.fit(reduced.X_train[train_index], reduced.y_train[train_index])
+    phases.add('fit', phase_start)
+
+    phase_start = time.perf_counter()
+    score = estimator.score(reduced.X_train[validation_index], reduced.y_train[validation_index])
+    phases.add('scores', phase_start)
+    return score
+
+@contextlib.contextmanager
+def exclusive_lock(path):
+    '''
+        Holds the lock file at path for the block, against the other workers of this computer
+    '''
+    with open(path, 'a+') as lock:
+        if fcntl is not None:
+            fcntl.flock(lock, fcntl.LOCK_EX)
+            yield
+            return
+        # LK_LOCK gives up after 10 seconds, a long reduction can hold the lock for longer
+        lock.seek(0)
+        while True:
+            try:
+                msvcrt.locking(lock.fileno(), msvcrt.LK_LOCK, 1)
+                break
+            except OSError:
+                continue
+        try:
+            yield
+        finally:
+            lock.seek(0)
+            msvcrt.locking(lock.fileno(), msvcrt.LK_UNLCK, 1)
+
+class SearchCache:
+    '''
+        Winning hyperparameters of earlier searches, so later iterations and later runs only fit and evaluate
+
+        Entries are keyed by the cleaned dataset, the sample of it, the split ("hold-out" or "fold 1" to "fold 5"), the
+        technique, the model and the content of the search space file, so editing the file makes its old entries unreachable.
+        Each split searches on its own training rows, so its parameters are only reused for that split. The least recently used entries are dropped
+        once there are more than max_entries. The file is shared by every worker and read and written under a lock.
+    '''
+    def __init__(self, path, dataset_key, fraction=None, max_entries=256):
+        self.path = path
+        self.dataset_key = dataset_key if fraction is None else f"{dataset_key} sample {fraction}"
+        self.max_entries = max_entries
+        os.makedirs(os.path.dirname(path), exist_ok=True)
+
+    def key(self, optimization, search_file, technique, model, split):
+        with open(search_file, 'rb') as file:
+            search_space = hashlib.sha256(file.read()).hexdigest()[:16]
+        return f"{self.dataset_key}|{split}|{technique}|{model}|{optimization}|{search_space}"
+
+    def get(self, key):
+        with self.locked() as entries:
+            entry = entries.get(key)
+            if entry is None:
+                return None
+            entry['used'] = time.time()
+            return entry['params']
+
+    def put(self, key, params):
+        params = plain_params(params)
+        with self.locked() as entries:
+            entries[key] = {'params': params, 'used': time.time()}
+            for old_key in sorted(entries, key=lambda name: entries[name]['used'])[:max(0, len(entries) - self.max_entries)]:
+                del entries[old_key]
+
+    @contextlib.contextmanager
+    def locked(self):
+        '''
+            The entries of the cache file, written back when the block ends
+        '''
+        with exclusive_lock(self.path + '.lock'):
+            try:
+                with open(self.path, 'r') as file:
+                    entries = json.load(file)
+            except (OSError, ValueError):
+                entries = {}
+            yield entries
+
+            temporary = f"{self.path}.{os.getpid()}.tmp"
+            with open(temporary, 'w') as file:
+                json.dump(entries, file, indent=1, default=str)
+            os.replace(temporary, self.path)
+
+class SharedSplits:
+    '''
+        The splits of one iteration and their reduced matrices, shared by every model job of that iteration
+
+        The seed of the run and the iteration fix the hold-out split and the K-Fold folds. Each technique is fitted once
+        per split: the first job saves the reduced train and test matrices in the run's split cache folder, the other
+        jobs wait for it and memory map them. The wall and CPU seconds of the computation are saved with them, in a
+        .cost.json file written last, and returned with the matrices. Racing samples get their own entries.
+    '''
+    def __init__(self, directory, seed, iteration, fraction=None):
+        self.directory = directory
+        self.random_state = int(np.random.SeedSequence([seed, iteration]).generate_state(1)[0])
+        self.prefix = f"iteration {iteration}" + (f" sample {fraction}" if fraction is not None else "")
+        os.makedirs(directory, exist_ok=True)
+
+    def reduced(self, technique, fold, compute):
+        path = os.path.join(self.directory, f"{self.prefix} {fold} {technique}")
+        cached = self.load(path)
+        if cached is not None:
+            return cached
+
+        with exclusive_lock(path + '.lock'):
+            # Another worker may have finished it while this one waited for the lock
+            cached = self.load(path)
+            if cached is not None:
+                return cached
+            wall_start = time.perf_counter()
+            cpu_start = time.process_time()
+            X_train, X_test = compute()
+            cost = (time.perf_counter() - wall_start, time.process_time() - cpu_start)
+            self.save(path + '.train.npy', X_train)
+            self.save(path + '.test.npy', X_test)
+            self.save_cost(path + '.cost.json', cost)
+        return X_train, X_test, cost
+
+    def load(self, path):
+        if os.path.exists(path + '.cost.json'):
+            with open(path + '.cost.json', 'r') as file:
+                cost = json.load(file)
+            return np.load(path + '.train.npy', mmap_mode='r'), np.load(path + '.test.npy', mmap_mode='r'), (cost['wall'], cost['cpu'])
+        return None
+
+    def save_cost(self, file_path, cost):
+        temporary = f"{file_path}.{os.getpid()}.tmp"
+        with open(temporary, 'w') as file:
+            json.dump({'wall': cost[0], 'cpu': cost[1]}, file)
+        self.replace(temporary, file_path)
+
+    def save(self, file_path, array):
+        # Written next to the final name and moved in one step, so a half written matrix is never mapped
+        temporary = f"{file_path}.{os.getpid()}.tmp"
+        with open(temporary, 'wb') as file:
+            np.save(file, np.ascontiguousarray(array))
+        self.replace(temporary, file_path)
+
+    def replace(self, temporary, file_path):
+        try:
+            os.replace(temporary, file_path)
+        except PermissionError:
+            # Windows does not replace a file another worker has mapped, that file already holds the same matrix
+            if not os.path.exists(file_path):
+                raise
+            os.remove(temporary)
+
+def load_dataset(directory):
+    '''
+        Maps a cleaned dataset saved by program_data_cleaning.py, the pages are only read when a split touches them
+    '''
+    features = np.load(os.path.join(directory, 'features.npy'), mmap_mode='r')
+    target = np.load(os.path.join(directory, 'target.npy'), mmap_mode='r')
+    return features, target
+
+def stratified_sample(dataset, fraction, seed=0):
+    '''
+        The given fraction of the rows of each class, used by racing runs for their early rounds
+        Each class keeps at least 5 rows (or all of them), so the stratified splits and K-Fold still work on the sample
+    '''
+    x, y = dataset
+    rng = np.random.default_rng(seed)
+    rows = []
+    for label in np.unique(y):
+        class_rows = np.flatnonzero(y == label)
+        count = min(len(class_rows), max(5, int(round(len(class_rows) * fraction))))
+        rows.append(rng.choice(class_rows, size=count, replace=False))
+    rows = np.sort(np.concatenate(rows))
+    return x[rows], y[rows]
+
+def get_results(analysis, memory_monitor, parameters):
+    '''
+        Returns the selected metrics, in the same order as the results table columns
+    '''
+    results = {}
+    if 'F1-Score' in parameters:
+        results['F1-Score'] = analysis.f1_score
+    if 'Processing Time' in parameters:
+        results['Processing Time'] = analysis.processing_time
+    if 'ROC AUC' in parameters:
+        results['ROC AUC'] = analysis.roc_auc
+    if 'Memory Usage' in parameters and memory_monitor is not None:
+        results['Memory Usage'] = memory_monitor.max_memory_rss - memory_monitor.initial_memory_usage
+    if 'Precision' in parameters:
+        results['Precision'] = analysis.precision
+    if 'Accuracy' in parameters:
+        results['Accuracy'] = analysis.accuracy
+    if 'Recall' in parameters:
+        results['Recall'] = analysis.recall
+    if 'CPU Time' in parameters:
+        results['CPU Time'] = analysis.cpu_time
+    if 'Peak Memory' in parameters and memory_monitor is not None:
+        results['Peak Memory'] = memory_monitor.max_memory_rss
+    return results
+
+
 # MAIN
 
-given_dataset = pd.read_csv('resources\\cleaned_data.csv')
-given_technique = sys.argv[1]
-given_model = sys.argv[2]
-given_optimization = sys.argv[3]
-given_cross_validation = sys.argv[4]
-given_parameters = sys.argv[5]
-
-# Getting the memory usage
-current_pid = os.getpid()
-memory_monitor = MemoryMonitor(current_pid)
-
-monitor_thread = threading.Thread(target=memory_monitor)
-monitor_thread.daemon = True
-monitor_thread.start()
-
-analysis = Analysis(given_dataset, given_technique, given_optimization, given_cross_validation, given_model)
-
-
-given_parameters = given_parameters.split(',')
-result = f"{given_technique},{given_model}"
-if 'F1-Score' in given_parameters:
-    result += f",{analysis.f1_score}"
-if 'Processing Time' in given_parameters:
-    result += f",{analysis.processing_time}"
-if 'ROC AUC' in given_parameters:
-    result += f",{analysis.roc_auc}"
-if 'Memory Usage' in given_parameters:
-    result += f",{memory_monitor.max_memory_rss - memory_monitor.initial_memory_usage}"
-if 'Precision' in given_parameters:
-    result += f",{analysis.precision}"
-if 'Accuracy' in given_parameters:
-    result += f",{analysis.accuracy}"
-if 'Recall' in given_parameters:
-    result += f",{analysis.recall}"
-
-print(result)
+if __name__ == "__main__":
+    given_dataset = pd.read_csv(os.path.join('resources', 'cleaned_data.csv'))
+    given_technique = sys.argv[1]
+    given_model = sys.argv[2]
+    given_optimization = sys.argv[3]
+    given_cross_validation = sys.argv[4]
+    given_parameters = sys.argv[5]
+
+    # Getting the memory usage
+    current_pid = os.getpid()
+    memory_monitor = MemoryMonitor(current_pid)
+
+    monitor_thread = threading.Thread(target=memory_monitor)
+    monitor_thread.daemon = True
+    monitor_thread.start()
+
+    analysis = Analysis(given_dataset, given_technique, given_optimization, given_cross_validation, given_model)
+
+    given_parameters = given_parameters.split(',')
+    result = f"{given_technique},{given_model}"
+    for value in get_results(analysis, memory_monitor, given_parameters).values():
+        result += f",{value}"
+
+    print(result)
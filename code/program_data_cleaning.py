@@ -1,35 +1,80 @@
 import pandas as pd
 import numpy as np
+import json
 import os
 import sys
 from sklearn.preprocessing import LabelEncoder, StandardScaler
 
+# The options as the interface names them, and as they were named before
+IMPUTATION = ('Mean Imputation for Missing Values', 'Imputação da Média em Valores Faltantes')
+DUPLICATES = ('Remove Duplicate Data', 'Remover dados duplicados')
+COLLINEARITY = ('Collinearity Removal', 'Remoção de Colinearidade')
+NORMALIZE = ('Normalize',)
+ID_COLUMNS = ('Remove ID Columns',)
+CORRELATION_THRESHOLD = 0.9
+CATEGORICAL_LIMIT = 10
+
+def selected(data_cleaning_methods, names):
+    return any(name in data_cleaning_methods for name in names)
+
+def id_columns(data_cleaning_methods, profile):
+    '''
+        The columns left out of the cleaned data: a column named id, and with Remove ID Columns the ones the profile found
+        to number the rows or to hold a different text on every row. A measurement can look like that too, so it is up
+        to the user
+    '''
+    columns = {'id'}
+    if profile and selected(data_cleaning_methods, ID_COLUMNS):
+        found = [column['name'] for column in profile['columns'] if column['id']]
+        if found:
+            print(f"Removing the id columns {', '.join(found)}")
+        columns |= set(found)
+    return columns
+
+def convert_values_with_digits(values):
+    '''
+        Values with digits in a text column become numbers, or missing when they are not a number
+    '''
+    try:
+        with_digits = values.str.contains(r'\d', na=False)
+    except AttributeError:
+        # No text in the column at all
+        return values
+    if not with_digits.any():
+        return values
+    converted = values.copy()
+    converted[with_digits] = pd.to_numeric(values[with_digits], errors='coerce')
+    return converted.infer_objects()
+
 class PrepareData:
 
-    def __init__(self, dataframe, data_cleaning_methods):
+    def __init__(self, dataframe, data_cleaning_methods, output_directory=None, profile=None):
+        self.profile = {column['name']: column for column in profile['columns']} if profile else {}
         if 'id' in dataframe.columns:
             dataframe.drop('id', axis=1, inplace=True)
         dataframe = dataframe.sample(frac=1).reset_index(drop=True)
 
+        # Values with digits in text columns become numbers. Columns pandas already read as numbers have nothing to convert,
+        # and neither do the columns the profile found no digits in
         for column in dataframe.columns:
-            dataframe[column] = dataframe[column].apply(lambda x: pd.to_numeric(x, errors='coerce')\
-                                                        if isinstance(x, str) and any(char.isdigit() for char in x) else x)
+            if dataframe[column].dtype == object and self.profile.get(column, {}).get('type') != 'text':
+                dataframe[column] = convert_values_with_digits(dataframe[column])
 
-        if 'Imputação da Média em Valores Faltantes' in data_cleaning_methods:
+        if selected(data_cleaning_methods, IMPUTATION):
             dataframe = self.impute_missing_values(dataframe)
 
         else:
             dataframe = dataframe.dropna()
 
-        if 'Remover dados duplicados' in data_cleaning_methods:
-            dataframe.drop_duplicates()
+        if selected(data_cleaning_methods, DUPLICATES):
+            dataframe = dataframe.drop_duplicates()
 
-        if 'Remoção de Colinearidade' in data_cleaning_methods:
+        if selected(data_cleaning_methods, COLLINEARITY):
             dataframe = self.remove_high_correlation(dataframe)
 
         self.x = dataframe.iloc[:, :-1]
 
-        if 'Normalize' in data_cleaning_methods:
+        if selected(data_cleaning_methods, NORMALIZE):
             numeric_cols = self.x.select_dtypes(include=['float64', 'int64']).columns
             scaler = StandardScaler()
             self.x[numeric_cols] = scaler.fit_transform(self.x[numeric_cols])
@@ -44,10 +89,22 @@ class PrepareData:
 
         dataframe = dataframe.dropna()
 
-        self.save_cleaned_data(dataframe)
+        if output_directory is None:
+            self.save_cleaned_data(dataframe)
+        else:
+            self.save_cleaned_arrays(dataframe, output_directory)
+
+    def distinct_values(self, dataframe, column):
+        '''
+            Counted by the profile for the columns that are still as they were in the CSV, counted here for the others
+        '''
+        profiled = self.profile.get(column)
+        if profiled is not None and profiled['distinct_exact'] and profiled['type'] in ('integer', 'text'):
+            return profiled['distinct']
+        return dataframe[column].nunique()
 
     def identify_classification_columns_and_get_dummies (self, dataframe):
-        potential_categorical_columns = [col for col in dataframe.columns if dataframe[col].nunique() < 10 and dataframe[col].dtype in [int, object, str]]
+        potential_categorical_columns = [col for col in dataframe.columns if dataframe[col].dtype in [int, object, str] and self.distinct_values(dataframe, col) < CATEGORICAL_LIMIT]
         if len(potential_categorical_columns) > 0:
             dataframe = pd.get_dummies(dataframe, columns=potential_categorical_columns)
 
@@ -57,6 +114,21 @@ class PrepareData:
         file_path = os.path.join("resources", "cleaned_data.csv")
         dataframe.to_csv(file_path, index=False)
   
+    def save_cleaned_arrays(self, dataframe, output_directory):
+        '''
+            Saves the features and the target as .npy files, so the analysis workers can memory-map them instead of parsing a CSV
+        '''
+        features = dataframe.iloc[:, :-1]
+        non_numeric = [str(col) for col in features.columns if not (pd.api.types.is_numeric_dtype(features[col]) or pd.api.types.is_bool_dtype(features[col]))]
+        if non_numeric:
+            raise ValueError(f"Columns left non numeric after cleaning: {', '.join(non_numeric)}")
+
+        os.makedirs(output_directory, exist_ok=True)
+        np.save(os.path.join(output_directory, 'features.npy'), features.to_numpy(dtype=np.float64))
+        np.save(os.path.join(output_directory, 'target.npy'), dataframe.iloc[:, -1].to_numpy(dtype=np.int64))
+        with open(os.path.join(output_directory, 'columns.txt'), 'w', encoding='utf-8') as file:
+            file.write('\n'.join(str(col) for col in features.columns) + '\n')
+
     def impute_missing_values(self, dataframe):
         for col in dataframe.columns:
             if dataframe[col].dtype in ['float64', 'int64']:
@@ -65,16 +137,322 @@ class PrepareData:
                 dataframe[col].fillna(dataframe[col].mode()[0], inplace=True)
         return dataframe
 
-    def remove_high_correlation(self, dataframe, threshold=0.9):
-        corr_matrix = dataframe.corr().abs()
+    def remove_high_correlation(self, dataframe, threshold=CORRELATION_THRESHOLD):
+        # Between the numeric features, the target is never dropped
+        corr_matrix = dataframe.iloc[:, :-1].corr(numeric_only=True).abs()
         upper_triangle = corr_matrix.where(np.triu(np.ones(corr_matrix.shape), k=1).astype(bool))
         to_drop = [column for column in upper_triangle.columns if any(upper_triangle[column] > threshold)]
         dataframe.drop(to_drop, axis=1, inplace=True)
         return dataframe
 
+class StreamingPrepareData:
+    '''
+        The same cleaning as PrepareData for CSVs that do not fit in memory, reading the file in chunks twice
+
+        The first pass gathers what the cleaning needs: the types of the columns, a sample of each numeric column for
+        its median, the most frequent values of the others, the categories of the one hot columns, the target classes,
+        the sums of the correlation matrix and a hash of every row for the duplicates. The second pass cleans each chunk
+        with those and writes it straight into the memory mapped arrays, then the normalization is applied in place.
+        Medians and modes are estimated once a column has more values than the sample or the counters hold, the
+        correlations use every pair of values present. Rows keep the order of the file, the analysis shuffles its splits.
+        Duplicates are compared as they are in the file, before the imputation. Peak memory stays near memory_mb, except
+        for the row hashes of the duplicate removal (9 bytes a row).
+    '''
+    SAMPLE_SIZE = 20000
+    MODE_COUNTERS = 1000
+
+    def __init__(self, csv_path, data_cleaning_methods, output_directory, profile, memory_mb):
+        self.csv_path = csv_path
+        self.impute = selected(data_cleaning_methods, IMPUTATION)
+        self.deduplicate = selected(data_cleaning_methods, DUPLICATES)
+        self.collinearity = selected(data_cleaning_methods, COLLINEARITY)
+        self.normalize = selected(data_cleaning_methods, NORMALIZE)
+        self.profile = {column['name']: column for column in profile['columns']} if profile else {}
+        self.id_columns = id_columns(data_cleaning_methods, profile)
+        self.chunk_rows = self.rows_per_chunk(memory_mb)
+
+        self.gather_statistics()
+        self.plan_columns()
+        self.write_arrays(output_directory)
+
+    def rows_per_chunk(self, memory_mb):
+        '''
+            A pandas chunk takes a few times its size in the file, the statistics of the first pass take their share first
+        '''
+        with open(self.csv_path, 'rb') as file:
+            header = file.readline()
+            sample = file.read(1 << 20)
+        lines = max(1, sample.count(b'\n'))
+        bytes_per_row = max(1, len(sample) // lines)
+        columns = max(1, header.count(b',') + 1)
+        fixed = columns * self.SAMPLE_SIZE * 16 + (4 * columns * columns * 8 if self.collinearity else 0)
+        budget = max(memory_mb * (1 << 20) - fixed, 16 << 20)
+        return max(1000, budget // (6 * bytes_per_row + 64 * columns))
+
+    def chunks(self):
+        '''
+            The chunks of the CSV with the id columns left out and the values with digits converted, as PrepareData does
+        '''
+        reader = pd.read_csv(self.csv_path, usecols=lambda column: column not in self.id_columns, chunksize=self.chunk_rows)
+        for chunk in reader:
+            for column in chunk.columns:
+                if chunk[column].dtype == object and self.profile.get(column, {}).get('type') != 'text':
+                    chunk[column] = convert_values_with_digits(chunk[column])
+            yield chunk
+
+    def gather_statistics(self):
+        self.columns = None
+        self.rows = 0
+        self.kinds = {}
+        self.samples = {}
+        self.modes = {}
+        self.categories = {}
+        self.classes = set()
+        self.correlation = None
+        self.valid_rows = 0
+        hashes = []
+
+        for chunk in self.chunks():
+            if self.columns is None:
+                self.columns = list(chunk.columns)
+                self.features = self.columns[:-1]
+                self.target = self.columns[-1]
+                self.categories = {column: set() for column in self.columns}
+            positions = np.arange(self.rows, self.rows + len(chunk), dtype=np.uint64)
+            self.rows += len(chunk)
+
+            for column in self.columns:
+                values = chunk[column]
+                self.kinds[column] = merge_kinds(self.kinds.get(column), column_kind(values))
+                present = values.notna().to_numpy()
+                if self.kinds[column] in ('int', 'float'):
+                    self.add_to_sample(column, values.to_numpy(dtype=np.float64)[present], positions[present])
+                else:
+                    self.count_values(column, values[present])
+                categories = self.categories.get(column)
+                if categories is not None:
+                    categories.update(values[present].unique().tolist())
+                    if len(categories) >= CATEGORICAL_LIMIT:
+                        self.categories[column] = None
+
+            self.classes.update(chunk[self.target].dropna().unique().tolist())
+            if not self.impute:
+                self.valid_rows += int(chunk.notna().all(axis=1).sum())
+            if self.collinearity:
+                self.add_to_correlation(chunk)
+            if self.deduplicate:
+                # A column read as integers in one chunk can be read as floats in another, equal rows must hash the same
+                numbers = chunk.apply(lambda values: values.astype(np.float64) if pd.api.types.is_numeric_dtype(values) else values)
+                row_hashes = pd.util.hash_pandas_object(numbers, index=False).to_numpy()
+                if not self.impute:
+                    # Rows with missing values are dropped before the duplicates are looked for
+                    row_hashes = np.where(chunk.notna().all(axis=1).to_numpy(), row_hashes, np.uint64(0))
+                hashes.append(row_hashes)
+
+        if self.columns is None:
+            raise ValueError('The CSV has no rows')
+        self.fill_values = {column: self.fill_value(column) for column in self.columns} if self.impute else {}
+        self.keep = self.first_occurrences(np.concatenate(hashes)) if self.deduplicate else None
+
+    def add_to_sample(self, column, values, positions):
+        '''
+            Keeps the values of the rows with the smallest position hash, the same rows whatever the chunk size
+        '''
+        priorities = mix(positions)
+        old_values, old_priorities = self.samples.get(column, (np.empty(0), np.empty(0, dtype=np.uint64)))
+        values = np.concatenate([old_values, values])
+        priorities = np.concatenate([old_priorities, priorities])
+        if len(values) > self.SAMPLE_SIZE:
+            kept = np.argpartition(priorities, self.SAMPLE_SIZE)[:self.SAMPLE_SIZE]
+            values, priorities = values[kept], priorities[kept]
+        self.samples[column] = (values, priorities)
+        self.modes.pop(column, None)
+
+    def count_values(self, column, values):
+        '''
+            Misra-Gries counters: exact counts while there are at most MODE_COUNTERS different values
+        '''
+        counts = self.modes.setdefault(column, {})
+        for value, count in values.value_counts(sort=False).items():
+            counts[value] = counts.get(value, 0) + int(count)
+        if len(counts) > self.MODE_COUNTERS:
+            cut = sorted(counts.values(), reverse=True)[self.MODE_COUNTERS]
+            self.modes[column] = {value: count - cut for value, count in counts.items() if count > cut}
+
+    def fill_value(self, column):
+        if self.kinds[column] in ('int', 'float'):
+            values = self.samples.get(column, (np.empty(0),))[0]
+            return float(np.median(values)) if len(values) else None
+        counts = self.modes.get(column)
+        return max(counts, key=counts.get) if counts else None
+
+    def add_to_correlation(self, chunk):
+        '''
+            Sums for the correlation of every pair of numeric features over the rows where both are present, as corr() does
+        '''
+        numeric = [column for column in self.features if self.kinds[column] in ('int', 'float', 'bool')]
+        if self.correlation is None:
+            size = len(self.features)
+            self.correlation = {name: np.zeros((size, size)) for name in ('n', 'sx', 'sxx', 'sxy')}
+        indexes = [self.features.index(column) for column in numeric]
+        values = chunk[numeric].to_numpy(dtype=np.float64, na_value=np.nan)
+        present = ~np.isnan(values)
+        zeroed = np.where(present, values, 0.0)
+        present = present.astype(np.float64)
+        grid = np.ix_(indexes, indexes)
+        self.correlation['n'][grid] += present.T @ present
+        self.correlation['sx'][grid] += zeroed.T @ present
+        self.correlation['sxx'][grid] += (zeroed ** 2).T @ present
+        self.correlation['sxy'][grid] += zeroed.T @ zeroed
+
+    def correlated_columns(self):
+        sums = self.correlation
+        n, sx, sxx, sxy = sums['n'], sums['sx'], sums['sxx'], sums['sxy']
+        with np.errstate(divide='ignore', invalid='ignore'):
+            covariance = n * sxy - sx * sx.T
+            variance = (n * sxx - sx ** 2) * (n * sxx - sx ** 2).T
+            correlation = np.abs(covariance / np.sqrt(variance))
+        numeric = [self.kinds[column] in ('int', 'float', 'bool') for column in self.features]
+        dropped = []
+        for j, column in enumerate(self.features):
+            if numeric[j] and any(numeric[i] and correlation[i, j] > CORRELATION_THRESHOLD for i in range(j)):
+                dropped.append(column)
+        return set(dropped)
+
+    def first_occurrences(self, hashes):
+        '''
+            The rows to keep: the first of each set of equal rows, and with no imputation only the rows with no missing value
+        '''
+        keep = np.zeros(len(hashes), dtype=bool)
+        candidates = np.flatnonzero(hashes) if not self.impute else np.arange(len(hashes))
+        _, first = np.unique(hashes[candidates], return_index=True)
+        keep[candidates[first]] = True
+        return keep
+
+    def plan_columns(self):
+        '''
+            The features as PrepareData ends up with them: the numeric ones in order, then the one hot columns
+        '''
+        dropped = self.correlated_columns() if self.collinearity else set()
+        self.kept_features = [column for column in self.features if column not in dropped]
+        self.scaled = [column for column in self.kept_features if self.normalize and self.kinds[column] in ('int', 'float')]
+        self.one_hot = [column for column in self.kept_features if column not in self.scaled and self.kinds[column] in ('int', 'object')
+                        and self.categories.get(column) is not None]
+        self.numeric = [column for column in self.kept_features if column not in self.one_hot]
+        non_numeric = [str(column) for column in self.numeric if self.kinds[column] == 'object']
+        if non_numeric:
+            raise ValueError(f"Columns left non numeric after cleaning: {', '.join(non_numeric)}")
+        self.dummies = [(column, value) for column in self.one_hot for value in sorted(self.categories[column])]
+        self.output_columns = [str(column) for column in self.numeric] + [f'{column}_{value}' for column, value in self.dummies]
+        self.class_codes = {value: code for code, value in enumerate(sorted(self.classes))}
+
+    def write_arrays(self, output_directory):
+        if self.keep is not None:
+            output_rows = int(self.keep.sum())
+        else:
+            output_rows = self.rows if self.impute else self.valid_rows
+
+        os.makedirs(output_directory, exist_ok=True)
+        features = np.lib.format.open_memmap(os.path.join(output_directory, 'features.npy'), mode='w+', dtype=np.float64,
+                                             shape=(output_rows, len(self.output_columns)))
+        target = np.lib.format.open_memmap(os.path.join(output_directory, 'target.npy'), mode='w+', dtype=np.int64, shape=(output_rows,))
+
+        position = 0
+        row = 0
+        for chunk in self.chunks():
+            if self.keep is not None:
+                kept = self.keep[row:row + len(chunk)]
+                row += len(chunk)
+                chunk = chunk[kept]
+            if self.impute:
+                chunk = chunk.fillna({column: value for column, value in self.fill_values.items() if value is not None})
+            elif self.keep is None:
+                chunk = chunk.dropna()
+            if len(chunk) == 0:
+                continue
+
+            block = [chunk[self.numeric].to_numpy(dtype=np.float64, na_value=np.nan)]
+            block += [(chunk[column] == value).to_numpy(dtype=np.float64)[:, None] for column, value in self.dummies]
+            features[position:position + len(chunk)] = np.hstack(block)
+            target[position:position + len(chunk)] = chunk[self.target].map(self.class_codes).to_numpy(dtype=np.int64)
+            position += len(chunk)
+
+        # StandardScaler over the written rows: the mean and the population standard deviation, 1 for a constant column
+        scaled = [self.numeric.index(column) for column in self.scaled]
+        if scaled:
+            sums = np.zeros(len(scaled))
+            squares = np.zeros(len(scaled))
+            for start in range(0, output_rows, self.chunk_rows):
+                block = features[start:start + self.chunk_rows, scaled]
+                sums += block.sum(axis=0)
+                squares += (block ** 2).sum(axis=0)
+            mean = sums / max(1, output_rows)
+            std = np.sqrt(np.maximum(squares / max(1, output_rows) - mean ** 2, 0))
+            std[std == 0] = 1
+            for start in range(0, output_rows, self.chunk_rows):
+                features[start:start + self.chunk_rows, scaled] = (features[start:start + self.chunk_rows, scaled] - mean) / std
+
+        features.flush()
+        target.flush()
+        with open(os.path.join(output_directory, 'columns.txt'), 'w', encoding='utf-8') as file:
+            file.write('\n'.join(self.output_columns) + '\n')
+
+def column_kind(values):
+    if pd.api.types.is_bool_dtype(values):
+        return 'bool'
+    if pd.api.types.is_integer_dtype(values):
+        return 'int'
+    if pd.api.types.is_numeric_dtype(values):
+        return 'float'
+    return 'object'
+
+def merge_kinds(old, new):
+    '''
+        The kind of the whole column from the kinds of its chunks, as pandas would read it at once
+    '''
+    if old is None or old == new:
+        return new
+    if 'object' in (old, new):
+        return 'object'
+    if 'bool' in (old, new):
+        return 'object'
+    return 'float'
+
+def mix(positions):
+    '''
+        SplitMix64 of the row positions, a fixed pseudo random priority for each row
+    '''
+    with np.errstate(over='ignore'):
+        z = positions + np.uint64(0x9E3779B97F4A7C15)
+        z = (z ^ (z >> np.uint64(30))) * np.uint64(0xBF58476D1CE4E5B9)
+        z = (z ^ (z >> np.uint64(27))) * np.uint64(0x94D049BB133111EB)
+        return z ^ (z >> np.uint64(31))
+
+def read_profile(path):
+    '''
+        The column profile made by the Java profiler, None when there is none or the CSV could not be profiled
+    '''
+    if not path:
+        return None
+    try:
+        with open(path, 'r', encoding='utf-8') as file:
+            profile = json.load(file)
+    except (OSError, ValueError):
+        return None
+    return profile if profile.get('usable') else None
+
 # MAIN
 
 dataframe = sys.argv[1]
 data_cleaning_methods = sys.argv[2]
-dataframe = pd.read_csv(dataframe)
-PrepareData(dataframe, data_cleaning_methods)
+output_directory = sys.argv[3] if len(sys.argv) > 3 else None
+profile = read_profile(sys.argv[4] if len(sys.argv) > 4 else None)
+# A memory budget in MB cleans the CSV in chunks instead of reading it whole
+memory_mb = int(sys.argv[5]) if len(sys.argv) > 5 and sys.argv[5] else 0
+if memory_mb > 0 and output_directory is not None:
+    StreamingPrepareData(dataframe, data_cleaning_methods, output_directory, profile, memory_mb)
+else:
+    # Row id columns are never read
+    dropped = id_columns(data_cleaning_methods, profile)
+    dataframe = pd.read_csv(dataframe, usecols=lambda column: column not in dropped)
+    PrepareData(dataframe, data_cleaning_methods, output_directory, profile)
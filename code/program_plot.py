@@ -1,124 +1,193 @@
+import argparse
+import hashlib
+import json
+import os
 import sys
+from concurrent.futures import ProcessPoolExecutor, as_completed
+import matplotlib
+matplotlib.use('Agg')
 import matplotlib.pyplot as plt
-from matplotlib.backends.backend_agg import FigureCanvasAgg
 import seaborn as sns
 import pandas as pd
 from scipy.stats import kruskal
 from scipy.stats import f_oneway
 from PIL import Image
-
-def plot_all():
-    dataset = pd.read_csv('results table//results.csv')
-    metrics = dataset.columns.tolist()
-    metrics.remove('technique')
-    metrics.remove('model')
-    num_metrics = len(metrics)
-
-    total_rows = num_metrics * 3  
-    fig, axes = plt.subplots(total_rows, 1, figsize=(12, 5 * total_rows))
-    axes = axes.flatten()
-    
-    row = 0
-    
-    # Box Plots by Technique and Model
-    for i, metric in enumerate(metrics):
-        filtered_data = dataset
-        title = metric + ' (MB)' if metric == 'Memory Usage' else metric + ' (seconds)' if metric == 'Processing Time' else metric
-
-        sns.boxplot(ax=axes[row], x='model', y=metric, hue='technique', data=filtered_data, palette='Set2', showfliers=False)
-        axes[row].set_title(f'{title} by Technique and Model')
-        axes[row].grid(True, axis='y', linestyle='--', alpha=0.7)
-        axes[row].set_xlabel('Model')
-        axes[row].set_ylabel(title)
-        axes[row].legend(title='Technique')
-        row += 1
-
-    # Kernel Linear Density plots by Model
-    for metric in metrics:
-        filtered_data = dataset
-        title = metric + ' (MB)' if metric == 'Memory Usage' else metric + ' (seconds)' if metric == 'Processing Time' else metric
-
-        if metric in ['F1-Score', 'ROC AUC', 'Precision', 'Accuracy', 'Recall']:
-            sns.kdeplot(data=filtered_data, x=metric, hue='model', multiple='layer', palette='Set1', ax=axes[row], fill=True, bw_adjust=1, clip=(0, 1), linewidth=2, alpha=0.5)
-        else:
-            sns.kdeplot(data=filtered_data, x=metric, hue='model', multiple='layer', palette='Set1', ax=axes[row], fill=True, bw_adjust=1, clip=(0, None), linewidth=2, alpha=0.5)
-
-        axes[row].set_title(f'{title} by Model')
-        axes[row].set_xlabel(title)
-        axes[row].set_ylabel('Frequency')
-        axes[row].set_yticks([])
-        axes[row].grid(True, linestyle='--', alpha=0.7)
-        groups = [filtered_data[filtered_data['model'] == model][metric] for model in filtered_data['model'].unique()]
+from program_results_store import ResultsStore, read_results
+
+# Part of every chart fingerprint, change it when the way the charts are drawn changes so they are all drawn again
+CHART_VERSION = '2'
+FINGERPRINTS = 'fingerprints.json'
+
+def metric_title(metric):
+    if metric in ['Memory Usage', 'Peak Memory']:
+        return metric + ' (MB)'
+    if metric in ['Processing Time', 'CPU Time']:
+        return metric + ' (seconds)'
+    return metric
+
+def plotted_rows(dataset):
+    '''
+        The rows that go into the charts and the metrics to chart
+    '''
+    # Only the analyses that finished are plotted
+    dataset = dataset[dataset['status'] == 'ok'].drop(columns=['status'])
+    # Racing runs: only the full-data runs of the surviving pairs, the rounds on samples are not comparable with them
+    if 'stage' in dataset.columns:
+        dataset = dataset[dataset['stage'] == 'full'].drop(columns=['stage'])
+    # Where pinned jobs ran is not a metric, whether the search ran only filters the times
+    dataset = dataset.drop(columns=['cores', 'threads'], errors='ignore')
+    metrics = [column for column in dataset.columns if column not in ('technique', 'model', 'search')]
+    return dataset, metrics
+
+def metric_rows(dataset, metric):
+    '''
+        The rows charted for a metric. A job that took its parameters from the search cache skipped the search, so its
+        times are left out rather than compared with those of the jobs that searched
+    '''
+    if 'search' in dataset.columns and metric in ResultsStore.TIME_METRICS:
+        dataset = dataset[dataset['search'] != 'cached']
+    return dataset[['technique', 'model', metric]].reset_index(drop=True)
+
+def chart_tasks(dataset, metrics):
+    '''
+        One chart per metric and kind, in the order of the combined image: the box plots, then the densities by model,
+        then the densities by technique. Each task only carries the columns its chart reads
+    '''
+    tasks = []
+    for kind in ['box', 'by model', 'by technique']:
+        for metric in metrics:
+            name = f'{metric} - {kind}'
+            data = metric_rows(dataset, metric)
+            # Every job of a later run may have found its parameters in the cache
+            if not data.empty:
+                tasks.append((name, kind, metric, data))
+    return tasks
+
+def fingerprint(kind, metric, data):
+    content = f'{CHART_VERSION}|{kind}|{metric}|' + data.to_csv(index=False)
+    return hashlib.sha256(content.encode('utf-8')).hexdigest()
+
+def render_chart(kind, metric, data, output):
+    fig, axis = plt.subplots(1, 1, figsize=(12, 5))
+    title = metric_title(metric)
+
+    if kind == 'box':
+        # Box Plots by Technique and Model
+        sns.boxplot(ax=axis, x='model', y=metric, hue='technique', data=data, palette='Set2', showfliers=False)
+        axis.set_title(f'{title} by Technique and Model')
+        axis.grid(True, axis='y', linestyle='--', alpha=0.7)
+        axis.set_xlabel('Model')
+        axis.set_ylabel(title)
+        axis.legend(title='Technique')
+    else:
+        # Kernel Linear Density plots by Model or by Technique
+        hue = 'model' if kind == 'by model' else 'technique'
+        clip = (0, 1) if metric in ['F1-Score', 'ROC AUC', 'Precision', 'Accuracy', 'Recall'] else (0, None)
+        sns.kdeplot(data=data, x=metric, hue=hue, multiple='layer', palette='Set1' if hue == 'model' else 'Set2', ax=axis, fill=True,
+                    bw_adjust=1, clip=clip, linewidth=2, alpha=0.5)
+        axis.set_title(f'{title} by {hue.capitalize()}')
+        axis.set_xlabel(title)
+        axis.set_ylabel('Frequency')
+        axis.set_yticks([])
+        axis.grid(True, linestyle='--', alpha=0.7)
+        groups = [data[data[hue] == value][metric] for value in data[hue].unique()]
         if len(groups) > 1 and groups[0].size > 3:
             stat_kruskal, p_value_kruskal = kruskal(*groups)
             stat_anova, p_value_anova = f_oneway(*groups)
-            y_pos = axes[row].get_ylim()[0] - 0.2
-
-            text_content = f'Kruskal-Wallis stat: {stat_kruskal:.2f}, p: {p_value_kruskal:.2f}\nANOVA stat: {stat_anova:.2f}, p: {p_value_anova:.2f}'
-
-            axes[row].text(
-                0.5, y_pos, text_content,
-                fontsize=10, ha='center', va='top', transform=axes[row].transAxes,
+            axis.text(
+                0.5, -0.25, f'Kruskal-Wallis stat: {stat_kruskal:.2f}, p: {p_value_kruskal:.2f}\nANOVA stat: {stat_anova:.2f}, p: {p_value_anova:.2f}',
+                fontsize=10, ha='center', va='top', transform=axis.transAxes,
                 bbox=dict(facecolor='white', alpha=0.8, edgecolor='black')
             )
-        row += 1
-
-    # Kernel Linear Density plots by Technique
-    for metric in metrics:
-        filtered_data = dataset
-        title = metric + ' (MB)' if metric == 'Memory Usage' else metric + ' (seconds)' if metric == 'Processing Time' else metric
 
-        if metric in ['F1-Score', 'ROC AUC', 'Precision', 'Accuracy', 'Recall']:
-            sns.kdeplot(data=filtered_data, x=metric, hue='technique', multiple='layer', palette='Set2', ax=axes[row], fill=True, bw_adjust=1, clip=(0, 1), linewidth=2, alpha=0.5)
+    fig.tight_layout()
+    # The test statistics sit under the axes
+    fig.savefig(output, dpi=100, bbox_inches='tight')
+    plt.close(fig)
+    return output
+
+def plot_all(dataset, output, charts_directory, executor):
+    '''
+        Draws each chart on the executor and prints "CHART <path>" as soon as it is on disk, so the interface can show it.
+        A chart whose rows are the same as when it was last drawn is not drawn again. The charts are then put one under
+        the other in the output image
+    '''
+    dataset, metrics = plotted_rows(dataset)
+    os.makedirs(charts_directory, exist_ok=True)
+    fingerprints_path = os.path.join(charts_directory, FINGERPRINTS)
+    try:
+        with open(fingerprints_path, 'r') as file:
+            old_fingerprints = json.load(file)
+    except (OSError, ValueError):
+        old_fingerprints = {}
+
+    tasks = chart_tasks(dataset, metrics)
+    paths = {name: os.path.abspath(os.path.join(charts_directory, name + '.png')) for name, _, _, _ in tasks}
+    fingerprints = {}
+    pending = {}
+    for name, kind, metric, data in tasks:
+        fingerprints[name] = fingerprint(kind, metric, data)
+        if old_fingerprints.get(name) == fingerprints[name] and os.path.exists(paths[name]):
+            print(f'CHART\t{paths[name]}', flush=True)
         else:
-            sns.kdeplot(data=filtered_data, x=metric, hue='technique', multiple='layer', palette='Set2', ax=axes[row], fill=True, bw_adjust=1, clip=(0, None), linewidth=2, alpha=0.5)
-
-        axes[row].set_title(f'{title} by Technique')
-        axes[row].set_xlabel(title)
-        axes[row].set_ylabel('Frequency')
-        axes[row].set_yticks([])
-        axes[row].grid(True, linestyle='--', alpha=0.7)
-        groups = [filtered_data[filtered_data['technique'] == technique][metric] for technique in filtered_data['technique'].unique()]
-        if len(groups) > 1 and groups[0].size > 3:
-            stat_kruskal, p_value_kruskal = kruskal(*groups)
-            stat_anova, p_value_anova = f_oneway(*groups)
-            y_pos = axes[row].get_ylim()[0] - 0.2
-            axes[row].text(
-                0.5, y_pos, f'Kruskal-Wallis   stat: {stat_kruskal:.2f}    p_value: {p_value_kruskal:.2f} \nANOVA   stat: {stat_anova:.2f}   p_value: {p_value_anova:.2f}',
-                fontsize=10, ha='center', va='top',
-                transform=axes[row].transAxes,
-                bbox=dict(facecolor='white', alpha=0.8, edgecolor='black')
-            )
-        row += 1
-
-    plt.tight_layout()
-
-    if num_metrics == 7:
-        fig.subplots_adjust(top=0.90, bottom=0.1, hspace=0.6)
-    if num_metrics == 6:
-        fig.subplots_adjust(top=1, bottom=0.0, hspace=0.6)
-    if num_metrics == 3:
-        fig.subplots_adjust(top=0.99, bottom=0.01, hspace=0.6)
-    elif num_metrics == 2:
-        fig.subplots_adjust(top=0.96, bottom=0.04, hspace=0.6)
-    elif num_metrics == 1:
-        fig.subplots_adjust(top=0.93, bottom=0.07, hspace=0.6)
-    else:
-        fig.subplots_adjust(top=0.98, bottom=0.02, hspace=0.6)
-
-    canvas = FigureCanvasAgg(fig)
-    canvas.draw()
-    image_data = canvas.tostring_rgb()
-    size = canvas.get_width_height()
-    image = Image.frombytes("RGB", size, image_data)
-    image.save('results image\\graphs.png')
-
-def remove_outliers(df, metric):
-    mean = df[metric].mean()
-    std = df[metric].std()
-    filtered_df = df[(df[metric] >= mean - 3 * std) & (df[metric] <= mean + 3 * std)]
-    return filtered_df
+            pending[executor.submit(render_chart, kind, metric, data, paths[name])] = name
+
+    drawn = set()
+    try:
+        for future in as_completed(pending):
+            print(f'CHART\t{future.result()}', flush=True)
+            drawn.add(pending[future])
+    finally:
+        # Only the charts that are on disk keep their fingerprint, a failed one is drawn again next time
+        kept = {name: value for name, value in fingerprints.items() if name in drawn or name not in pending.values()}
+        with open(fingerprints_path, 'w') as file:
+            json.dump(kept, file, indent=1)
+
+    # Charts of metrics this run did not measure belong to an earlier run
+    for file_name in os.listdir(charts_directory):
+        if file_name.endswith('.png') and file_name[:-len('.png')] not in paths:
+            os.remove(os.path.join(charts_directory, file_name))
+
+    combine([paths[name] for name, _, _, _ in tasks], output)
+
+def combine(chart_paths, output):
+    images = [Image.open(path).convert('RGB') for path in chart_paths]
+    width = max(image.width for image in images)
+    combined = Image.new('RGB', (width, sum(image.height for image in images)), 'white')
+    top = 0
+    for image in images:
+        combined.paste(image, (0, top))
+        top += image.height
+    combined.save(output)
+
+def load_results(arguments):
+    '''
+        The results table of this run, or rows read from the results store: one run, or the latest runs of a dataset
+    '''
+    if arguments.run is None and arguments.dataset is None:
+        return pd.read_csv('results table//results.csv')
+    return read_results(arguments.store, arguments.run, arguments.dataset, arguments.model, arguments.technique, arguments.last)
+
+def add_arguments(parser):
+    parser.add_argument('--store', default=os.path.join('resources', 'results_store.sqlite'))
+    parser.add_argument('--run', help='the run id in the store')
+    parser.add_argument('--dataset', help='every stored run of a CSV file, its hash or its file name')
+    parser.add_argument('--model')
+    parser.add_argument('--technique')
+    parser.add_argument('--last', type=int, help='only the latest runs of the dataset')
+    parser.add_argument('--output', default=os.path.join('results image', 'graphs.png'))
+    parser.add_argument('--jobs', type=int, default=os.cpu_count(), help='charts drawn at the same time')
+
+def charts_directory(output):
+    '''
+        Each chart goes in a charts folder next to the combined image
+    '''
+    return os.path.join(os.path.dirname(output), 'charts')
 
 if __name__ == "__main__":
-    plot_all()
-    sys.exit()
\ No newline at end of file
+    parser = argparse.ArgumentParser(description='Graphs of a results table')
+    add_arguments(parser)
+    arguments = parser.parse_args()
+    with ProcessPoolExecutor(max_workers=max(1, arguments.jobs)) as executor:
+        plot_all(load_results(arguments), arguments.output, charts_directory(arguments.output), executor)
+    sys.exit()
@@ -0,0 +1,32 @@
+import argparse
+import os
+import sys
+from concurrent.futures import ProcessPoolExecutor
+import pandas as pd
+from program_plot import plot_all, charts_directory
+from program_xlsx_and_pdf import graphs_to_pdf, table_to_xlsx
+
+def main():
+    '''
+        The reports of a run, the results table is read once and every report starts as soon as what it needs is there:
+        the tables right away next to the charts, the combined image once the charts are drawn, the PDF after it
+    '''
+    parser = argparse.ArgumentParser(description='Charts, tables and PDF of the results table')
+    parser.add_argument('--jobs', type=int, default=os.cpu_count(), help='reports made at the same time')
+    arguments = parser.parse_args()
+
+    results = pd.read_csv(os.path.join('results table', 'results.csv'))
+    graphs = os.path.join('results image', 'graphs.png')
+
+    with ProcessPoolExecutor(max_workers=max(1, arguments.jobs)) as executor:
+        tables = executor.submit(table_to_xlsx, results, os.path.join('results table', 'results.xlsx'),
+                                 os.path.join('results table', 'resumed results.xlsx'))
+        plot_all(results, graphs, charts_directory(graphs), executor)
+        graphs_to_pdf(graphs, os.path.join('results image', 'graphs.pdf'))
+        print('PDF done', flush=True)
+        tables.result()
+        print('Tables done', flush=True)
+
+if __name__ == '__main__':
+    main()
+    sys.exit()
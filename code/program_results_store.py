@@ -0,0 +1,241 @@
+import argparse
+import csv
+import datetime
+import hashlib
+import os
+import sqlite3
+import statistics
+import sys
+
+class ResultsStore:
+    '''
+        Every row of every finished run, in one SQLite file shared by the main folder and the queued runs
+
+        Rows are only ever added. Each run is stored once under its run id with the hash of its CSV and its
+        configuration, so runs of the same dataset can be compared across weeks. The metric columns are the ones of the
+        results table, a metric seen for the first time adds its column. The indexes by dataset, model and technique keep
+        queries over the history fast however many runs it holds. Pinned runs also keep the cores and threads of each row,
+        runs reusing search results whether each row ran its search.
+    '''
+    FIXED_COLUMNS = ['run_id', 'dataset_hash', 'technique', 'model', 'status', 'stage', 'cores', 'threads', 'search']
+    # Not comparable between the rows that ran their search and the rows that took the parameters from the cache
+    TIME_METRICS = ['Processing Time', 'CPU Time']
+
+    def __init__(self, path):
+        directory = os.path.dirname(path)
+        if directory:
+            os.makedirs(directory, exist_ok=True)
+        # Queued runs finishing at the same time wait for each other's writes
+        self.connection = sqlite3.connect(path, timeout=60)
+        self.connection.execute('PRAGMA journal_mode=WAL')
+        with self.connection:
+            self.connection.execute('''CREATE TABLE IF NOT EXISTS runs (
+                                           run_id TEXT PRIMARY KEY,
+                                           added TEXT NOT NULL,
+                                           dataset_hash TEXT NOT NULL,
+                                           dataset_name TEXT NOT NULL,
+                                           configuration TEXT NOT NULL)''')
+            self.connection.execute('''CREATE TABLE IF NOT EXISTS results (
+                                           run_id TEXT NOT NULL REFERENCES runs (run_id),
+                                           dataset_hash TEXT NOT NULL,
+                                           technique TEXT NOT NULL,
+                                           model TEXT NOT NULL,
+                                           status TEXT NOT NULL,
+                                           stage TEXT,
+                                           cores TEXT,
+                                           threads INTEGER,
+                                           search TEXT)''')
+            # Stores made before the pinned runs and the search column
+            columns = [row[1] for row in self.connection.execute('PRAGMA table_info(results)')]
+            for column, kind in [('cores', 'TEXT'), ('threads', 'INTEGER'), ('search', 'TEXT')]:
+                if column not in columns:
+                    self.connection.execute(f'ALTER TABLE results ADD COLUMN {column} {kind}')
+            self.connection.execute('CREATE INDEX IF NOT EXISTS runs_by_dataset ON runs (dataset_hash, added)')
+            self.connection.execute('CREATE INDEX IF NOT EXISTS results_by_model ON results (dataset_hash, model, technique, run_id)')
+            self.connection.execute('CREATE INDEX IF NOT EXISTS results_by_technique ON results (dataset_hash, technique, run_id)')
+            self.connection.execute('CREATE INDEX IF NOT EXISTS results_by_run ON results (run_id)')
+
+    def close(self):
+        self.connection.close()
+
+    def metric_columns(self):
+        columns = [row[1] for row in self.connection.execute('PRAGMA table_info(results)')]
+        return [column for column in columns if column not in self.FIXED_COLUMNS]
+
+    def add_run(self, run_id, dataset_hash, dataset_name, configuration, results_csv):
+        '''
+            Stores the rows of a results table, returns how many. A run already in the store is left as it is
+        '''
+        with open(results_csv, newline='', encoding='utf-8') as file:
+            rows = list(csv.DictReader(file))
+            header = rows[0].keys() if rows else []
+        metrics = [column for column in header if column not in self.FIXED_COLUMNS]
+
+        # One transaction: the run and all of its rows are in the store, or none of them
+        with self.connection:
+            if self.connection.execute('SELECT 1 FROM runs WHERE run_id = ?', (run_id,)).fetchone():
+                return 0
+            for metric in metrics:
+                if metric not in self.metric_columns():
+                    self.connection.execute(f'ALTER TABLE results ADD COLUMN {quote(metric)} REAL')
+
+            self.connection.execute('INSERT INTO runs VALUES (?, ?, ?, ?, ?)',
+                                    (run_id, datetime.datetime.now().isoformat(timespec='seconds'), dataset_hash, dataset_name, configuration))
+            columns = self.FIXED_COLUMNS + metrics
+            insert = f"INSERT INTO results ({', '.join(quote(column) for column in columns)}) VALUES ({', '.join('?' * len(columns))})"
+            self.connection.executemany(insert, [[run_id, dataset_hash, row['technique'], row['model'], row['status'], row.get('stage'),
+                                                  row.get('cores') or None, number(row.get('threads')), row.get('search') or None]
+                                                 + [number(row[metric]) for metric in metrics] for row in rows])
+        return len(rows)
+
+    def dataset_hashes(self, dataset):
+        '''
+            A CSV file is looked up by its content, anything else by hash or by file name
+        '''
+        if os.path.isfile(dataset):
+            return [sha256(dataset)]
+        return [row[0] for row in self.connection.execute('SELECT DISTINCT dataset_hash FROM runs WHERE dataset_hash = ? OR dataset_name = ?',
+                                                          (dataset, dataset))]
+
+    def last_runs(self, dataset_hashes, model=None, technique=None, last=None):
+        '''
+            Ids of the latest runs of the dataset that had the model and technique, newest first
+        '''
+        conditions, values = filters(dataset_hashes, model, technique)
+        query = (f'SELECT runs.run_id FROM runs WHERE runs.run_id IN (SELECT run_id FROM results WHERE {conditions}) '
+                 f'ORDER BY runs.added DESC, runs.run_id DESC')
+        if last is not None:
+            query += ' LIMIT ?'
+            values.append(last)
+        return [row[0] for row in self.connection.execute(query, values)]
+
+    def rows(self, run_ids, dataset_hashes=None, model=None, technique=None, metrics=None):
+        '''
+            The rows of the given runs as dictionaries with the columns of the results table
+        '''
+        if not run_ids:
+            return []
+        metrics = metrics or self.metric_columns()
+        conditions, values = filters(dataset_hashes, model, technique)
+        conditions += f" AND run_id IN ({', '.join('?' * len(run_ids))})"
+        columns = ['run_id', 'technique', 'model', 'status', 'stage', 'cores', 'threads', 'search'] + metrics
+        cursor = self.connection.execute(f"SELECT {', '.join(quote(column) for column in columns)} FROM results WHERE {conditions}",
+                                         values + list(run_ids))
+        return [dict(zip(columns, row)) for row in cursor]
+
+def filters(dataset_hashes, model, technique):
+    conditions, values = ['1 = 1'], []
+    if dataset_hashes is not None:
+        conditions.append(f"dataset_hash IN ({', '.join('?' * len(dataset_hashes))})")
+        values += dataset_hashes
+    if model is not None:
+        conditions.append('model = ?')
+        values.append(model)
+    if technique is not None:
+        conditions.append('technique = ?')
+        values.append(technique)
+    return ' AND '.join(conditions), values
+
+def read_results(store_path, run_id=None, dataset=None, model=None, technique=None, last=None):
+    '''
+        A results table read from the store, either one run or the latest runs of a dataset, for the plots
+    '''
+    import pandas as pd
+
+    store = ResultsStore(store_path)
+    try:
+        if run_id is not None:
+            run_ids = [run_id]
+            dataset_hashes = None
+        else:
+            dataset_hashes = store.dataset_hashes(dataset)
+            run_ids = store.last_runs(dataset_hashes, model, technique, last)
+        rows = store.rows(run_ids, dataset_hashes, model, technique)
+        metrics = store.metric_columns()
+    finally:
+        store.close()
+
+    columns = ['technique', 'model', 'status', 'stage', 'cores', 'threads', 'search'] + metrics
+    results = pd.DataFrame(rows, columns=['run_id'] + columns)[columns]
+    # Only the metrics the runs measured, the stage column only for racing runs, the cores only for pinned ones and the search
+    # only for runs reusing search results, as in the results table
+    return results.dropna(axis=1, how='all')
+
+def quote(name):
+    return '"' + name.replace('"', '""') + '"'
+
+def number(text):
+    return float(text) if text not in ('', None) else None
+
+def sha256(path):
+    digest = hashlib.sha256()
+    with open(path, 'rb') as file:
+        for block in iter(lambda: file.read(1 << 16), b''):
+            digest.update(block)
+    return digest.hexdigest()
+
+def print_query(arguments):
+    store = ResultsStore(arguments.store)
+    try:
+        dataset_hashes = store.dataset_hashes(arguments.dataset)
+        if not dataset_hashes:
+            print(f'No runs of {arguments.dataset} in {arguments.store}')
+            return
+        run_ids = store.last_runs(dataset_hashes, arguments.model, arguments.technique, arguments.last)
+        metrics = [metric.strip() for metric in arguments.metrics.split(',')] if arguments.metrics else store.metric_columns()
+        unknown = [metric for metric in metrics if metric not in store.metric_columns()]
+        if unknown:
+            sys.exit(f"Unknown metrics {', '.join(unknown)}, the store has {', '.join(store.metric_columns())}")
+        rows = [row for row in store.rows(run_ids, dataset_hashes, arguments.model, arguments.technique, metrics) if row['status'] == 'ok'
+                and row['stage'] in (None, '', 'full')]
+    finally:
+        store.close()
+
+    # Medians over the successful full-data rows, by technique and model. The times leave out the rows that took their
+    # parameters from the search cache
+    groups = {}
+    for row in rows:
+        groups.setdefault((row['technique'], row['model']), []).append(row)
+    print(f'{len(run_ids)} run(s), median of the successful analyses')
+    print('\t'.join(['technique', 'model', 'runs', 'rows'] + metrics))
+    for (technique, model), group in sorted(groups.items()):
+        medians = []
+        for metric in metrics:
+            values = [row[metric] for row in group if row[metric] is not None
+                      and not (metric in ResultsStore.TIME_METRICS and row['search'] == 'cached')]
+            medians.append(f'{statistics.median(values):.4f}' if values else '')
+        print('\t'.join([technique, model, str(len({row['run_id'] for row in group})), str(len(group))] + medians))
+
+def main():
+    parser = argparse.ArgumentParser(description='Results of past runs')
+    parser.add_argument('--store', default=os.path.join('resources', 'results_store.sqlite'))
+    commands = parser.add_subparsers(dest='command', required=True)
+
+    add = commands.add_parser('add', help='store the results table of a finished run')
+    add.add_argument('run_id')
+    add.add_argument('dataset_hash')
+    add.add_argument('dataset_name')
+    add.add_argument('configuration')
+    add.add_argument('--results', default=os.path.join('results table', 'results.csv'))
+
+    query = commands.add_parser('query', help='medians of the latest runs of a dataset')
+    query.add_argument('--dataset', required=True, help='a CSV file, its hash or its file name')
+    query.add_argument('--model')
+    query.add_argument('--technique')
+    query.add_argument('--metrics', help='comma separated, defaults to every metric')
+    query.add_argument('--last', type=int)
+
+    arguments = parser.parse_args()
+    if arguments.command == 'add':
+        store = ResultsStore(arguments.store)
+        try:
+            added = store.add_run(arguments.run_id, arguments.dataset_hash, arguments.dataset_name, arguments.configuration, arguments.results)
+        finally:
+            store.close()
+        print(f'{added} rows of {arguments.run_id} added to {arguments.store}')
+    else:
+        print_query(arguments)
+
+if __name__ == "__main__":
+    main()
+    sys.exit()
@@ -0,0 +1,70 @@
+import sys
+import os
+import time
+
+'''
+    Stand-in for program_worker.py used by the benchmarks in the benchmarks folder
+
+    Speaks the same protocol but answers every run request with canned metrics and without training anything,
+    so the time measured is the time of MLAnalyzer.java itself: starting processes, passing requests and results around
+    and writing them down. The dataset argument can be a cleaned dataset folder or one of the csv_examples files,
+    its size is read once so the request still touches the file like a real worker would.
+
+    A delay argument makes every run request take that many seconds, and parameters without a canned value are
+    echoed from the request, so a check can tell which job a row of the results came from.
+'''
+
+CANNED_METRICS = {
+    'F1-Score': 0.9512,
+    'Processing Time': 0.0123,
+    'ROC AUC': 0.9876,
+    'Memory Usage': 1.25,
+    'Precision': 0.9533,
+    'Accuracy': 0.9500,
+    'Recall': 0.9500,
+    'CPU Time': 0.0121,
+    'Peak Memory': 48.5,
+}
+
+def respond(status, fields):
+    sys.stdout.write(status + ''.join(f"\t{key}={value}" for key, value in fields.items()) + "\n")
+    sys.stdout.flush()
+
+dataset_sizes = {}
+
+def dataset_size(path):
+    if path not in dataset_sizes:
+        if os.path.isdir(path):
+            dataset_sizes[path] = sum(os.path.getsize(os.path.join(path, name)) for name in os.listdir(path))
+        else:
+            dataset_sizes[path] = os.path.getsize(path)
+    return dataset_sizes[path]
+
+def main():
+    respond('READY', {'worker_rss': 10.0, 'import_seconds': 0.0})
+
+    for line in sys.stdin:
+        line = line.rstrip('\n')
+        if not line:
+            continue
+
+        command, *fields = line.split('\t')
+        args = dict(field.split('=', 1) for field in fields)
+
+        if command == 'exit':
+            break
+        if command != 'run':
+            respond('ERR', {})
+            continue
+
+        start = time.perf_counter()
+        dataset_size(args['dataset'])
+        time.sleep(float(args.get('delay', 0)))
+        results = {'worker_rss': 10.0}
+        for parameter in args['parameters'].split(','):
+            results[parameter] = CANNED_METRICS.get(parameter, args.get(parameter, 0.0))
+        results['phase.load'] = time.perf_counter() - start
+        respond('OK', results)
+
+if __name__ == "__main__":
+    main()
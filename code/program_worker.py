@@ -0,0 +1,285 @@
+import sys
+import os
+import threading
+import time
+import traceback
+import json
+
+import_start = time.perf_counter()
+
+# The protocol goes through the real stdout, anything printed by the libraries or the models goes to stderr
+protocol_output = sys.stdout
+sys.stdout = sys.stderr
+
+import psutil
+from threadpoolctl import threadpool_limits
+
+from program_analysis import Analysis, MemoryMonitor, PhaseTimer, SearchCache, SharedSplits, get_results, load_dataset, \
+                             score_candidate, search_candidates, search_space, stratified_sample
+
+import_seconds = time.perf_counter() - import_start
+
+'''
+    Long-lived analysis worker, started by MLAnalyzer.java
+
+    The libraries are loaded only once and each cleaned dataset is mapped on first use, then the worker answers one request per line:
+        run <TAB> dataset=... <TAB> technique=... <TAB> model=... <TAB> optimization=... <TAB> cross_validation=... <TAB> parameters=... [<TAB> memory_monitor=off] [<TAB> sample_fraction=...]
+            [<TAB> split_cache=... <TAB> split_seed=... <TAB> iteration=...] [<TAB> search_cache=... <TAB> dataset_key=...]
+    with either
+        OK <TAB> worker_rss=... <TAB> <metric>=<value> ... <TAB> phase.<name>=<seconds> ...
+        ERR <TAB> <escaped traceback>
+    The worker stops on "exit" or when its stdin is closed. Once its libraries are loaded it writes
+        READY <TAB> worker_rss=... <TAB> import_seconds=... [<TAB> clock_ticks=<sysconf SC_CLK_TCK>]
+    With memory_monitor=off the memory is measured by MLAnalyzer.java from outside, and no polling thread runs next to the job.
+    With sample_fraction the job only sees a stratified sample of the rows, the same sample for every job asking for that fraction.
+    With split_cache every model of an iteration gets the same splits, and the reduced matrices are computed once and shared.
+    Every job is charged what the shared reduction took to compute, the answer then has cpu_adjust=<seconds> to add to the
+    CPU time measured from outside.
+    With search_cache a hyperparameter search already run for the dataset, split, technique and model reuses its winning parameters,
+    and the answer has search=cached when it did, search=ran when the job searched and search=none when there was nothing to search.
+    With best_params (a JSON object of parameters per split, "hold-out" or "fold 1" to "fold 5") the search is skipped.
+    With cpus (positions in the CPUs the worker was started with) and threads the worker runs the job on those CPUs only,
+    with its BLAS, OpenMP and joblib pools limited to threads, and answers with the cores=<cpu>+<cpu> and threads it used.
+    With warmup_runs the first job of a technique and model on this worker is run that many times unmeasured first.
+    After a warm-up, or when the job had to load its dataset first, the worker writes MEASURE and waits for a line back,
+    so MLAnalyzer.java measures the memory and CPU time of the job from there and not the loading of the dataset.
+
+    When MLAnalyzer.java spreads a search over the workers, it first asks one of them for the candidates with
+        plan_search <TAB> the fields of run
+    answered by OK <TAB> candidates=<n> <TAB> candidate.0=<JSON> ... (or cached=<JSON object of parameters per split> when the
+    search cache has them for every split), then
+        score <TAB> the fields of run <TAB> outer_fold=... <TAB> candidate=<JSON> <TAB> fold=... <TAB> folds=...
+    fits one candidate on one fold of the inner cross-validation of a split and answers OK <TAB> score=...
+'''
+
+def respond(status, fields):
+    sys.stderr.flush()
+    protocol_output.write(status + ''.join(f"\t{key}={value}" for key, value in fields.items()) + "\n")
+    protocol_output.flush()
+
+def respond_error(message):
+    sys.stderr.flush()
+    escaped = message.replace('\\', '\\\\').replace('\n', '\\n').replace('\t', '\\t')
+    protocol_output.write(f"ERR\t{escaped}\n")
+    protocol_output.flush()
+
+def worker_rss_mb():
+    return psutil.Process(os.getpid()).memory_info().rss / (1024 * 1024)
+
+datasets = {}
+samples = {}
+
+def get_dataset(directory, fraction=None):
+    if directory not in datasets:
+        datasets[directory] = load_dataset(directory)
+    if fraction is None:
+        return datasets[directory]
+    if (directory, fraction) not in samples:
+        samples[(directory, fraction)] = stratified_sample(datasets[directory], fraction)
+    return samples[(directory, fraction)]
+
+def usable_cpus():
+    if hasattr(os, 'sched_getaffinity'):
+        return sorted(os.sched_getaffinity(0))
+    try:
+        return sorted(psutil.Process().cpu_affinity())
+    except (AttributeError, psutil.Error):
+        return list(range(psutil.cpu_count() or 1))
+
+# The CPUs the worker was started with, pinned jobs get some of them and the others get all of them back
+all_cpus = usable_cpus()
+pinned = False
+
+def set_affinity(cpus):
+    '''
+        Moves every thread of the worker onto the CPUs, the thread pools started by earlier jobs included.
+        False where a process can not choose its CPUs
+    '''
+    if hasattr(os, 'sched_setaffinity'):
+        for thread in os.listdir('/proc/self/task'):
+            try:
+                os.sched_setaffinity(int(thread), cpus)
+            except OSError:
+                # The thread ended in the meantime
+                pass
+        return True
+    try:
+        psutil.Process().cpu_affinity(list(cpus))
+        return True
+    except (AttributeError, psutil.Error, OSError):
+        return False
+
+def pin(args):
+    '''
+        The CPUs the job runs on, None when it is not pinned
+    '''
+    global pinned
+    if 'cpus' not in args:
+        if pinned:
+            set_affinity(all_cpus)
+            pinned = False
+        return None
+    cpus = [all_cpus[int(position) % len(all_cpus)] for position in args['cpus'].split(',')]
+    pinned = set_affinity(cpus)
+    return cpus if pinned else None
+
+warmed_up = set()
+
+def warm_up(args, dataset):
+    '''
+        Unmeasured runs before the first measured one of a pair on this worker, so its code, the caches and the CPU clock are warm.
+        They skip the search and the shared splits, only the work of the model itself is repeated
+    '''
+    key = (args['dataset'], args.get('sample_fraction'), args['technique'], args['model'])
+    if key in warmed_up:
+        return False
+    warmed_up.add(key)
+    for _ in range(int(args['warmup_runs'])):
+        Analysis(dataset, args['technique'], 'None', args['cross_validation'], args['model'])
+    return True
+
+def measure_from_here():
+    sys.stderr.flush()
+    protocol_output.write('MEASURE\n')
+    protocol_output.flush()
+    sys.stdin.readline()
+
+memory_monitor = None
+
+def get_memory_monitor():
+    global memory_monitor
+    if memory_monitor is None:
+        memory_monitor = MemoryMonitor(os.getpid())
+        monitor_thread = threading.Thread(target=memory_monitor)
+        monitor_thread.daemon = True
+        monitor_thread.start()
+    return memory_monitor
+
+def get_splits(args, fraction):
+    return SharedSplits(args['split_cache'], int(args['split_seed']), int(args['iteration']), fraction)
+
+def get_search_cache(args, fraction):
+    return SearchCache(args['search_cache'], args['dataset_key'], fraction) if 'search_cache' in args else None
+
+def run_job(args):
+    cpus = pin(args)
+    threads = int(args['threads']) if 'threads' in args else None
+    load_start = time.perf_counter()
+    fraction = float(args['sample_fraction']) if 'sample_fraction' in args else None
+    loaded = args['dataset'] not in datasets or (fraction is not None and (args['dataset'], fraction) not in samples)
+    dataset = get_dataset(args['dataset'], fraction)
+    load_seconds = time.perf_counter() - load_start
+
+    # No limit when threads is None
+    with threadpool_limits(limits=threads):
+        warmup_start = time.perf_counter()
+        warmed_up_now = 'warmup_runs' in args and warm_up(args, dataset)
+        warmup_seconds = time.perf_counter() - warmup_start
+        # The dataset stays in this worker for its later jobs, so the first job is not charged for loading it
+        if loaded or warmed_up_now:
+            measure_from_here()
+        monitor = None
+        if args.get('memory_monitor') != 'off':
+            monitor = get_memory_monitor()
+            monitor.reset()
+        splits = get_splits(args, fraction) if 'split_cache' in args else None
+        best_params = json.loads(args['best_params']) if 'best_params' in args else None
+        analysis = Analysis(dataset, args['technique'], args['optimization'], args['cross_validation'], args['model'], splits,
+                            get_search_cache(args, fraction), best_params)
+
+    results = get_results(analysis, monitor, args['parameters'].split(','))
+    if cpus is not None:
+        results['cores'] = '+'.join(str(cpu) for cpu in cpus)
+    if threads is not None:
+        results['threads'] = threads
+    if 'search_cache' in args:
+        results['search'] = analysis.search
+    # What MLAnalyzer.java adds to the CPU time it measures, for the shared reductions this job loaded or computed
+    if analysis.cpu_adjustment:
+        results['cpu_adjust'] = analysis.cpu_adjustment
+    results['phase.load'] = load_seconds
+    if 'warmup_runs' in args:
+        results['phase.warm-up'] = warmup_seconds
+    for phase, seconds in analysis.phases.seconds.items():
+        results[f'phase.{phase}'] = seconds
+    return results
+
+def search_splits(cross_validation):
+    '''
+        The splits of a job, each with a search of its own
+    '''
+    if cross_validation == 'K-Fold':
+        return [f'fold {fold}' for fold in range(1, 6)]
+    return ['hold-out']
+
+def plan_search(args):
+    fraction = float(args['sample_fraction']) if 'sample_fraction' in args else None
+    search_cache = get_search_cache(args, fraction)
+    if search_cache is not None and args['model'] != 'Custom AI Model':
+        _, _, search_file = search_space(args['model'], args['optimization'])
+        cached = {}
+        for split in search_splits(args['cross_validation']):
+            params = search_cache.get(search_cache.key(args['optimization'], search_file, args['technique'], args['model'], split))
+            if params is None:
+                break
+            cached[split] = params
+        else:
+            return {'cached': json.dumps(cached)}
+
+    candidates = search_candidates(args['model'], args['optimization'], get_splits(args, fraction).random_state)
+    results = {'candidates': len(candidates)}
+    for index, candidate in enumerate(candidates):
+        results[f'candidate.{index}'] = json.dumps(candidate)
+    return results
+
+def score_job(args):
+    load_start = time.perf_counter()
+    fraction = float(args['sample_fraction']) if 'sample_fraction' in args else None
+    dataset = get_dataset(args['dataset'], fraction)
+    phases = PhaseTimer()
+    phases.seconds['load'] = time.perf_counter() - load_start
+
+    score = score_candidate(dataset, args['technique'], args['model'], args['outer_fold'], json.loads(args['candidate']),
+                            int(args['fold']), int(args['folds']), get_splits(args, fraction), phases)
+    results = {'score': score}
+    for phase, seconds in phases.seconds.items():
+        results[f'phase.{phase}'] = seconds
+    return results
+
+def main():
+    ready = {'worker_rss': worker_rss_mb(), 'import_seconds': import_seconds}
+    # The unit of the CPU times MLAnalyzer.java reads from /proc, only where there is a /proc
+    if hasattr(os, 'sysconf') and 'SC_CLK_TCK' in os.sysconf_names:
+        ready['clock_ticks'] = os.sysconf('SC_CLK_TCK')
+    respond('READY', ready)
+
+    for line in sys.stdin:
+        line = line.rstrip('\n')
+        if not line:
+            continue
+
+        command, *fields = line.split('\t')
+        args = dict(field.split('=', 1) for field in fields)
+
+        if command == 'exit':
+            break
+
+        try:
+            if command == 'run':
+                results = run_job(args)
+            elif command == 'plan_search':
+                results = plan_search(args)
+            elif command == 'score':
+                results = score_job(args)
+            else:
+                raise ValueError(f'Unknown worker command: {command}')
+        except Exception:
+            respond_error(traceback.format_exc())
+            continue
+
+        fields = {'worker_rss': worker_rss_mb()}
+        fields.update(results)
+        respond('OK', fields)
+
+if __name__ == "__main__":
+    main()
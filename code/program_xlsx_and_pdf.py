@@ -45,13 +45,24 @@ def save_parts_to_pdf(parts, output_pdf_path):
     
     c.save()
 
+def graphs_to_pdf(input_image_path, output_pdf_path, part_height=1510):
+    parts = cut_image(input_image_path, part_height)
+    save_parts_to_pdf(parts, output_pdf_path)
+
 def csv_to_xlsx(csv_file_path, output_path):
+    table_to_xlsx(pd.read_csv(csv_file_path), output_path, "results table//resumed results.xlsx")
+
+def table_to_xlsx(df, output_path, summary_path):
 
-    df = pd.read_csv(csv_file_path)
+    # Failed, timed out and eliminated analyses stay in the full table but are left out of the summary,
+    # racing runs get one summary row per pair and stage, the cores of pinned runs are only in the full table.
+    # Runs reusing search results get one row per pair for the jobs that searched and one for those that took the
+    # cached parameters, their times are not comparable
+    finished = df[df['status'] == 'ok'].drop(columns=['status', 'cores', 'threads'], errors='ignore')
 
-    numeric_cols = df.select_dtypes(include=[np.number]).columns
+    numeric_cols = finished.select_dtypes(include=[np.number]).columns
 
-    grouped = df.groupby(df.select_dtypes(exclude=[np.number]).columns.tolist()).agg({
+    grouped = finished.groupby(finished.select_dtypes(exclude=[np.number]).columns.tolist(), dropna=False).agg({
         col: ["mean", "std"] for col in numeric_cols
     })
 
@@ -66,15 +77,10 @@ def csv_to_xlsx(csv_file_path, output_path):
     grouped.reset_index(inplace=True)
 
     df.to_excel(output_path, index=False, engine='openpyxl')
-    grouped.to_excel("results table//resumed results.xlsx", index=False, engine='openpyxl')
+    grouped.to_excel(summary_path, index=False, engine='openpyxl')
 
 def main():
-    input_image_path = 'results image//graphs.png'
-    output_pdf_path = 'results image//graphs.pdf'  
-    part_height = 1510 
-    
-    parts = cut_image(input_image_path, part_height)
-    save_parts_to_pdf(parts, output_pdf_path)
+    graphs_to_pdf('results image//graphs.png', 'results image//graphs.pdf')
 
     input_csv = "results table//results.csv"
     output_excel_csv = "results table//results.xlsx"